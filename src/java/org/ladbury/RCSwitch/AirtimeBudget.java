@@ -0,0 +1,130 @@
+package org.ladbury.RCSwitch;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AirtimeBudget    -   the airtime a transmitter may use in a sliding window, a duty cycle limit such as the 10%
+ *                      in an hour allowed on 433 MHz. Every frame sent is recorded with its exact airtime and the
+ *                      device it was for, and drops out of the window when it is older than the window, so the
+ *                      airtime used is exact at any moment rather than counted in fixed periods.
+ *                      A transmitter asks how long it must wait before a frame fits in the budget. Thread safe.
+ */
+public class AirtimeBudget
+{
+    /**
+     * Use  -   one frame's airtime
+     */
+    private static class Use
+    {
+        final long nanos;
+        final long micros;
+        final Object target;
+
+        Use(long nanos, long micros, Object target)
+        {
+            this.nanos = nanos;
+            this.micros = micros;
+            this.target = target;
+        }
+    }
+
+    private final long windowNanos;
+    private final long budgetMicros;
+    private final ArrayDeque<Use> uses;             // oldest first
+    private final HashMap<Object, Long> byTarget;   // airtime in the window of each target with any, null for all unknown ones
+    private long usedMicros;
+
+    /**
+     * AirtimeBudget    -   Constructor
+     * @param windowSeconds     -   length of the sliding window
+     * @param dutyCyclePercent  -   the share of the window that may be spent transmitting
+     */
+    public AirtimeBudget(int windowSeconds, double dutyCyclePercent)
+    {
+        if (windowSeconds < 1) throw new IllegalArgumentException("Window must be at least a second: " + windowSeconds);
+        if (dutyCyclePercent <= 0 || dutyCyclePercent > 100) throw new IllegalArgumentException("Duty cycle must be over 0 and at most 100%: " + dutyCyclePercent);
+        this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+        this.budgetMicros = (long)(TimeUnit.SECONDS.toMicros(windowSeconds) * dutyCyclePercent / 100);
+        this.uses = new ArrayDeque<>();
+        this.byTarget = new HashMap<>();
+        this.usedMicros = 0;
+    }
+
+    /**
+     * record   -   count a frame just sent
+     * @param target    -   the device it was for, null if not known, every unknown device shares one account
+     * @param micros    -   its airtime
+     */
+    public synchronized void record(Object target, long micros)
+    {
+        final long now = System.nanoTime();
+        expire(now);
+        uses.addLast(new Use(now, micros, target));
+        usedMicros += micros;
+        byTarget.merge(target, micros, Long::sum);
+    }
+
+    /**
+     * delayNanos   -   how long until airtime can be used without going over the budget
+     * @param micros    -   the airtime wanted, with any already promised to transmissions ahead of it
+     * @return          -   nanoseconds to wait, 0 if it fits now, Long.MAX_VALUE if it is more than the whole budget
+     */
+    public synchronized long delayNanos(long micros)
+    {
+        if (micros > budgetMicros) return Long.MAX_VALUE;
+        final long now = System.nanoTime();
+        expire(now);
+        long excess = usedMicros + micros - budgetMicros;
+        if (excess <= 0) return 0;
+        for (Use u : uses) // wait for the oldest frames to leave the window until enough has
+        {
+            excess -= u.micros;
+            if (excess <= 0) return Math.max(0, u.nanos + windowNanos - now);
+        }
+        return windowNanos; // not reached, the budget is larger than the wanted airtime
+    }
+
+    /**
+     * expire   -   drop the frames older than the window
+     * @param now   -   from System.nanoTime()
+     */
+    private void expire(long now)
+    {
+        while (!uses.isEmpty() && now - uses.peekFirst().nanos >= windowNanos)
+        {
+            final Use u = uses.removeFirst();
+            usedMicros -= u.micros;
+            byTarget.computeIfPresent(u.target, (t, m) -> (m == u.micros) ? null : m - u.micros);
+        }
+    }
+
+    public synchronized long getUsedMicros()
+    {
+        expire(System.nanoTime());
+        return usedMicros;
+    }
+
+    /**
+     * getUsedMicros    -   the airtime a device has used in the window
+     * @param target    -   the device, null for all the frames sent to unknown devices together
+     * @return          -   microseconds
+     */
+    public synchronized long getUsedMicros(Object target)
+    {
+        expire(System.nanoTime());
+        final Long m = byTarget.get(target);
+        return (m == null) ? 0 : m;
+    }
+
+    public synchronized long getRemainingMicros(){return Math.max(0, budgetMicros - getUsedMicros());}
+    public long getBudgetMicros(){return budgetMicros;}
+    public int getWindowSeconds(){return (int)TimeUnit.NANOSECONDS.toSeconds(windowNanos);}
+
+    @Override
+    public String toString()
+    {
+        return String.format("Airtime: %d of %d us used in %d s", getUsedMicros(), budgetMicros, getWindowSeconds());
+    }
+}
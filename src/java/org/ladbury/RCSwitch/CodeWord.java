@@ -0,0 +1,28 @@
+package org.ladbury.RCSwitch;
+
+/**
+ * CodeWord -   a tristate code word built by CodeWords for one switch command
+ */
+class CodeWord
+{
+    private final TriState[] word;
+    private boolean valid;
+    private int triBitCount;
+
+    CodeWord() 
+    {
+        word = new TriState[12];
+        valid=false;
+        triBitCount=0; 
+    }
+    //TriState getTriStateBit(int i){return word[i];}
+    //void setTriStateBit(int i,TriState t){word[i] = t;}
+    void setValid(boolean v){valid = v;}
+    void addTriStateBit(TriState t)
+    {
+        word[this.triBitCount] = t;
+        triBitCount++;
+    }
+    boolean isValid(){return valid;}
+    TriState[] getWord(){return word;}
+}
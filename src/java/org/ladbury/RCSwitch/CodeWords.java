@@ -2,31 +2,7 @@ package org.ladbury.RCSwitch;
 
 import org.ladbury.sockets.Main;
 
-class CodeWord
-{
-    private final TriState[] word;
-    private boolean valid;
-    private int triBitCount;
-
-    CodeWord() 
-    {
-        word = new TriState[12];
-        valid=false;
-        triBitCount=0; 
-    }
-    //TriState getTriStateBit(int i){return word[i];}
-    //void setTriStateBit(int i,TriState t){word[i] = t;}
-    void setValid(boolean v){valid = v;}
-    void addTriStateBit(TriState t)
-    {
-        word[this.triBitCount] = t;
-        triBitCount++;
-    }
-    boolean isValid(){return valid;}
-    TriState[] getWord(){return word;}
-}
-
-enum TriState {zero,one,floating}
+import java.util.concurrent.CompletableFuture;
 
 /**
  * CodeWords    -   This class constructs the codewords for different switch types
@@ -67,13 +43,44 @@ public class CodeWords
 
     /**
      * @param cw   a tristate code word consisting of the letter 0, 1, F
+     * @return     completes when the code word has been sent, see RadioTransmitter.sendAsync
+     */
+    public static CompletableFuture<TransmitResult> sendTriState(CodeWord cw)
+    {
+        return sendTriState(cw, Main.getTransmitter());
+    }
+
+    /**
+     * @param cw            a tristate code word consisting of the letter 0, 1, F
+     * @param transmitter   the transmitter to send it with
+     * @return              completes when the code word has been sent, fails with IllegalArgumentException if it is invalid
+     */
+    public static CompletableFuture<TransmitResult> sendTriState(CodeWord cw, RadioTransmitter transmitter)
+    {
+        return sendTriState(cw, transmitter, null, TransmitPriority.INTERACTIVE);
+    }
+
+    /**
+     * @param cw            a tristate code word consisting of the letter 0, 1, F
+     * @param transmitter   the transmitter to send it with
+     * @param target        the device it commands, see RadioTransmitter.sendAsync
+     * @param priority      the transmit lane it waits in
+     * @return              completes when the code word has been sent, fails with IllegalArgumentException if it is invalid
+     */
+    public static CompletableFuture<TransmitResult> sendTriState(CodeWord cw, RadioTransmitter transmitter, Object target, TransmitPriority priority)
+    {
+        if(cw == null || !cw.isValid()) return TransmitEngine.failed(new IllegalArgumentException("Invalid code word"));
+        return transmitter.sendAsync(encodeTriState(cw), 2 * cw.getWord().length, target, priority);
+    }
+
+    /**
+     * encodeTriState   -   turn the tristate code word into the corresponding bit pattern, two bits per tristate bit
+     * @param cw   a tristate code word consisting of the letter 0, 1, F
+     * @return      the bit pattern to send
      */
-    public static void sendTriState(CodeWord cw)
+    static /*unsigned*/ long encodeTriState(CodeWord cw)
     {
-        if(!cw.isValid()) return;
-        // turn the tristate code word into the corresponding bit pattern, then send it
         /*unsigned*/ long code = 0;
-        /*unsigned*/ int length = 0;
         for (TriState t:cw.getWord())
         {
             code <<= 2L;
@@ -85,9 +92,8 @@ public class CodeWords
                 case one: code |= 3L;       // bit pattern 11
                     break;
             }
-            length += 2;
         }
-        Main.getTransmitter().send(code, length);
+        return code;
     }
 
 
@@ -0,0 +1,16 @@
+package org.ladbury.RCSwitch;
+
+/**
+ * EdgeListener -   receives the edges of a radio signal.
+ *                  Implemented by the receivers so they can be driven by a GPIO pin listener,
+ *                  a capture replay or a simulated signal in the same way
+ */
+public interface EdgeListener
+{
+    /**
+     * onEdge   -   called for every change of the receiver pin level, in time order
+     * @param time  -   time of the edge in microseconds
+     * @param high  -   true if the pin is high after the edge
+     */
+    void onEdge(long time, boolean high);
+}
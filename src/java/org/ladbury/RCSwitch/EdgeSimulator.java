@@ -0,0 +1,170 @@
+package org.ladbury.RCSwitch;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * EdgeSimulator    -   drives an EdgeListener with a simulated radio signal in place of a GPIO pin.
+ *                      Codes are sent as bursts of repeated frames of the chosen protocols, the signal can be
+ *                      degraded with pulse width jitter, short glitches and missing edges, and the edges are
+ *                      delivered at a chosen rate in edges per second, or as fast as the listener accepts them.
+ *                      Edge times are simulated, the listener sees the durations of real radio traffic
+ *                      however fast the edges are delivered, so the rate can be set far above what a radio produces.
+ */
+public class EdgeSimulator
+{
+    private static final int FLUSH_GAP = 1000000;  // microseconds of silence that ends the last frame
+    private static final int MIN_GLITCH = 5;       // glitch width range in microseconds
+    private static final int MAX_GLITCH = 50;
+
+    private final FrameGenerator generator;
+    private final Random random;
+
+    // signal settings
+    private Protocol[] protocols;
+    private int bitCount;
+    private int repeats;
+    private int frameGap;
+    private double glitchRate;
+    private double dropRate;
+    private long edgeRate;
+
+    // state and results of the simulation
+    private long time;
+    private boolean level;
+    private long framesSent;
+    private long codesSent;
+    private long edgesSent;
+    private long glitches;
+    private long drops;
+    private long elapsedNanos;
+
+    /**
+     * EdgeSimulator    -   Constructor, defaults to bursts of 5 repeats of 24 bit codes using every protocol,
+     *                      a clean signal and no limit on the edge rate
+     * @param seed  -   seed for the codes and the signal errors, the same seed gives the same signal
+     */
+    public EdgeSimulator(long seed)
+    {
+        this.generator = new FrameGenerator(seed);
+        this.random = generator.getRandom();
+        this.protocols = Protocol.values();
+        this.bitCount = 24;
+        this.repeats = 5;
+        this.frameGap = 0;
+        this.glitchRate = 0;
+        this.dropRate = 0;
+        this.edgeRate = 0;
+        this.time = 0;
+        this.level = false;
+    }
+
+    // setters
+    public void setProtocols(Protocol... protocols){this.protocols = protocols;}
+    public void setBitCount(int bitCount){this.bitCount = Math.min(bitCount, 64);}
+    public void setRepeats(int repeats){this.repeats = Math.max(1, repeats);}
+    public void setJitter(int jitter){generator.setJitter(jitter);}
+
+    /**
+     * setFrameGap  -   extra silence between frames, each frame already starts with its protocol's sync gap as a
+     *                  transmitter sends it, so this stretches the gaps between repeats as well as between bursts
+     * @param frameGap  -   microseconds added to the sync gap before every frame
+     */
+    public void setFrameGap(int frameGap){this.frameGap = frameGap;}
+
+    /**
+     * setGlitchRate    -   add short spikes to the signal
+     * @param glitchRate    -   probability that a glitch pulse is inserted before an edge
+     */
+    public void setGlitchRate(double glitchRate){this.glitchRate = glitchRate;}
+
+    /**
+     * setDropRate  -   lose edges, as the pin listener does when it falls behind
+     * @param dropRate  -   probability that an edge is not delivered
+     */
+    public void setDropRate(double dropRate){this.dropRate = dropRate;}
+
+    /**
+     * setEdgeRate  -   limit the speed edges are delivered at
+     * @param edgeRate  -   edges per second, 0 for as fast as the listener accepts them
+     */
+    public void setEdgeRate(long edgeRate){this.edgeRate = edgeRate;}
+
+    // getters
+    public long getFramesSent(){return framesSent;}
+    public long getCodesSent(){return codesSent;}
+    public long getEdgesSent(){return edgesSent;}
+    public long getGlitches(){return glitches;}
+    public long getDrops(){return drops;}
+    public long getElapsedNanos(){return elapsedNanos;}
+    public double getAchievedEdgeRate(){return (elapsedNanos == 0) ? 0 : edgesSent * 1e9 / elapsedNanos;}
+
+    /**
+     * run  -   send bursts of random codes, then a gap so the last frame is complete
+     * @param listener  -   the receiver
+     * @param codes     -   number of codes to send, each as a burst of repeats
+     */
+    public void run(EdgeListener listener, int codes)
+    {
+        final int[] durations = new int[FrameGenerator.maxEdges(bitCount)];
+        final boolean[] levels = new boolean[durations.length];
+        final long mask = (bitCount == 64) ? -1L : (1L << bitCount) - 1;
+        final long started = System.nanoTime();
+        final long edgesBefore = edgesSent;
+        for (int c = 0; c < codes; c++)
+        {
+            final Protocol protocol = protocols[random.nextInt(protocols.length)];
+            final long code = random.nextLong() & mask;
+            for (int r = 0; r < repeats; r++)
+            {
+                final int n = generator.frame(protocol, code, bitCount, durations, levels);
+                durations[0] += frameGap; // the sync gap leads each repeat, not only the first of a burst
+                for (int i = 0; i < n; i++) send(listener, durations[i], levels[i]);
+                framesSent++;
+                if (edgeRate > 0) pace(started, edgesSent - edgesBefore);
+            }
+            codesSent++;
+        }
+        time += FLUSH_GAP;
+        level = !level;
+        listener.onEdge(time, level);
+        elapsedNanos += System.nanoTime() - started;
+    }
+
+    private void send(EdgeListener listener, int duration, boolean high)
+    {
+        final long edgeTime = time + duration;
+        if (glitchRate > 0 && random.nextDouble() < glitchRate)
+        {
+            final int width = MIN_GLITCH + random.nextInt(MAX_GLITCH - MIN_GLITCH);
+            if (duration > width + 1)
+            {
+                final long at = time + random.nextInt(duration - width);
+                listener.onEdge(at, !level);
+                listener.onEdge(at + width, level);
+                edgesSent += 2;
+                glitches++;
+            }
+        }
+        time = edgeTime;
+        if (dropRate > 0 && random.nextDouble() < dropRate)
+        {
+            drops++;
+            return;
+        }
+        level = high;
+        listener.onEdge(time, high);
+        edgesSent++;
+    }
+
+    private void pace(long started, long edges)
+    {
+        final long due = started + edges * 1000000000L / edgeRate;
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0)
+        {
+            if (wait > 100000) LockSupport.parkNanos(wait - 50000);
+            else Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.ladbury.RCSwitch;
+
+/**
+ * FrameDurations   -   the durations of one captured frame, read where they are stored.
+ *                      Implemented by the frames a receiver buffers and the frames of a capture file,
+ *                      so ProtocolMatcher decodes both the same way without copying them first
+ */
+public interface FrameDurations
+{
+    /**
+     * size -   the number of durations in the frame
+     * @return  -   the count
+     */
+    int size();
+
+    /**
+     * duration -   one duration of the frame
+     * @param index -   position in the frame, the first is the sync
+     * @return      -   time between the edges in microseconds
+     */
+    int duration(int index);
+}
@@ -0,0 +1,104 @@
+package org.ladbury.RCSwitch;
+
+import java.util.Random;
+
+/**
+ * FrameGenerator   -   builds synthetic frames for benchmarks and simulations that run without a radio.
+ *                      A frame is held the way a receiver records it, as the duration before each edge and the
+ *                      pin level after it. It starts with the long part of the sync, the gap the receiver uses to
+ *                      find the start of a message, and is followed by the data bits, most significant bit first.
+ *                      Frames are generated from the Protocol definitions, so every protocol is covered.
+ */
+public class FrameGenerator
+{
+    private static final int MIN_DURATION = 1;
+
+    private final Random random;
+    private int jitter; // largest error in microseconds added to or taken from each duration
+
+    /**
+     * FrameGenerator   -   Constructor
+     * @param seed  -   seed for the random codes, noise and jitter, the same seed gives the same frames
+     */
+    public FrameGenerator(long seed)
+    {
+        this.random = new Random(seed);
+        this.jitter = 0;
+    }
+
+    public int getJitter(){return jitter;}
+    public void setJitter(int jitter){this.jitter = jitter;}
+    public Random getRandom(){return random;}
+
+    /**
+     * maxEdges -   the largest frame the generator can produce
+     * @param bitCount  -   number of data bits
+     * @return          -   the size needed for the durations and levels arrays
+     */
+    public static int maxEdges(int bitCount){return 2 * bitCount + 3;}
+
+    /**
+     * frame    -   a valid frame
+     * @param protocol  -   the protocol to encode with
+     * @param code      -   the code, the low bitCount bits are sent
+     * @param bitCount  -   number of data bits, at most 64
+     * @param durations -   receives the duration before each edge in microseconds
+     * @param levels    -   receives the pin level after each edge, true = high
+     * @return          -   the number of edges in the frame
+     */
+    public int frame(Protocol protocol, long code, int bitCount, int[] durations, boolean[] levels)
+    {
+        final int w = protocol.pulseLength;
+        final HighLow sync = protocol.syncFactor;
+        int n = 0;
+        // the long part of the sync is seen first, for inverted protocols the short part follows it
+        n = put(durations, levels, n, w * Math.max(sync.high, sync.low), !protocol.invertedSignal);
+        if (protocol.invertedSignal) n = put(durations, levels, n, w * Math.min(sync.high, sync.low), !levels[n - 1]);
+        for (int b = bitCount - 1; b >= 0; b--)
+        {
+            final HighLow bit = (((code >>> b) & 1) != 0) ? protocol.one : protocol.zero;
+            n = put(durations, levels, n, w * bit.high, !levels[n - 1]);
+            n = put(durations, levels, n, w * bit.low, !levels[n - 1]);
+        }
+        // the high part of the following sync ends the frame
+        if (!protocol.invertedSignal) n = put(durations, levels, n, w * sync.high, !levels[n - 1]);
+        return n;
+    }
+
+    /**
+     * truncated    -   a valid frame cut short, as when reception fades part way through
+     * @param protocol  -   the protocol to encode with
+     * @param code      -   the code
+     * @param bitCount  -   number of data bits in the complete frame
+     * @param keep      -   number of edges to keep
+     * @param durations -   receives the durations
+     * @param levels    -   receives the levels
+     * @return          -   the number of edges in the frame
+     */
+    public int truncated(Protocol protocol, long code, int bitCount, int keep, int[] durations, boolean[] levels)
+    {
+        return Math.min(keep, frame(protocol, code, bitCount, durations, levels));
+    }
+
+    /**
+     * noise    -   random edges after a gap, what a receiver hears when nothing is transmitting
+     * @param edges     -   number of edges
+     * @param durations -   receives the durations
+     * @param levels    -   receives the levels
+     * @return          -   the number of edges in the frame
+     */
+    public int noise(int edges, int[] durations, boolean[] levels)
+    {
+        int n = put(durations, levels, 0, 5000 + random.nextInt(10000), random.nextBoolean());
+        while (n < edges) n = put(durations, levels, n, 100 + random.nextInt(3000), !levels[n - 1]);
+        return n;
+    }
+
+    private int put(int[] durations, boolean[] levels, int n, int duration, boolean level)
+    {
+        if (jitter > 0) duration += random.nextInt(2 * jitter + 1) - jitter;
+        durations[n] = Math.max(MIN_DURATION, duration);
+        levels[n] = level;
+        return n + 1;
+    }
+}
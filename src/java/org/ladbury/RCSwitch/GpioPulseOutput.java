@@ -0,0 +1,32 @@
+package org.ladbury.RCSwitch;
+
+import com.pi4j.io.gpio.GpioPinDigitalOutput;
+import com.pi4j.io.gpio.PinPullResistance;
+import com.pi4j.io.gpio.PinState;
+import com.pi4j.wiringpi.Gpio;
+
+/**
+ * GpioPulseOutput  -   sends pulses on a GPIO pin connected to a radio transmitter
+ */
+public class GpioPulseOutput implements PulseOutput
+{
+    private final GpioPinDigitalOutput transmitterPin;
+
+    public GpioPulseOutput(GpioPinDigitalOutput transmitterPin)
+    {
+        this.transmitterPin = transmitterPin;
+        transmitterPin.setShutdownOptions(true, PinState.LOW, PinPullResistance.OFF);
+    }
+
+    public GpioPinDigitalOutput getPin(){return transmitterPin;}
+
+    @Override
+    public void pulse(boolean high, int micros)
+    {
+        this.transmitterPin.setState(high);
+        Gpio.delayMicroseconds(micros);
+    }
+
+    @Override
+    public void level(boolean high){this.transmitterPin.setState(high);}
+}
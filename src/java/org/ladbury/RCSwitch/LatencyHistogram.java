@@ -0,0 +1,155 @@
+package org.ladbury.RCSwitch;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram -   counts latencies in a fixed set of logarithmic buckets, four to each power of two from one
+ *                      nanosecond to over a minute, so the relative error of any reading is under a quarter.
+ *                      Recording is an array index and an atomic increment, it never allocates or locks, so it can
+ *                      be left on in the receive and transmit paths and any number of threads can record at once.
+ *                      A snapshot copies the counts, it can be taken while recording continues.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKETS = 4;      // buckets per power of two
+    private static final int OCTAVES = 37;         // 2^37 ns is about two minutes, longer latencies share the last bucket
+    private static final int BUCKETS = OCTAVES * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts;
+    private final AtomicLong total;                // sum of the latencies in nanoseconds
+    private final AtomicLong max;
+
+    /**
+     * LatencyHistogram -   Constructor
+     * @param name  -   the stage being measured, used when the histogram is printed
+     */
+    public LatencyHistogram(String name)
+    {
+        this.name = name;
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.total = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    public String getName(){return name;}
+
+    /**
+     * record   -   count one latency
+     * @param nanos -   the latency in nanoseconds, negative values count as zero
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        total.addAndGet(nanos);
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) m = max.get(); // retry only if another thread raised it
+    }
+
+    /**
+     * recordSince  -   count the time since a start time
+     * @param startNanos    -   the start, from System.nanoTime()
+     */
+    public void recordSince(long startNanos){record(System.nanoTime() - startNanos);}
+
+    /**
+     * reset    -   clear the counts, latencies recorded during a reset may be partly lost
+     */
+    public void reset()
+    {
+        for (int b = 0; b < BUCKETS; b++) counts.set(b, 0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * snapshot -   copy the counts
+     * @return  -   the copy
+     */
+    public Snapshot snapshot()
+    {
+        final long[] c = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) c[b] = counts.get(b);
+        return new Snapshot(name, c, total.get(), max.get());
+    }
+
+    @Override
+    public String toString(){return snapshot().toString();}
+
+    /**
+     * bucket   -   the octave from the leading bit and the quarter from the next two bits
+     */
+    private static int bucket(long nanos)
+    {
+        if (nanos < SUB_BUCKETS) return (int)nanos;
+        final int octave = 63 - Long.numberOfLeadingZeros(nanos);
+        final int quarter = (int)(nanos >>> (octave - 2)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, (octave - 1) * SUB_BUCKETS + quarter);
+    }
+
+    /**
+     * upperBound   -   the largest latency counted in a bucket
+     */
+    private static long upperBound(int bucket)
+    {
+        if (bucket < SUB_BUCKETS) return bucket;
+        final int octave = bucket / SUB_BUCKETS + 1;
+        final int quarter = bucket % SUB_BUCKETS;
+        return ((long)(SUB_BUCKETS + quarter + 1) << (octave - 2)) - 1;
+    }
+
+    /**
+     * Snapshot -   the counts of a histogram at one moment
+     */
+    public static class Snapshot
+    {
+        private final String name;
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        private Snapshot(String name, long[] counts, long total, long max)
+        {
+            this.name = name;
+            this.counts = counts;
+            long n = 0;
+            for (long c : counts) n += c;
+            this.count = n;
+            this.total = total;
+            this.max = max;
+        }
+
+        public long getCount(){return count;}
+        public long getMaxNanos(){return max;}
+        public double getMeanNanos(){return (count == 0) ? 0 : (double)total / count;}
+
+        /**
+         * percentile   -   the latency below which a percentage of the recordings fall
+         * @param percent   -   0 to 100
+         * @return          -   the upper bound of the bucket holding the percentile in nanoseconds, 0 if empty
+         */
+        public long percentile(double percent)
+        {
+            if (count == 0) return 0;
+            final long rank = Math.max(1, (long)Math.ceil(percent / 100 * count));
+            long seen = 0;
+            for (int b = 0; b < counts.length; b++)
+            {
+                seen += counts[b];
+                if (seen >= rank) return Math.min(upperBound(b), max);
+            }
+            return max;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s: count %d, mean %.1f us, p50 %.1f us, p90 %.1f us, p99 %.1f us, max %.1f us",
+                    name, count, getMeanNanos() / 1000, percentile(50) / 1000.0, percentile(90) / 1000.0,
+                    percentile(99) / 1000.0, max / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.ladbury.RCSwitch;
+
+/**
+ * LoopbackChannel  -   connects a RadioTransmitter directly to a receiver without radios.
+ *                      Each change of the transmitted level is passed to the receiver as an edge, timed on a
+ *                      simulated microsecond clock that advances by the length of each pulse. The waveform is
+ *                      delivered as fast as the receiver accepts it, or paced to the real length of the pulses.
+ *                      Levels set by a TransmitEngine are timed by the wall clock, so the receiver sees the
+ *                      engine's real timing errors. The wall clock time of the first edge passed on since mark()
+ *                      is kept, so a test can time a transmission from when it reached the receiver.
+ */
+public class LoopbackChannel implements PulseOutput
+{
+    private static final int FLUSH_GAP = 25000;   // microseconds, longer than any protocol's sync
+    private static final int FLUSH_PULSE = 100;    // microseconds, too short a frame to be decoded
+    private static final int RESYNC_LAG = 5000;    // microseconds behind the wall clock before the clock is moved on
+
+    private final EdgeListener listener;
+    private final boolean realTime;
+    private final long wallStart;  // nanoseconds, when the clock started
+    private long clock;            // simulated time in microseconds
+    private boolean level;
+    private volatile long firstEdgeNanos; // System.nanoTime() of the first edge since mark(), 0 until one is passed on
+
+    /**
+     * LoopbackChannel  -   Constructor
+     * @param listener  -   the receiver
+     * @param realTime  -   true to take as long as the pulses would on air, false to deliver them at once
+     */
+    public LoopbackChannel(EdgeListener listener, boolean realTime)
+    {
+        this.listener = listener;
+        this.realTime = realTime;
+        this.wallStart = System.nanoTime();
+        this.clock = 0;
+        this.level = false;
+        this.firstEdgeNanos = 0;
+    }
+
+    public long getClock(){return clock;}
+
+    /**
+     * mark -   start timing a transmission, the next edge passed to the receiver is its first
+     */
+    public void mark(){firstEdgeNanos = 0;}
+
+    /**
+     * getFirstEdgeNanos    -   when the first edge since mark() was passed to the receiver
+     * @return              -   from System.nanoTime(), 0 if no edge has been passed on
+     */
+    public long getFirstEdgeNanos(){return firstEdgeNanos;}
+
+    @Override
+    public void pulse(boolean high, int micros)
+    {
+        if (realTime) resync();
+        if (high != level) edge(high);
+        clock += micros;
+        if (realTime) waitForClock();
+    }
+
+    @Override
+    public void level(boolean high)
+    {
+        clock = (System.nanoTime() - wallStart) / 1000; // the edge is when the engine sets it
+        if (high != level) edge(high);
+    }
+
+    private void edge(boolean high)
+    {
+        level = high;
+        if (firstEdgeNanos == 0) firstEdgeNanos = System.nanoTime();
+        listener.onEdge(clock, high);
+    }
+
+    /**
+     * idle -   leave the line at its current level, as between transmissions
+     * @param micros    -   length of the idle period in microseconds
+     */
+    public void idle(int micros)
+    {
+        clock += micros;
+        if (realTime) waitForClock();
+    }
+
+    /**
+     * flush    -   end the last frame, a receiver only sees a frame end when the edge after the trailing gap
+     *              arrives, so a short pulse is sent after a gap and the line is then left idle again
+     */
+    public void flush()
+    {
+        final boolean idleLevel = level;
+        idle(FLUSH_GAP);
+        pulse(!idleLevel, FLUSH_PULSE);
+        pulse(idleLevel, FLUSH_GAP);
+    }
+
+    /**
+     * resync   -   time the line spent idle between calls is real, move the clock on to the wall clock so the next
+     *              pulses are not sent early to catch up, small delays from waiting are left for the clock to absorb
+     */
+    private void resync()
+    {
+        final long wall = (System.nanoTime() - wallStart) / 1000;
+        if (wall - clock > RESYNC_LAG) clock = wall;
+    }
+
+    private void waitForClock()
+    {
+        final long due = wallStart + clock * 1000;
+        while (System.nanoTime() < due) Thread.yield();
+    }
+}
@@ -0,0 +1,193 @@
+package org.ladbury.RCSwitch;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ProtocolDefinition   -   the timings of a protocol as used by the decoders.
+ *                          The built in Protocol constants are wrapped so protocols learned from received frames
+ *                          can be decoded in the same way. Definitions can be saved to and loaded from a text file,
+ *                          one per line in the same order as the Protocol constructor:
+ *                          name,pulseLength,syncHigh,syncLow,zeroHigh,zeroLow,oneHigh,oneLow,invertedSignal
+ *                          Blank lines and lines starting with # are ignored.
+ */
+public class ProtocolDefinition
+{
+    private static final ProtocolDefinition[] BUILT_IN = builtIn();
+
+    private final String name;
+    private final Protocol protocol; // null for learned protocols
+    public final int pulseLength;
+    public final HighLow syncFactor;
+    public final HighLow zero;
+    public final HighLow one;
+    public final boolean invertedSignal;
+
+    private ProtocolDefinition(Protocol p)
+    {
+        this.name = p.name();
+        this.protocol = p;
+        this.pulseLength = p.pulseLength;
+        this.syncFactor = p.syncFactor;
+        this.zero = p.zero;
+        this.one = p.one;
+        this.invertedSignal = p.invertedSignal;
+    }
+
+    /**
+     * ProtocolDefinition   -   Constructor for a protocol that is not built in
+     * @param name              -   unique name of the protocol
+     * @param pulseLength       -   pulse length in microseconds
+     * @param syncFactor        -   sync bit in pulses
+     * @param zero              -   "0" bit in pulses
+     * @param one               -   "1" bit in pulses
+     * @param invertedSignal    -   true if the high and low levels are inverted
+     */
+    public ProtocolDefinition(String name, int pulseLength, HighLow syncFactor, HighLow zero, HighLow one, boolean invertedSignal)
+    {
+        this.name = name;
+        this.protocol = null;
+        this.pulseLength = pulseLength;
+        this.syncFactor = syncFactor;
+        this.zero = zero;
+        this.one = one;
+        this.invertedSignal = invertedSignal;
+    }
+
+    private static ProtocolDefinition[] builtIn()
+    {
+        final Protocol[] protocols = Protocol.values();
+        ProtocolDefinition[] definitions = new ProtocolDefinition[protocols.length];
+        for (int i = 0; i < protocols.length; i++) definitions[i] = new ProtocolDefinition(protocols[i]);
+        return definitions;
+    }
+
+    /**
+     * builtIns -   the definitions of the Protocol constants, in declaration order
+     * @return  -   a new array, the definitions themselves are shared
+     */
+    public static ProtocolDefinition[] builtIns(){return BUILT_IN.clone();}
+
+    /**
+     * of   -   the shared definition of a built in protocol
+     * @param p -   the protocol
+     * @return  -   its definition
+     */
+    public static ProtocolDefinition of(Protocol p){return BUILT_IN[p.ordinal()];}
+
+    //getters
+    public String name(){return name;}
+    public boolean isBuiltIn(){return protocol != null;}
+    public Protocol getProtocol(){return protocol;}
+
+    /**
+     * sameTimings  -   true if the two definitions would decode the same frames
+     */
+    public boolean sameTimings(ProtocolDefinition d)
+    {
+        return pulseLength == d.pulseLength && invertedSignal == d.invertedSignal &&
+                same(syncFactor, d.syncFactor) && same(zero, d.zero) && same(one, d.one);
+    }
+
+    private static boolean same(HighLow a, HighLow b){return a.high == b.high && a.low == b.low;}
+
+    /**
+     * shortestDuration -   the shortest time between two edges this protocol sends
+     * @return          -   the duration in microseconds
+     */
+    public int shortestDuration()
+    {
+        int pulses = Integer.MAX_VALUE;
+        for (HighLow hl : new HighLow[]{syncFactor, zero, one})
+        {
+            if (hl.high > 0) pulses = Math.min(pulses, hl.high);
+            if (hl.low > 0) pulses = Math.min(pulses, hl.low);
+        }
+        return (pulses == Integer.MAX_VALUE) ? pulseLength : pulseLength * pulses;
+    }
+
+    /**
+     * format   -   the definition as a line of a protocol file
+     * @return  -   the line
+     */
+    public String format()
+    {
+        return String.format("%s,%d,%d,%d,%d,%d,%d,%d,%b", name, pulseLength, syncFactor.high, syncFactor.low,
+                zero.high, zero.low, one.high, one.low, invertedSignal);
+    }
+
+    /**
+     * parse    -   read a definition from a line of a protocol file
+     * @param line  -   the line
+     * @return      -   the definition
+     * @throws IllegalArgumentException if the line is not a valid definition
+     */
+    public static ProtocolDefinition parse(String line)
+    {
+        final String[] f = line.trim().split("\\s*,\\s*");
+        if (f.length != 9) throw new IllegalArgumentException("Expected 9 fields in protocol definition: " + line);
+        final int[] n = new int[7];
+        for (int i = 0; i < 7; i++)
+        {
+            n[i] = Integer.parseInt(f[i + 1]);
+            if (n[i] < ((i == 0) ? 1 : 0) || (i > 0 && n[i] > Byte.MAX_VALUE))
+                throw new IllegalArgumentException("Value out of range in protocol definition: " + line);
+        }
+        return new ProtocolDefinition(f[0], n[0], new HighLow((byte)n[1], (byte)n[2]),
+                new HighLow((byte)n[3], (byte)n[4]), new HighLow((byte)n[5], (byte)n[6]), Boolean.parseBoolean(f[8]));
+    }
+
+    /**
+     * load -   read the definitions in a protocol file
+     * @param file  -   the file, an empty list is returned if it does not exist
+     * @return      -   the definitions
+     * @throws IOException if the file cannot be read or has an invalid line
+     */
+    public static List<ProtocolDefinition> load(Path file) throws IOException
+    {
+        List<ProtocolDefinition> definitions = new ArrayList<>();
+        if (!Files.exists(file)) return definitions;
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8))
+        {
+            lineNumber++;
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) continue;
+            try
+            {
+                definitions.add(parse(line));
+            } catch (IllegalArgumentException e)
+            {
+                throw new IOException(file + " line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+        return definitions;
+    }
+
+    /**
+     * save -   write definitions to a protocol file, replacing it
+     * @param file          -   the file
+     * @param definitions   -   the definitions
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(Path file, List<ProtocolDefinition> definitions) throws IOException
+    {
+        try (BufferedWriter w = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+        {
+            w.write("# name,pulseLength,syncHigh,syncLow,zeroHigh,zeroLow,oneHigh,oneLow,invertedSignal");
+            w.newLine();
+            for (ProtocolDefinition d : definitions)
+            {
+                w.write(d.format());
+                w.newLine();
+            }
+        }
+    }
+
+    @Override
+    public String toString(){return format();}
+}
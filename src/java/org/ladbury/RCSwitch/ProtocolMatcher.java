@@ -0,0 +1,452 @@
+package org.ladbury.RCSwitch;
+
+import java.util.Arrays;
+
+/**
+ * ProtocolMatcher  -   decodes a frame against all the protocols in a single pass over its durations.
+ *                      Every protocol is run as a parallel state machine, a protocol is dropped as soon as a
+ *                      bit pair falls out of tolerance so noise frames are abandoned after a few edges.
+ *                      The expected timings of each protocol are precomputed from its definition, built in or
+ *                      learned, a matcher holds all its state in preallocated arrays and is not thread safe.
+ *                      Only the protocols whose sync ratio fits the first two durations are started, found with
+ *                      a SyncRatioIndex, so the cost of a frame does not grow with the number of protocols.
+ *                      A frame that fails can be refined: the pulse width is then estimated from all its data
+ *                      durations rather than from the sync alone, and the tolerance is set from its jitter.
+ *
+ * Usage: begin(first duration), feed(each later duration) while it returns true, then finish(),
+ *        and refine() the whole frame if that fails. Or decode() a whole frame, which does both,
+ *        the receivers and the bulk decoder decode through decode(FrameDurations) so they cannot drift apart.
+ */
+public class ProtocolMatcher
+{
+    public static final int MAX_PROTOCOLS = 64; // one bit each in the alive set
+    private static final int MIN_REFINE_BITS = 12;      // fewer data durations give too poor an estimate
+    private static final int MIN_REFINE_TOLERANCE = 15; // percent, the tolerance for a clean frame
+    private static final int MAX_REFINE_TOLERANCE = 35; // percent, wider lets protocols with similar bits be confused
+    private static final int JITTER_FACTOR = 4;         // tolerance as a multiple of the median jitter
+    private static final int SYNC_TOLERANCE = 25;       // percent, the sync need only roughly fit the estimated width
+    private static final int SCALE = 16;                // estimates are held in sixteenths of a microsecond
+
+    private final ProtocolDefinition[] protocols;
+
+    // per protocol constants, precomputed from the definitions
+    private final int[] syncLengthInPulses;
+    private final int[] firstDataTiming;
+
+    // per protocol state for the current frame
+    private final int[] pulseWidth;
+    private final int[] tolerance;
+    private final int[] zeroHigh;
+    private final int[] zeroLow;
+    private final int[] oneHigh;
+    private final int[] oneLow;
+    private final int[] pending;   // first duration of the bit pair being assembled
+    private final int[] bitCount;
+    private final long[][] bits;
+    private final int maxBits;
+    private SyncRatioIndex index;  // rebuilt when the tolerance changes
+    private final SyncRatioIndex refineIndex; // at the widest timings refine accepts
+    private long alive;            // bit set of the protocols still matching
+    private final int[] scratch;   // per duration estimates for refine
+    private final int[] multiples; // per duration pulse counts for refine
+    private final int[] copy;      // a frame read in place, copied for refine
+    private boolean refined;
+    private int frameTolerance;
+    private int syncDuration;
+    private int tolerancePercent;
+    private int edges;
+    private int matched;
+
+    /**
+     * ProtocolMatcher  -   Constructor for the built in protocols
+     * @param maxEdges  -   the largest number of durations in a frame
+     */
+    public ProtocolMatcher(int maxEdges)
+    {
+        this(maxEdges, ProtocolDefinition.builtIns());
+    }
+
+    /**
+     * ProtocolMatcher  -   Constructor
+     * @param maxEdges      -   the largest number of durations in a frame
+     * @param definitions   -   the protocols to match, earlier ones are preferred when several match
+     */
+    public ProtocolMatcher(int maxEdges, ProtocolDefinition[] definitions)
+    {
+        if (definitions.length > MAX_PROTOCOLS)
+        {
+            throw new IllegalArgumentException("At most " + MAX_PROTOCOLS + " protocols can be matched");
+        }
+        this.protocols = definitions.clone();
+        final int n = protocols.length;
+        this.syncLengthInPulses = new int[n];
+        this.firstDataTiming = new int[n];
+        for (int p = 0; p < n; p++)
+        {
+            //Assuming the longer pulse length is the pulse captured in the first duration
+            syncLengthInPulses[p] = Math.max(protocols[p].syncFactor.low, protocols[p].syncFactor.high);
+            /* For protocols that start low, the sync period looks like
+             *               _________
+             * _____________|         |XXXXXXXXXXXX|
+             *
+             * |--1st dur--|-2nd dur-|-Start data-|
+             *
+             * The 3rd saved duration starts the data.
+             *
+             * For protocols that start high, the sync period looks like
+             *
+             *  ______________
+             * |              |____________|XXXXXXXXXXXXX|
+             *
+             * |-filtered out-|--1st dur--|--Start data--|
+             *
+             * The 2nd saved duration starts the data
+             */
+            firstDataTiming[p] = (protocols[p].invertedSignal) ? (2) : (1);
+        }
+        this.pulseWidth = new int[n];
+        this.tolerance = new int[n];
+        this.zeroHigh = new int[n];
+        this.zeroLow = new int[n];
+        this.oneHigh = new int[n];
+        this.oneLow = new int[n];
+        this.pending = new int[n];
+        this.bitCount = new int[n];
+        this.maxBits = maxEdges / 2;
+        this.bits = new long[n][(maxBits + 63) >>> 6];
+        this.index = null;
+        this.refineIndex = new SyncRatioIndex(protocols, MAX_REFINE_TOLERANCE, SYNC_TOLERANCE);
+        this.scratch = new int[maxEdges];
+        this.multiples = new int[maxEdges];
+        this.copy = new int[maxEdges];
+        this.refined = false;
+        this.frameTolerance = 0;
+        this.alive = 0;
+        this.syncDuration = 0;
+        this.tolerancePercent = 0;
+        this.edges = 0;
+        this.matched = -1;
+    }
+
+    /**
+     * begin    -   start matching a new frame, the protocols are chosen when the second duration is fed
+     * @param syncDuration      -   the first duration of the frame, the long part of the sync
+     * @param tolerancePercent  -   percentage variation in pulse width allowed
+     */
+    public void begin(int syncDuration, int tolerancePercent)
+    {
+        if (index == null || index.getTolerancePercent() != tolerancePercent)
+        {
+            index = new SyncRatioIndex(protocols, tolerancePercent);
+        }
+        this.syncDuration = syncDuration;
+        this.tolerancePercent = tolerancePercent;
+        alive = 0;
+        edges = 1;
+        matched = -1;
+        refined = false;
+        frameTolerance = tolerancePercent;
+    }
+
+    /**
+     * start    -   start the protocols whose sync ratio fits the first two durations
+     * @param secondDuration    -   the second duration of the frame
+     */
+    private void start(int secondDuration)
+    {
+        alive = index.candidates(syncDuration, secondDuration);
+        long candidates = alive;
+        while (candidates != 0)
+        {
+            final int p = Long.numberOfTrailingZeros(candidates);
+            candidates &= candidates - 1;
+            final int width = syncDuration / syncLengthInPulses[p];
+            pulseWidth[p] = width;
+            tolerance[p] = width * tolerancePercent / 100;
+            zeroHigh[p] = width * protocols[p].zero.high;
+            zeroLow[p] = width * protocols[p].zero.low;
+            oneHigh[p] = width * protocols[p].one.high;
+            oneLow[p] = width * protocols[p].one.low;
+            bitCount[p] = 0;
+        }
+    }
+
+    /**
+     * feed -   match the next duration of the frame against all the protocols still alive
+     * @param duration  -   time since the previous edge in microseconds
+     * @return          -   false once every protocol has failed, further durations can be ignored
+     */
+    public boolean feed(int duration)
+    {
+        final int edge = edges++;
+        if (edge == 1) start(duration);
+        long candidates = alive;
+        while (candidates != 0)
+        {
+            final int p = Long.numberOfTrailingZeros(candidates);
+            candidates &= candidates - 1;
+            final int position = edge - firstDataTiming[p];
+            if (position < 0) continue; // still in the sync
+            if ((position & 1) == 0)
+            {
+                pending[p] = duration; // first half of a bit
+                continue;
+            }
+            //check each pair of durations matches the protocol definition for a bit
+            final int first = pending[p];
+            final int tol = tolerance[p];
+            if (Math.abs(first - zeroHigh[p]) < tol && Math.abs(duration - zeroLow[p]) < tol)
+            {
+                addBit(p, false);
+            } else if (Math.abs(first - oneHigh[p]) < tol && Math.abs(duration - oneLow[p]) < tol)
+            {
+                addBit(p, true);
+            } else
+            {
+                alive &= ~(1L << p); // Failed, out of spec bit pair cannot be translated
+            }
+        }
+        return alive != 0;
+    }
+
+    private void addBit(int p, boolean bit)
+    {
+        final int n = bitCount[p];
+        if (n >= maxBits)
+        {
+            alive &= ~(1L << p); // longer than any frame we can hold
+            return;
+        }
+        final long mask = 1L << (63 - (n & 63));
+        if (bit) bits[p][n >>> 6] |= mask;
+        else bits[p][n >>> 6] &= ~mask;
+        bitCount[p] = n + 1;
+    }
+
+    /**
+     * finish   -   choose the result at the end of the frame
+     * @param minBits   -   the fewest bits accepted as a message
+     * @return          -   true if a protocol matched, protocols are preferred in declaration order
+     */
+    public boolean finish(int minBits)
+    {
+        long candidates = alive;
+        while (candidates != 0)
+        {
+            final int p = Long.numberOfTrailingZeros(candidates);
+            candidates &= candidates - 1;
+            if (bitCount[p] >= minBits)
+            {
+                matched = p;
+                return true;
+            }
+        }
+        matched = -1;
+        return false;
+    }
+
+    /**
+     * decode   -   match a whole frame held in an array
+     * @param durations         -   the frame durations
+     * @param offset            -   position of the first duration
+     * @param count             -   number of durations in the frame
+     * @param tolerancePercent  -   percentage variation in pulse width allowed
+     * @param minBits           -   the fewest bits accepted as a message
+     * @return                  -   true if a protocol matched
+     */
+    public boolean decode(int[] durations, int offset, int count, int tolerancePercent, int minBits)
+    {
+        if (count < 1) return false;
+        begin(durations[offset], tolerancePercent);
+        int i = 1;
+        while (i < count && feed(durations[offset + i])) i++;
+        if (i == count && finish(minBits)) return true;
+        return refine(durations, offset, count, minBits);
+    }
+
+    /**
+     * decode   -   match a whole frame read where it is stored, the single pass reads it in place and
+     *              it is only copied if that fails and the frame is refined
+     * @param frame             -   the frame, at most the largest number of durations given to the constructor
+     * @param tolerancePercent  -   percentage variation in pulse width allowed
+     * @param minBits           -   the fewest bits accepted as a message
+     * @return                  -   true if a protocol matched, isRefined() tells whether refine was needed
+     */
+    public boolean decode(FrameDurations frame, int tolerancePercent, int minBits)
+    {
+        final int count = frame.size();
+        if (count < 1 || count > copy.length) return false;
+        begin(frame.duration(0), tolerancePercent);
+        int i = 1;
+        while (i < count && feed(frame.duration(i))) i++; // stops early once no protocol can match
+        if (i == count && finish(minBits)) return true;
+        for (int j = 0; j < count; j++) copy[j] = frame.duration(j);
+        return refine(copy, 0, count, minBits);
+    }
+
+    /**
+     * refine   -   decode a frame that failed the single pass, estimating the pulse width from the whole frame.
+     *              For each protocol in turn every data duration is matched to the nearest pulse count the
+     *              protocol allows, and the width is the median of the durations divided by their pulse counts,
+     *              so one distorted duration, such as a stretched sync, cannot move it. The tolerance is a
+     *              multiple of the median distance of the durations from their expected values, clamped to
+     *              MIN_REFINE_TOLERANCE to MAX_REFINE_TOLERANCE, so clean frames are held to tight timings and
+     *              only frames with evenly spread jitter get more room. Every bit pair must still fit, and when
+     *              several protocols fit the one whose sync and durations are closest to its definition is chosen.
+     *              Only the protocols a SyncRatioIndex at those widest timings allows are tried, and a frame too
+     *              short to refine is rejected before anything is sorted, so noise frames stay cheap.
+     * @param durations -   the frame durations
+     * @param offset    -   position of the first duration
+     * @param count     -   number of durations in the frame
+     * @param minBits   -   the fewest bits accepted as a message
+     * @return          -   true if a protocol matched
+     */
+    public boolean refine(int[] durations, int offset, int count, int minBits)
+    {
+        final int fewestBits = Math.max(minBits, MIN_REFINE_BITS);
+        int best = -1;
+        int bestError = Integer.MAX_VALUE;
+        int bestTolerance = 0;
+        // the data starts at the second duration at the earliest, so a shorter frame fails every protocol
+        long candidates = ((count - 1) / 2 < fewestBits) ? 0 : refineIndex.candidates(durations[offset], durations[offset + 1]);
+        while (candidates != 0) // in protocol order, so earlier ones are still preferred on a tie
+        {
+            final int p = Long.numberOfTrailingZeros(candidates);
+            candidates &= candidates - 1;
+            final int error = refineProtocol(p, durations, offset, count, fewestBits);
+            if (error >= 0 && error < bestError)
+            {
+                best = p;
+                bestError = error;
+                bestTolerance = frameTolerance;
+            }
+        }
+        matched = best;
+        refined = (best >= 0);
+        frameTolerance = bestTolerance;
+        return refined;
+    }
+
+    /**
+     * refineProtocol   -   try one protocol with the pulse width estimated from the whole frame
+     * @return          -   how far the frame is from the protocol, the sync and median errors in percent, or -1
+     */
+    private int refineProtocol(int p, int[] d, int offset, int count, int minBits)
+    {
+        final ProtocolDefinition def = protocols[p];
+        final int first = offset + firstDataTiming[p];
+        final int n = ((count - firstDataTiming[p]) / 2) * 2; // whole bit pairs, a trailing odd duration is the next sync
+        if (n / 2 < minBits || n / 2 > maxBits) return -1;
+
+        // estimate the width from the data, starting from the sync estimate and repeating once to settle
+        double width = (double)d[offset] / syncLengthInPulses[p];
+        for (int pass = 0; pass < 2; pass++)
+        {
+            for (int i = 0; i < n; i++)
+            {
+                final int duration = d[first + i];
+                final int k = ((i & 1) == 0) ? nearest(duration / width, def.zero.high, def.one.high)
+                                             : nearest(duration / width, def.zero.low, def.one.low);
+                if (k <= 0) return -1; // a protocol with an empty part cannot be estimated this way
+                multiples[i] = k;
+                scratch[i] = (int)Math.min(Integer.MAX_VALUE, (long)duration * SCALE / k);
+            }
+            width = median(scratch, n) / (double)SCALE;
+            if (width < 1) return -1;
+            // the sync must roughly fit, checked on each pass so most protocols are rejected cheaply
+            final double sync = syncLengthInPulses[p] * width;
+            if (Math.abs(d[offset] - sync) > sync * SYNC_TOLERANCE / 100) return -1;
+        }
+
+        // the tolerance follows the jitter, measured as the median distance from the expected durations
+        for (int i = 0; i < n; i++)
+        {
+            scratch[i] = (int)Math.min(Integer.MAX_VALUE, Math.round(Math.abs(d[first + i] - multiples[i] * width) * 100 / width));
+            if (scratch[i] >= MAX_REFINE_TOLERANCE) return -1; // cannot fit at any tolerance
+        }
+        final int jitter = median(scratch, n);
+        final int tolerancePercent = Math.max(MIN_REFINE_TOLERANCE, Math.min(MAX_REFINE_TOLERANCE, JITTER_FACTOR * jitter));
+        final double tol = width * tolerancePercent / 100;
+
+        // for inverted protocols the short part of the sync must fit as the data does
+        final double sync = syncLengthInPulses[p] * width;
+        final int syncError = (int)Math.round(Math.abs(d[offset] - sync) * 100 / sync);
+        if (def.invertedSignal && Math.abs(d[offset + 1] - Math.min(def.syncFactor.high, def.syncFactor.low) * width) >= tol)
+        {
+            return -1;
+        }
+        bitCount[p] = 0;
+        for (int i = 0; i < n; i += 2)
+        {
+            final int high = d[first + i];
+            final int low = d[first + i + 1];
+            if (Math.abs(high - def.zero.high * width) < tol && Math.abs(low - def.zero.low * width) < tol)
+            {
+                addBit(p, false);
+            } else if (Math.abs(high - def.one.high * width) < tol && Math.abs(low - def.one.low * width) < tol)
+            {
+                addBit(p, true);
+            } else
+            {
+                return -1;
+            }
+        }
+        pulseWidth[p] = (int)Math.round(width);
+        frameTolerance = tolerancePercent;
+        return syncError + jitter;
+    }
+
+    /**
+     * nearest  -   the pulse count closest to a measured one
+     */
+    private static int nearest(double pulses, int a, int b)
+    {
+        return (Math.abs(pulses - a) <= Math.abs(pulses - b)) ? a : b;
+    }
+
+    /**
+     * median   -   median of the first n values, they are reordered
+     */
+    private static int median(int[] values, int n)
+    {
+        Arrays.sort(values, 0, n);
+        return values[n / 2];
+    }
+
+    public int getProtocolCount(){return protocols.length;}
+    public ProtocolDefinition getDefinition(int index){return protocols[index];}
+
+    // getters for the matched result, valid after finish has returned true
+    public ProtocolDefinition getDefinition(){return protocols[matched];}
+    public int getIndex(){return matched;}
+    public Protocol getProtocol(){return protocols[matched].getProtocol();} // null for a learned protocol
+    public int getPulseWidth(){return pulseWidth[matched];}
+    public int getBitCount(){return bitCount[matched];}
+    public boolean isRefined(){return refined;} // true if the whole frame estimate was needed
+    public int getFrameTolerance(){return frameTolerance;} // percent, the tolerance the frame was decoded with
+    public boolean getBit(int i){return (bits[matched][i >>> 6] & (1L << (63 - (i & 63)))) != 0;}
+
+    /**
+     * copyBits -   copy the matched bits, packed most significant bit first
+     * @param dest  -   destination, must hold at least getBitCount() bits
+     */
+    public void copyBits(long[] dest)
+    {
+        System.arraycopy(bits[matched], 0, dest, 0, (bitCount[matched] + 63) >>> 6);
+    }
+
+    /**
+     * getCode  -   the matched bits as a number, only the last 64 bits are kept for longer messages
+     * @return  -   the code
+     */
+    public long getCode()
+    {
+        long code = 0;
+        final int n = bitCount[matched];
+        for (int i = Math.max(0, n - 64); i < n; i++)
+        {
+            code = (code << 1) | (getBit(i) ? 1 : 0);
+        }
+        return code;
+    }
+}
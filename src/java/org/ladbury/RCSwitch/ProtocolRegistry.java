@@ -0,0 +1,97 @@
+package org.ladbury.RCSwitch;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ProtocolRegistry -   the protocols known at run time, the built in ones followed by any loaded from protocol files
+ *                      or learned. Protocols are kept in the order they were registered, which is the order the
+ *                      matchers prefer them in, and a protocol whose name or timings are already registered is not
+ *                      added again. Matchers take a snapshot, so protocols registered later are decoded by matchers
+ *                      created after them. Thread safe.
+ */
+public class ProtocolRegistry
+{
+    private final List<ProtocolDefinition> definitions;
+
+    /**
+     * ProtocolRegistry -   Constructor, registers the built in protocols
+     */
+    public ProtocolRegistry()
+    {
+        this.definitions = new ArrayList<>();
+        for (ProtocolDefinition d : ProtocolDefinition.builtIns()) definitions.add(d);
+    }
+
+    /**
+     * load -   register the protocols in a protocol file
+     * @param file  -   the file, nothing is registered if it does not exist
+     * @return      -   the number of protocols registered, duplicates and those that do not fit are skipped
+     * @throws IOException if the file cannot be read or has an invalid line
+     */
+    public int load(Path file) throws IOException
+    {
+        int added = 0;
+        for (ProtocolDefinition d : ProtocolDefinition.load(file))
+        {
+            if (add(d)) added++;
+        }
+        return added;
+    }
+
+    /**
+     * add  -   register a protocol
+     * @param definition    -   the protocol
+     * @return              -   false if its name or timings are already registered or the registry is full
+     */
+    public synchronized boolean add(ProtocolDefinition definition)
+    {
+        if (definitions.size() >= ProtocolMatcher.MAX_PROTOCOLS) return false;
+        for (ProtocolDefinition d : definitions)
+        {
+            if (d.name().equals(definition.name()) || d.sameTimings(definition)) return false;
+        }
+        definitions.add(definition);
+        return true;
+    }
+
+    /**
+     * shortestDuration -   the shortest time between two edges any registered protocol sends
+     * @return          -   the duration in microseconds
+     */
+    public synchronized int shortestDuration()
+    {
+        int shortest = Integer.MAX_VALUE;
+        for (ProtocolDefinition d : definitions) shortest = Math.min(shortest, d.shortestDuration());
+        return shortest;
+    }
+
+    public synchronized int size(){return definitions.size();}
+    public synchronized boolean isFull(){return definitions.size() >= ProtocolMatcher.MAX_PROTOCOLS;}
+
+    /**
+     * find -   a registered protocol by name
+     * @param name  -   the name
+     * @return      -   the protocol, or null if none has the name
+     */
+    public synchronized ProtocolDefinition find(String name)
+    {
+        for (ProtocolDefinition d : definitions) if (d.name().equals(name)) return d;
+        return null;
+    }
+
+    /**
+     * toArray  -   a snapshot of the registered protocols, in registration order
+     * @return  -   a new array
+     */
+    public synchronized ProtocolDefinition[] toArray(){return definitions.toArray(new ProtocolDefinition[0]);}
+
+    /**
+     * newMatcher   -   a matcher for the protocols registered now
+     * @param maxEdges  -   the largest number of durations in a frame
+     * @return          -   the matcher
+     */
+    public ProtocolMatcher newMatcher(int maxEdges){return new ProtocolMatcher(maxEdges, toArray());}
+}
@@ -0,0 +1,21 @@
+package org.ladbury.RCSwitch;
+
+/**
+ * PulseOutput  -   where the RadioTransmitter sends its waveform.
+ *                  Implemented by a GPIO pin driving a radio, or by a loopback channel straight into a receiver
+ */
+public interface PulseOutput
+{
+    /**
+     * pulse    -   set the output level and hold it
+     * @param high      -   true for a high level
+     * @param micros    -   how long to hold the level in microseconds
+     */
+    void pulse(boolean high, int micros);
+
+    /**
+     * level    -   set the output level and return at once, for a caller that times the edges itself
+     * @param high  -   true for a high level
+     */
+    default void level(boolean high){pulse(high, 0);}
+}
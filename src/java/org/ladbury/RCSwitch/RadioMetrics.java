@@ -0,0 +1,116 @@
+package org.ladbury.RCSwitch;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RadioMetrics -   counters for a receiver or transmitter, readable at any time and through JMX once registered.
+ *                  Each counter is a LongAdder, so the listener, decoder and sending threads can all count without
+ *                  contending and without allocating. Per protocol decode counts are looked up by name, only the
+ *                  first decode of a protocol allocates its counter.
+ */
+public class RadioMetrics implements RadioMetricsMXBean
+{
+    private final LongAdder edgesSeen = new LongAdder();
+    private final LongAdder glitchesFiltered = new LongAdder();
+    private final LongAdder framesCaptured = new LongAdder();
+    private final LongAdder framesOverflowed = new LongAdder();
+    private final LongAdder framesDropped = new LongAdder();
+    private final LongAdder framesDecoded = new LongAdder();
+    private final LongAdder framesUndecoded = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> decodesByProtocol = new ConcurrentHashMap<>();
+    private final LongAdder transmissions = new LongAdder();
+    private final LongAdder airtimeMicros = new LongAdder();
+
+    // counting, called by the radio code
+    public void edgeSeen(){edgesSeen.increment();}
+    public void glitchFiltered(){glitchesFiltered.increment();}
+    public void frameCaptured(){framesCaptured.increment();}
+    public void frameOverflowed(){framesOverflowed.increment();}
+    public void frameDropped(){framesDropped.increment();}
+    public void frameUndecoded(){framesUndecoded.increment();}
+
+    /**
+     * frameDecoded -   count a decoded frame
+     * @param protocol  -   name of the protocol it was decoded with
+     */
+    public void frameDecoded(String protocol)
+    {
+        framesDecoded.increment();
+        LongAdder count = decodesByProtocol.get(protocol);
+        if (count == null) count = decodesByProtocol.computeIfAbsent(protocol, k -> new LongAdder());
+        count.increment();
+    }
+
+    /**
+     * transmitted  -   count a transmission
+     * @param micros    -   how long the radio was sending for
+     */
+    public void transmitted(long micros)
+    {
+        transmissions.increment();
+        airtimeMicros.add(micros);
+    }
+
+    @Override public long getEdgesSeen(){return edgesSeen.sum();}
+    @Override public long getGlitchesFiltered(){return glitchesFiltered.sum();}
+    @Override public long getFramesCaptured(){return framesCaptured.sum();}
+    @Override public long getFramesOverflowed(){return framesOverflowed.sum();}
+    @Override public long getFramesDropped(){return framesDropped.sum();}
+    @Override public long getFramesDecoded(){return framesDecoded.sum();}
+    @Override public long getFramesUndecoded(){return framesUndecoded.sum();}
+    @Override public long getTransmissions(){return transmissions.sum();}
+    @Override public long getAirtimeMicros(){return airtimeMicros.sum();}
+
+    @Override
+    public Map<String, Long> getDecodesByProtocol()
+    {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : decodesByProtocol.entrySet()) counts.put(e.getKey(), e.getValue().sum());
+        return counts;
+    }
+
+    /**
+     * reset    -   zero every counter, counts made during the reset may be kept or lost
+     */
+    @Override
+    public void reset()
+    {
+        for (LongAdder a : new LongAdder[]{edgesSeen, glitchesFiltered, framesCaptured, framesOverflowed, framesDropped,
+                framesDecoded, framesUndecoded, transmissions, airtimeMicros}) a.reset();
+        for (LongAdder a : decodesByProtocol.values()) a.reset();
+    }
+
+    /**
+     * register -   make the counters visible through JMX, as org.ladbury:type=RadioMetrics,name=<name>
+     * @param name  -   name of the radio, unique in the process
+     */
+    public void register(String name)
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("org.ladbury:type=RadioMetrics,name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+        } catch (JMException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("Edges: %d, Glitches: %d, Frames captured: %d, Overflowed: %d, Dropped: %d, " +
+                        "Decoded: %d %s, Undecoded: %d, Transmissions: %d, Airtime: %d us",
+                getEdgesSeen(), getGlitchesFiltered(), getFramesCaptured(), getFramesOverflowed(), getFramesDropped(),
+                getFramesDecoded(), getDecodesByProtocol(), getFramesUndecoded(), getTransmissions(), getAirtimeMicros());
+    }
+}
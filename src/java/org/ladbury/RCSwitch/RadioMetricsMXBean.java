@@ -0,0 +1,26 @@
+package org.ladbury.RCSwitch;
+
+import java.util.Map;
+
+/**
+ * RadioMetricsMXBean   -   the counters of a radio receiver or transmitter as seen through JMX.
+ *                          All counts are since the process started or the last reset.
+ */
+public interface RadioMetricsMXBean
+{
+    // receive
+    long getEdgesSeen();
+    long getGlitchesFiltered();
+    long getFramesCaptured();
+    long getFramesOverflowed();         // discarded for being longer than the largest frame
+    long getFramesDropped();            // discarded because the decoder was too far behind
+    long getFramesDecoded();
+    long getFramesUndecoded();
+    Map<String, Long> getDecodesByProtocol();
+
+    // transmit
+    long getTransmissions();
+    long getAirtimeMicros();
+
+    void reset();
+}
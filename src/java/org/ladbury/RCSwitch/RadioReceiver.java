@@ -37,7 +37,7 @@ import com.pi4j.io.gpio.event.GpioPinListenerDigital;
  * Foundation, In
  */
 
-public class RadioReceiver implements GpioPinListenerDigital
+public class RadioReceiver implements GpioPinListenerDigital,EdgeListener
 {
 
     // Protocol related variables
@@ -61,26 +61,34 @@ public class RadioReceiver implements GpioPinListenerDigital
     private /*unsigned*/ volatile int changeCount;
     private /*unsigned*/ volatile long lastTime;
     private /*unsigned*/ volatile int repeatCount;
-    private volatile long interruptCount;
+    private final RadioMetrics metrics;
+    private volatile boolean printCodes;
 
     // separationLimit: minimum microseconds between received codes, closer codes are ignored.
     // according to discussion on issue //#14 it might be more suitable to set the separation
     // limit to the same time as the 'low' part of the sync signal for the current protocol.
     private/*unsigned*/ final int[] timings;
+    private final ProtocolMatcher matcher;
 
+    /**
+     * RadioReceiver    -   Constructor
+     * @param receivePin    -   the pin the radio receiver is connected to, null to decode timings without a radio
+     */
     public RadioReceiver(GpioPinDigitalInput receivePin)
     {
-        System.out.println("RadioReceiver constructor " + receivePin.toString());
+        System.out.println("RadioReceiver constructor " + receivePin);
         this.timings = new int[RCSWITCH_MAX_CHANGES];
+        this.matcher = new ProtocolMatcher(RCSWITCH_MAX_CHANGES);
         this.changeCount = 0;
         this.lastTime = 0;
         this.repeatCount = 0;
-        this.interruptCount =0;
+        this.metrics = new RadioMetrics();
+        this.printCodes = true;
         this.nReceiverInterrupt = -1;
         this.setReceiveTolerance(60);
         this.nReceivedValue = 0;
         this.receivePin = receivePin;
-        this.pinNumber = Integer.parseInt(receivePin.getPin().getName().substring(5));
+        this.pinNumber = (receivePin == null) ? -1 : Integer.parseInt(receivePin.getPin().getName().substring(5));
         //this.receivePin.addListener(this);
     }
 
@@ -96,7 +104,7 @@ public class RadioReceiver implements GpioPinListenerDigital
 
     public void enableReceive()
     {
-        if (this.nReceiverInterrupt != -1)
+        if (this.nReceiverInterrupt != -1 && this.receivePin != null)
         {
             nReceivedValue = 0;
             nReceivedBitLength = 0;
@@ -112,7 +120,7 @@ public class RadioReceiver implements GpioPinListenerDigital
     public void disableReceive()
     {
         System.out.println("disableReceive: ");
-        this.receivePin.removeListener(this);
+        if (this.receivePin != null) this.receivePin.removeListener(this);
     }
 
     // getters
@@ -122,16 +130,25 @@ public class RadioReceiver implements GpioPinListenerDigital
     public /*unsigned*/ int getReceivedDelay(){return nReceivedDelay;}
     public /*unsigned*/ Protocol getReceivedProtocol(){return protocol;}
     public /*unsigned*/ int[] getReceivedRawData(){return timings;}
-    public long getInterruptCount(){return interruptCount;}
-    public void resetInterruptCount(){interruptCount=0;}
+    public long getInterruptCount(){return metrics.getEdgesSeen();}
+    public long getReceivedCount(){return metrics.getFramesDecoded();}
+    public RadioMetrics getMetrics(){return metrics;}
     public int getnReceiverInterrupt()
     {
         return nReceiverInterrupt;
     }
 
+    public boolean isPrintCodes(){return printCodes;}
+
     // setters
     public void resetAvailable(){nReceivedValue = 0;}
 
+    /**
+     * setPrintCodes    -   choose whether each decoded code is printed as it is received
+     * @param printCodes    -   false for benchmarks and load tests, where printing would cost more than decoding
+     */
+    public void setPrintCodes(boolean printCodes){this.printCodes = printCodes;}
+
     /**
      * Set Receiving Tolerance
      */
@@ -142,83 +159,49 @@ public class RadioReceiver implements GpioPinListenerDigital
         //#endif
     }
 
-    /* helper function for the receiveProtocol method */
+    /* helper function for comparing durations */
     static /*inline*/ /*unsigned*/ int diff(int A, int B){return Math.abs(A - B);}
 
     /**
-     * receiveProtocol
-     * @param protocol      -   Protocol to try
+     * receiveProtocol  -   Attempt to decode the timings with all protocols in a single pass
      * @param changeCount   -   Number of state changes in the message
-     * @return              -   true if using this protocol decoded a message
+     * @return              -   true if a protocol decoded the message
      */
-    boolean /*RECEIVE_ATTR*/ receiveProtocol(Protocol protocol, /*unsigned*/ int changeCount)
+    boolean /*RECEIVE_ATTR*/ receiveProtocol(/*unsigned*/ int changeCount)
     {
-        /*unsigned*/ long code = 0;
-        //Assuming the longer pulse length is the pulse captured in timings[0]
-        final /*unsigned*/ int syncLengthInPulses =  ((protocol.syncFactor.low) > (protocol.syncFactor.high)) ? (protocol.syncFactor.low) : (protocol.syncFactor.high);
-        final /*unsigned*/ int delay = timings[0] / syncLengthInPulses;
-        final /*unsigned*/ int delayTolerance = delay * nReceiveTolerance / 100;
-        //System.out.print(delay+" ");
-
-        /* For protocols that start low, the sync period looks like
-         *               _________
-         * _____________|         |XXXXXXXXXXXX|
-         *
-         * |--1st dur--|-2nd dur-|-Start data-|
-         *
-         * The 3rd saved duration starts the data.
-         *
-         * For protocols that start high, the sync period looks like
-         *
-         *  ______________
-         * |              |____________|XXXXXXXXXXXXX|
-         *
-         * |-filtered out-|--1st dur--|--Start data--|
-         *
-         * The 2nd saved duration starts the data
-         */
-        final /*unsigned*/ int firstDataTiming = (protocol.invertedSignal) ? (2) : (1);
-
-        for (/*unsigned*/ int i = firstDataTiming; i < changeCount - 1; i += 2)
+        if (changeCount <= 7) return false; // ignore very short transmissions: no device sends them, so this must be noise
+        if (!matcher.decode(timings, 0, changeCount, nReceiveTolerance, 0)) return false;
+        final long code = matcher.getCode();
+        this.nReceivedValue = code;
+        this.nReceivedBitLength = (changeCount - 1) / 2;
+        this.nReceivedDelay = matcher.getPulseWidth();
+        this.protocol = matcher.getProtocol();
+        metrics.frameDecoded(protocol.name());
+        if (printCodes)
         {
-            code <<= 1; //shift a zero into the least significant bit of the code
-            if (diff(timings[i], delay * protocol.zero.high) < delayTolerance &&
-                    diff(timings[i + 1], delay * protocol.zero.low) < delayTolerance) {
-                // zero - already done
-            } else if (diff(timings[i], delay * protocol.one.high) < delayTolerance &&
-                    diff(timings[i + 1], delay * protocol.one.low) < delayTolerance) {
-                // one
-                code |= 1; //change the 0 to a 1
-            } else {
-                // Failed
-                return false;
-            }
-        }
-
-        if (changeCount > 7) {    // ignore very short transmissions: no device sends them, so this must be noise
-            this.nReceivedValue = code;
-            this.nReceivedBitLength = (changeCount - 1) / 2;
-            this.nReceivedDelay = delay;
-            this.protocol = protocol;
             System.out.format("Protocol: %s Code %d 0X%x",protocol.name(),code,code);
             System.out.println();
-            return true;
         }
-        return false;
+        return true;
     }
 
     @Override
     public void handleGpioPinDigitalStateChangeEvent(GpioPinDigitalStateChangeEvent event) {
         this.event = event;
-        interruptCount++;
         //System.out.println(event.toString());
-        handleInterrupt();
+        onEdge(System.nanoTime()/1000, event.getState().isHigh()); //micros();
     }
 
-    private void /*RECEIVE_ATTR*/ handleInterrupt()
+    /**
+     * onEdge   -   the interrupt handler, called by the pin listener or directly to simulate a signal
+     * @param time  -   time of the edge in microseconds
+     * @param high  -   true if the pin is high after the edge, not used by the decoder
+     */
+    @Override
+    public void /*RECEIVE_ATTR*/ onEdge(long time, boolean high)
     {
-        final long time = System.nanoTime()/1000; //micros();
-        final /*unsigned*/ int duration = (int)(time - lastTime);
+        metrics.edgeSeen();
+        final /*unsigned*/ int duration = (int)Math.min(time - lastTime, Integer.MAX_VALUE);
 
         if (duration > nSeparationLimit)
         {
@@ -235,10 +218,7 @@ public class RadioReceiver implements GpioPinListenerDigital
                 //System.out.println("hI "+repeatCount+" "+changeCount+" "+Arrays.toString(timings));
                 if (repeatCount >= 1) //was 2 looks like garage controller only sends once
                 {
-                    for(Protocol pr: Protocol.values())
-                    {
-                        if (receiveProtocol(pr, changeCount)){break;}
-                    }
+                    receiveProtocol(changeCount);
                     //System.out.println();
                     repeatCount = 0;
                     for(int i = 0; i<RCSWITCH_MAX_CHANGES;i++){ timings[i]=0;}
@@ -1,8 +1,11 @@
 package org.ladbury.RCSwitch;
-import com.pi4j.io.gpio.*;
-import com.pi4j.wiringpi.Gpio;
+import com.pi4j.io.gpio.GpioPinDigitalOutput;
 import org.ladbury.sockets.Main;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
 /**
  * ported to java for Raspberry Pi by GJWood on 14/01/2017.
  *
@@ -39,13 +42,46 @@ public class RadioTransmitter
     private Protocol protocol;
     private int nRepeatTransmit;
     private int nTransmitterPin;
-    final private GpioPinDigitalOutput transmitterPin;
+    final private PulseOutput output;
+    final private TransmitEngine engine; // the only writer to the output
+    private int onTimeRepeats;
+    private /*unsigned*/ long lastCode;
+    private int lastLength;
+    private final LatencyHistogram sendLatency; // send called to last pulse sent
+    private final RadioMetrics metrics;
+    private final WaveformCache waveforms;
+    private static final int WAVEFORM_CACHE_SIZE = 64; // every code of a house full of sockets
 
     public RadioTransmitter(GpioPinDigitalOutput transmitterPin)
     {
-        this.transmitterPin = transmitterPin;
-        transmitterPin.setShutdownOptions(true, PinState.LOW, PinPullResistance.OFF);
+        this(new TransmitEngine(new GpioPulseOutput(transmitterPin)));
         this.nTransmitterPin = Integer.parseInt(transmitterPin.getPin().getName().substring(5));
+    }
+
+    /**
+     * RadioTransmitter -   Constructor
+     * @param output    -   where the waveform is sent, a radio or a loopback channel, timing its own pulses
+     */
+    public RadioTransmitter(PulseOutput output)
+    {
+        this(new TransmitEngine(output, false));
+    }
+
+    /**
+     * RadioTransmitter -   Constructor
+     * @param engine    -   sends the waveforms one at a time on its radio thread
+     */
+    public RadioTransmitter(TransmitEngine engine)
+    {
+        this.output = engine.getOutput();
+        this.engine = engine;
+        this.onTimeRepeats = 0;
+        this.nTransmitterPin = 0; // not a GPIO pin, but enabled
+        this.lastCode = 0;
+        this.lastLength = 0;
+        this.sendLatency = new LatencyHistogram("Command to transmitted");
+        this.metrics = new RadioMetrics();
+        this.waveforms = new WaveformCache(WAVEFORM_CACHE_SIZE);
         this.setRepeatTransmit(10);
         this.setProtocol(1);
     }
@@ -93,6 +129,17 @@ public class RadioTransmitter
         // TODO this.protocol.pulseLength = nPulseLength;
     }
 
+    public Protocol getProtocol(){return protocol;}
+    public /*unsigned*/ long getLastCode(){return lastCode;}
+    public int getLastLength(){return lastLength;}
+    public LatencyHistogram getSendLatency(){return sendLatency;} // how long each send occupied the radio
+    public RadioMetrics getMetrics(){return metrics;} // transmissions and the time spent sending them
+    public WaveformCache getWaveformCache(){return waveforms;}
+    public TransmitEngine getEngine(){return engine;}
+    public AirtimeBudget getAirtimeBudget(){return engine.getAirtimeBudget();}
+    public int getQueueDepth(){return engine.getQueueDepth();} // transmissions waiting or being sent
+    public int getOnTimeRepeats(){return onTimeRepeats;}
+
     /**
      * Sets Repeat Transmits
      */
@@ -101,6 +148,28 @@ public class RadioTransmitter
         this.nRepeatTransmit = nRepeatTransmit;
     }
 
+    /**
+     * setAirtimeBudget -   limit the airtime to a duty cycle, frames wait until they fit in the budget and bulk
+     *                      transmissions that would overrun it are refused
+     * @param budget    -   the budget, null for no limit
+     */
+    public void setAirtimeBudget(AirtimeBudget budget)
+    {
+        engine.setAirtimeBudget(budget);
+    }
+
+    /**
+     * setOnTimeRepeats -   stop repeating once this many repeats were sent with every edge on time, the repeat
+     *                      count is still the most sent. Only an engine timing the edges knows whether the
+     *                      repeats were on time, with an output timing its own pulses every repeat is sent.
+     * @param onTimeRepeats -   the repeats needed, 0 to always send every repeat
+     */
+    public void setOnTimeRepeats(int onTimeRepeats)
+    {
+        if (onTimeRepeats < 0) throw new IllegalArgumentException("On time repeats must not be negative: " + onTimeRepeats);
+        this.onTimeRepeats = onTimeRepeats;
+    }
+
     /**
      * Enable transmissions
      *
@@ -122,9 +191,22 @@ public class RadioTransmitter
     }
 
     /**
+     * Waits until the last repeat has been sent, a transmission that is refused or replaced is reported, not thrown.
      * @param sCodeWord   a binary code word consisting of the letter 0, 1
      */
     public void send(final String sCodeWord)
+    {
+        if (this.nTransmitterPin == -1)
+        return;
+        await(this.sendAsync(sCodeWord));
+    }
+
+    /**
+     * sendAsync    -   queue a binary code word to be sent and return at once
+     * @param sCodeWord   a binary code word consisting of the letter 0, 1
+     * @return          -   completes when the last repeat has been sent, see sendAsync(long, int)
+     */
+    public CompletableFuture<TransmitResult> sendAsync(final String sCodeWord)
     {
         // turn the tristate code word into the corresponding bit pattern, then send it
         /*unsigned*/ long code = 0;
@@ -135,54 +217,106 @@ public class RadioTransmitter
             code |= 1L;
             length++;
         }
-        this.send(code, length);
+        return this.sendAsync(code, length);
     }
 
     /**
      * Transmit the first 'length' bits of the integer 'code'. The
      * bits are sent from MSB to LSB, i.e., first the bit at position length-1,
      * then the bit at position length-2, and so on, till finally the bit at position 0.
+     * Waits until the last repeat has been sent, a transmission that is refused or replaced is reported, not thrown.
      */
     public void send(/*unsigned*/ long code, /*unsigned*/ int length)
     {
         if (this.nTransmitterPin == -1)
         return;
+        await(this.sendAsync(code, length));
+    }
+
+    /**
+     * await    -   wait for a transmission, keeping the blocking sends from throwing as they never did
+     * @param sent  -   the transmission
+     */
+    private static void await(CompletableFuture<TransmitResult> sent)
+    {
+        try
+        {
+            sent.join();
+        } catch (CancellationException e)
+        {
+            System.out.println("Transmission replaced by a later one for the same device");
+        } catch (CompletionException e)
+        {
+            System.out.println("Transmission not sent: " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * sendAsync    -   queue the first 'length' bits of 'code' as an interactive transmission and return at once
+     * @see #sendAsync(long, int, Object, TransmitPriority)
+     */
+    public CompletableFuture<TransmitResult> sendAsync(/*unsigned*/ long code, /*unsigned*/ int length)
+    {
+        return this.sendAsync(code, length, null, TransmitPriority.INTERACTIVE);
+    }
+
+    /**
+     * sendAsync    -   queue the first 'length' bits of 'code' to be sent with the current protocol and repeats,
+     *                  and return at once. Interactive transmissions are sent before bulk ones, each lane in the
+     *                  order it was queued.
+     * @param code      -   the code, sent most significant bit first
+     * @param length    -   number of bits of the code sent
+     * @param target    -   the device the code commands, replaces an earlier transmission for an equal target still
+     *                      waiting or being sent, null if it replaces nothing
+     * @param priority  -   the lane it waits in
+     * @return          -   the engine's future, completes on the radio thread when the last repeat has been sent, with
+     *                      the completion time and the queue depth it met. Cancelled if it is replaced before it starts,
+     *                      and cancelling it withdraws the transmission. Fails with IllegalStateException if transmit
+     *                      is disabled, or RejectedExecutionException if the lane is full or the airtime budget refuses it
+     */
+    public CompletableFuture<TransmitResult> sendAsync(/*unsigned*/ long code, /*unsigned*/ int length, Object target, TransmitPriority priority)
+    {
+        if (this.nTransmitterPin == -1)
+        return TransmitEngine.failed(new IllegalStateException("Transmit disabled"));
+        final long started = System.nanoTime();
+        this.lastCode = code;
+        this.lastLength = length;
 
     //#if not defined( RCSwitchDisableReceiving )
         // make sure the receiver is disabled while we transmit
-        int nReceiverInterrupt_backup = Main.getReceiver().getnReceiverInterrupt();
+        final RadioReceiver receiver = Main.getReceiver();
+        int nReceiverInterrupt_backup = (receiver == null) ? -1 : receiver.getnReceiverInterrupt();
         if (nReceiverInterrupt_backup != -1) {
             //Main.getReceiver().disableReceive();
         }
     //#endif
 
-        for (int nRepeat = 0; nRepeat < nRepeatTransmit; nRepeat++) {
-            for (int i = length-1; i >= 0; i--) {
-                if ((code & (1L << i))>0)
-                    this.transmit(protocol.one);
-          else
-                this.transmit(protocol.zero);
+        // compiled once per code, each repeat only replays the pulses
+        final Waveform waveform = waveforms.get(protocol, code, length);
+        final CompletableFuture<TransmitResult> sent = engine.submit(waveform, nRepeatTransmit, onTimeRepeats, target, priority);
+        sent.whenComplete((result, e) -> { // a side effect only, the caller is given the engine's own future
+            // enable receiver again if we just disabled it
+            if (nReceiverInterrupt_backup != -1) {
+                //Main.getReceiver().enableReceive(nReceiverInterrupt_backup);
             }
-            this.transmit(protocol.syncFactor);
-        }
-        // enable receiver again if we just disabled it
-        if (nReceiverInterrupt_backup != -1) {
-            //Main.getReceiver().enableReceive(nReceiverInterrupt_backup);
-        }
+            if (result != null) {
+                sendLatency.recordSince(started);
+                metrics.transmitted(result.getAirtimeMicros());
+            }
+        });
+        return sent;
     }
 
     /**
      * Transmit a single high-low pulse.
+     * Writes straight to the output rather than through the transmit queue, so only use it while nothing is queued.
      */
     public void transmit(HighLow pulses)
     {
-        PinState firstLogicLevel = (this.protocol.invertedSignal) ? PinState.LOW : PinState.HIGH;
-        PinState secondLogicLevel = (this.protocol.invertedSignal) ? PinState.HIGH : PinState.LOW;
+        final boolean firstLogicLevel = !this.protocol.invertedSignal;
 
-        this.transmitterPin.setState( firstLogicLevel);
-        Gpio.delayMicroseconds( this.protocol.pulseLength * pulses.high);
-        this.transmitterPin.setState(secondLogicLevel);
-        Gpio.delayMicroseconds( this.protocol.pulseLength * pulses.low);
+        this.output.pulse(firstLogicLevel, this.protocol.pulseLength * pulses.high);
+        this.output.pulse(!firstLogicLevel, this.protocol.pulseLength * pulses.low);
     }
 
 //#endif
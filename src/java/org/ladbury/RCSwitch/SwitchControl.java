@@ -1,6 +1,9 @@
 package org.ladbury.RCSwitch;
 
 import org.ladbury.RCSwitch.CodeWords;
+import org.ladbury.sockets.Main;
+
+import java.util.concurrent.CompletableFuture;
 
 /**
  * ported to java for Raspberry Pi by GJWood on 14/01/2017.
@@ -34,8 +37,52 @@ import org.ladbury.RCSwitch.CodeWords;
  * Foundation, In
  */
 
+/**
+ * SwitchControl    -   switch remote sockets on and off. Each command is queued on the transmitter and the call
+ *                      returns at once, the future completes when it has been sent. A command replaces one for the
+ *                      same socket that is still waiting or being sent, so only the latest state is sent.
+ */
 public class SwitchControl
 {
+    private final RadioTransmitter transmitter; // null to use the application's transmitter
+    private final TransmitPriority priority;
+
+    public SwitchControl()
+    {
+        this(null, TransmitPriority.INTERACTIVE);
+    }
+
+    /**
+     * SwitchControl    -   Constructor, for interactive commands
+     * @param transmitter   -   the transmitter the commands are sent with
+     */
+    public SwitchControl(RadioTransmitter transmitter)
+    {
+        this(transmitter, TransmitPriority.INTERACTIVE);
+    }
+
+    /**
+     * SwitchControl    -   Constructor
+     * @param transmitter   -   the transmitter the commands are sent with, null for the application's transmitter
+     * @param priority      -   the transmit lane the commands wait in, BULK for scheduled or automated commands
+     */
+    public SwitchControl(RadioTransmitter transmitter, TransmitPriority priority)
+    {
+        this.transmitter = transmitter;
+        this.priority = priority;
+    }
+
+    public TransmitPriority getPriority(){return priority;}
+
+    /**
+     * send -   queue a command
+     * @param cw        -   the code word
+     * @param target    -   the socket it switches, the code word type and address without the on / off state
+     */
+    private CompletableFuture<TransmitResult> send(CodeWord cw, String target)
+    {
+        return CodeWords.sendTriState(cw, (transmitter == null) ? Main.getTransmitter() : transmitter, target, priority);
+    }
 
     /**
      * Switch a remote switch on (Type D REV)
@@ -43,9 +90,9 @@ public class SwitchControl
      * @param sGroup        Code of the switch group (A,B,C,D)
      * @param nDevice       Number of the switch itself (1..3)
      */
-    public void switchOn(char sGroup, int nDevice)
+    public CompletableFuture<TransmitResult> switchOn(char sGroup, int nDevice)
     {
-        CodeWords.sendTriState( CodeWords.getCodeWordD(sGroup, nDevice, true) );
+        return send( CodeWords.getCodeWordD(sGroup, nDevice, true), "D" + Character.toUpperCase(sGroup) + nDevice ); // a and A are the same group
     }
 
     /**
@@ -54,9 +101,9 @@ public class SwitchControl
      * @param sGroup        Code of the switch group (A,B,C,D)
      * @param nDevice       Number of the switch itself (1..3)
      */
-    public void switchOff(char sGroup, int nDevice)
+    public CompletableFuture<TransmitResult> switchOff(char sGroup, int nDevice)
     {
-        CodeWords.sendTriState( CodeWords.getCodeWordD(sGroup, nDevice, false) );
+        return send( CodeWords.getCodeWordD(sGroup, nDevice, false), "D" + Character.toUpperCase(sGroup) + nDevice ); // a and A are the same group
     }
 
     /**
@@ -66,9 +113,9 @@ public class SwitchControl
      * @param nGroup   Number of group (1..4)
      * @param nDevice  Number of device (1..4)
      */
-    public void switchOn(char sFamily, int nGroup, int nDevice)
+    public CompletableFuture<TransmitResult> switchOn(char sFamily, int nGroup, int nDevice)
     {
-        CodeWords.sendTriState( CodeWords.getCodeWordC(sFamily, nGroup, nDevice, true) );
+        return send( CodeWords.getCodeWordC(sFamily, nGroup, nDevice, true), "C" + Character.toUpperCase(sFamily) + nGroup + "/" + nDevice );
     }
 
     /**
@@ -78,9 +125,9 @@ public class SwitchControl
      * @param nGroup   Number of group (1..4)
      * @param nDevice  Number of device (1..4)
      */
-    public void switchOff(char sFamily, int nGroup, int nDevice)
+    public CompletableFuture<TransmitResult> switchOff(char sFamily, int nGroup, int nDevice)
     {
-        CodeWords.sendTriState( CodeWords.getCodeWordC(sFamily, nGroup, nDevice, false) );
+        return send( CodeWords.getCodeWordC(sFamily, nGroup, nDevice, false), "C" + Character.toUpperCase(sFamily) + nGroup + "/" + nDevice );
     }
 
     /**
@@ -89,9 +136,9 @@ public class SwitchControl
      * @param nAddressCode  Number of the switch group (1..4)
      * @param nChannelCode  Number of the switch itself (1..4)
      */
-    public void switchOn(int nAddressCode, int nChannelCode)
+    public CompletableFuture<TransmitResult> switchOn(int nAddressCode, int nChannelCode)
     {
-        CodeWords.sendTriState( CodeWords.getCodeWordB(nAddressCode, nChannelCode, true) );
+        return send( CodeWords.getCodeWordB(nAddressCode, nChannelCode, true), "B" + nAddressCode + "/" + nChannelCode );
     }
 
     /**
@@ -100,9 +147,9 @@ public class SwitchControl
      * @param nAddressCode  Number of the switch group (1..4)
      * @param nChannelCode  Number of the switch itself (1..4)
      */
-    public void switchOff(int nAddressCode, int nChannelCode)
+    public CompletableFuture<TransmitResult> switchOff(int nAddressCode, int nChannelCode)
     {
-        CodeWords.sendTriState( CodeWords.getCodeWordB(nAddressCode, nChannelCode, false) );
+        return send( CodeWords.getCodeWordB(nAddressCode, nChannelCode, false), "B" + nAddressCode + "/" + nChannelCode );
     }
 
     /**
@@ -112,10 +159,10 @@ public class SwitchControl
      * @param sGroup        Code of the switch group (refers to DIP switches 1..5 where "1" = on and "0" = off, if all DIP switches are on it's "11111")
      * @param nChannel      Number of the switch itself (1..5)
      */
-    public void switchOn(final String sGroup, int nChannel)
+    public CompletableFuture<TransmitResult> switchOn(final String sGroup, int nChannel)
     {
         final /*char* */ String[] code = { "00000", "10000", "01000", "00100", "00010", "00001" };
-        this.switchOn(sGroup, code[nChannel]);
+        return this.switchOn(sGroup, code[nChannel]);
     }
 
     /**
@@ -125,10 +172,10 @@ public class SwitchControl
      * @param sGroup        Code of the switch group (refers to DIP switches 1..5 where "1" = on and "0" = off, if all DIP switches are on it's "11111")
      * @param nChannel      Number of the switch itself (1..5)
      */
-    public void switchOff(final String sGroup, int nChannel)
+    public CompletableFuture<TransmitResult> switchOff(final String sGroup, int nChannel)
     {
         final /*char* */ String[]code = { "00000", "10000", "01000", "00100", "00010", "00001" };
-        this.switchOff(sGroup, code[nChannel]);
+        return this.switchOff(sGroup, code[nChannel]);
     }
 
     /**
@@ -137,9 +184,9 @@ public class SwitchControl
      * @param sGroup        Code of the switch group (refers to DIP switches 1..5 where "1" = on and "0" = off, if all DIP switches are on it's "11111")
      * @param sDevice       Code of the switch device (refers to DIP switches 6..10 (A..E) where "1" = on and "0" = off, if all DIP switches are on it's "11111")
      */
-    public void switchOn(final String sGroup, final String sDevice)
+    public CompletableFuture<TransmitResult> switchOn(final String sGroup, final String sDevice)
     {
-        CodeWords.sendTriState( CodeWords.getCodeWordA(sGroup, sDevice, true) );
+        return send( CodeWords.getCodeWordA(sGroup, sDevice, true), "A" + sGroup + "/" + sDevice );
     }
 
     /**
@@ -148,8 +195,8 @@ public class SwitchControl
      * @param sGroup        Code of the switch group (refers to DIP switches 1..5 where "1" = on and "0" = off, if all DIP switches are on it's "11111")
      * @param sDevice       Code of the switch device (refers to DIP switches 6..10 (A..E) where "1" = on and "0" = off, if all DIP switches are on it's "11111")
      */
-    public void switchOff(final String sGroup, final String sDevice)
+    public CompletableFuture<TransmitResult> switchOff(final String sGroup, final String sDevice)
     {
-        CodeWords.sendTriState( CodeWords.getCodeWordA(sGroup, sDevice, false) );
+        return send( CodeWords.getCodeWordA(sGroup, sDevice, false), "A" + sGroup + "/" + sDevice );
     }
 }
@@ -0,0 +1,109 @@
+package org.ladbury.RCSwitch;
+
+/**
+ * SyncRatioIndex   -   finds the protocols a frame could belong to from its first two durations.
+ *                      The first duration is the long part of the sync. The second is the short part of the sync
+ *                      for inverted protocols, and the high part of the first data bit for the others. Their ratio
+ *                      is quantised into quarter octave buckets, and each bucket holds the set of protocols that
+ *                      can produce a ratio in it at the given tolerance. A lookup is a single array access however
+ *                      many protocols there are, the matcher then only runs the protocols in the set.
+ *                      Immutable once built.
+ */
+class SyncRatioIndex
+{
+    private static final int BUCKETS = 64;         // ratios from 1/16 to 2048, larger ones share the last bucket
+    private static final int RATIO_SCALE = 16;     // ratios are held in sixteenths
+
+    private final long[] candidates;               // per bucket, bit set of the protocols that can match
+    private final int tolerancePercent;
+
+    /**
+     * SyncRatioIndex   -   Constructor, for a sync measured exactly as the pulse width is taken from it
+     * @param protocols         -   the protocols, at most 64, indexed by their position
+     * @param tolerancePercent  -   percentage variation in pulse width allowed
+     */
+    SyncRatioIndex(ProtocolDefinition[] protocols, int tolerancePercent)
+    {
+        this(protocols, tolerancePercent, 0);
+    }
+
+    /**
+     * SyncRatioIndex   -   Constructor
+     * @param protocols             -   the protocols, at most 64, indexed by their position
+     * @param tolerancePercent      -   percentage variation in pulse width allowed in the second duration
+     * @param syncTolerancePercent  -   percentage variation allowed in the sync, when the pulse width is estimated
+     *                                  from the rest of the frame rather than from the sync
+     */
+    SyncRatioIndex(ProtocolDefinition[] protocols, int tolerancePercent, int syncTolerancePercent)
+    {
+        this.tolerancePercent = tolerancePercent;
+        this.candidates = new long[BUCKETS];
+        final double tolerance = tolerancePercent / 100.0;
+        final double syncTolerance = syncTolerancePercent / 100.0;
+        for (int p = 0; p < protocols.length; p++)
+        {
+            final ProtocolDefinition d = protocols[p];
+            final int syncLength = Math.max(d.syncFactor.high, d.syncFactor.low);
+            if (d.invertedSignal)
+            {
+                register(p, syncLength, Math.min(d.syncFactor.high, d.syncFactor.low), tolerance, syncTolerance);
+            } else
+            {
+                register(p, syncLength, d.zero.high, tolerance, syncTolerance);
+                register(p, syncLength, d.one.high, tolerance, syncTolerance);
+            }
+        }
+    }
+
+    /**
+     * register -   add a protocol to every bucket its ratio can fall in
+     * @param p             -   position of the protocol
+     * @param syncLength    -   pulses in the first duration, the pulse width is measured from it
+     * @param second        -   pulses in the second duration
+     * @param tolerance     -   variation allowed in the second duration, as a fraction of the pulse width
+     * @param syncTolerance -   variation allowed in the sync, as a fraction of its length
+     */
+    private void register(int p, int syncLength, int second, double tolerance, double syncTolerance)
+    {
+        final int lowest = ratioBucket(syncLength * (1 - syncTolerance) / (second + tolerance));
+        final int highest = (second > tolerance) ? ratioBucket(syncLength * (1 + syncTolerance) / (second - tolerance)) : BUCKETS - 1;
+        // one bucket either side covers the rounding of the pulse width in the matcher
+        for (int b = Math.max(0, lowest - 1); b <= Math.min(BUCKETS - 1, highest + 1); b++)
+        {
+            candidates[b] |= 1L << p;
+        }
+    }
+
+    int getTolerancePercent(){return tolerancePercent;}
+
+    /**
+     * candidates   -   the protocols a frame starting with these durations could belong to
+     * @param syncDuration      -   the first duration of the frame
+     * @param secondDuration    -   the second duration of the frame
+     * @return                  -   bit set of protocol positions
+     */
+    long candidates(int syncDuration, int secondDuration)
+    {
+        if (secondDuration <= 0) return candidates[BUCKETS - 1];
+        return candidates[bucket((long)syncDuration * RATIO_SCALE / secondDuration)];
+    }
+
+    private static int ratioBucket(double ratio)
+    {
+        return bucket((long)(ratio * RATIO_SCALE));
+    }
+
+    /**
+     * bucket   -   quarter octave bucket of a ratio, the octave from the leading bit and the quarter from the
+     *              next two bits, so no logarithm is needed
+     * @param scaledRatio   -   the ratio in sixteenths
+     * @return              -   the bucket
+     */
+    private static int bucket(long scaledRatio)
+    {
+        if (scaledRatio < 1) return 0;
+        final int octave = 63 - Long.numberOfLeadingZeros(scaledRatio);
+        final int quarter = (octave >= 2) ? (int)((scaledRatio >>> (octave - 2)) & 3) : (int)((scaledRatio << (2 - octave)) & 3);
+        return Math.min(BUCKETS - 1, octave * 4 + quarter);
+    }
+}
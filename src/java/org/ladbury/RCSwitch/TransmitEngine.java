@@ -0,0 +1,727 @@
+package org.ladbury.RCSwitch;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * TransmitEngine   -   the only writer to a radio, sends the waveforms submitted to it one at a time on its own thread.
+ *                      Submitting queues the waveform and returns a future at once, so callers never wait for the
+ *                      radio and transmissions from different threads never interleave. Each priority lane is
+ *                      bounded, a transmission submitted to a full lane fails rather than making the caller wait.
+ *                      Interactive transmissions are sent before bulk ones, and a bulk transmission being sent is
+ *                      paused between its frames when an interactive one arrives, then finishes its repeats later.
+ *                      A transmission for a target replaces any earlier one for the same target that is still
+ *                      waiting or being sent, so only the latest command to a device uses the radio.
+ *                      When timing the edges, each is set at an absolute deadline: the start of the transmission plus
+ *                      the lengths of the pulses before the edge, so a late edge shortens the pulse it ends rather
+ *                      than delaying every edge after it. The thread sleeps until just before each deadline and spins
+ *                      for the rest, sleeping alone wakes too late and spinning alone would hold a core for the whole
+ *                      transmission. How late each edge was set is recorded, and a frame whose latest edge is within
+ *                      the tolerance is counted as sent on time, so a transmission can stop once enough of its repeats
+ *                      were sent on time rather than always sending every repeat. An edge later than the tolerance
+ *                      abandons its frame, rather than setting the edges after it in a rush to catch up, and the
+ *                      repeat is started again.
+ *                      Otherwise the output times its own pulses, as a loopback channel on a simulated clock does.
+ *                      With an AirtimeBudget each frame waits until it fits in the duty cycle budget, bulk
+ *                      transmissions that would overrun the budget are refused, and the bulk transmission sent next is
+ *                      the one for the device that has used the least airtime, so one busy device cannot starve the rest.
+ */
+public class TransmitEngine
+{
+    public static final int DEFAULT_SPIN_MICROS = 200;     // longer than the sleep overshoot of a loaded Pi
+    public static final int DEFAULT_TOLERANCE_PERCENT = 10; // of the protocol pulse length, receivers allow far more
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;    // a burst of commands to every socket in a house
+    private static final long START_LEAD = TimeUnit.MICROSECONDS.toNanos(100); // time to reach the first deadline
+    private static final int MAX_RESTARTS = 3;  // of a frame abandoned for a late edge, then the repeat is given up
+
+    /**
+     * Job  -   a waveform waiting to be sent, how much of it has been sent and the future waiting for it
+     */
+    private static class Job
+    {
+        final Waveform waveform;
+        final int repeats;
+        final int onTimeRepeats;
+        final Object target;
+        final TransmitPriority priority;
+        final int queuedAhead;
+        final long submitted;
+        final CompletableFuture<TransmitResult> future;
+        volatile boolean superseded;    // a later job for the target replaced it while it was being sent
+        boolean started;                // the rest is only changed by the radio thread
+        long startedNanos;
+        long deferredNanos;
+        volatile int sent;              // read by estimates
+        int onTime;
+        int preempted;
+
+        Job(Waveform waveform, int repeats, int onTimeRepeats, Object target, TransmitPriority priority, int queuedAhead)
+        {
+            this.waveform = waveform;
+            this.repeats = repeats;
+            this.onTimeRepeats = onTimeRepeats;
+            this.target = target;
+            this.priority = priority;
+            this.queuedAhead = queuedAhead;
+            this.submitted = System.nanoTime();
+            this.future = new CompletableFuture<>();
+            this.superseded = false;
+            this.started = false;
+            this.startedNanos = 0;
+            this.deferredNanos = 0;
+            this.sent = 0;
+            this.onTime = 0;
+            this.preempted = 0;
+        }
+
+        TransmitResult result()
+        {
+            final long now = System.nanoTime();
+            return new TransmitResult(waveform, sent, queuedAhead, preempted, deferredNanos, submitted, started ? startedNanos : now, now);
+        }
+
+        long remainingMicros(){return waveform.getAirtimeMicros() * (repeats - sent);}
+    }
+
+    private final PulseOutput output;
+    private final boolean timeEdges;
+    private final long spinNanos;
+    private final int tolerancePercent;
+    private final int laneCapacity;
+    private final ReentrantLock lock;
+    private final Condition queued;
+    private final ArrayDeque<Job> interactive;      // the lanes, targets and current job are guarded by the lock
+    private final ArrayDeque<Job> bulk;
+    private final HashMap<Object, Job> targets;     // the latest job for each target, waiting or being sent
+    private Job current;
+    private volatile int interactiveWaiting;        // read between frames without the lock
+    private final LatencyHistogram edgeError;       // how late each edge was set
+    private final LatencyHistogram frameError;      // the latest edge of each frame
+    private final LongAdder frames;
+    private final LongAdder lateFrames;
+    private final LongAdder aborts;
+    private final LongAdder rejected;
+    private final LongAdder coalesced;
+    private final LongAdder preemptions;
+    private final LongAdder deferrals;
+    private volatile AirtimeBudget budget;          // null for no duty cycle limit
+    private final Thread thread;
+    private volatile boolean running;
+
+    /**
+     * TransmitEngine   -   Constructor, timing the edges with the default spin time and tolerance
+     * @param output    -   where the edges are set, a radio or a loopback channel
+     */
+    public TransmitEngine(PulseOutput output)
+    {
+        this(output, true);
+    }
+
+    /**
+     * TransmitEngine   -   Constructor, with the default spin time, tolerance and queue capacity
+     * @param output    -   where the waveform is sent, a radio or a loopback channel
+     * @param timeEdges -   true to set each edge at its deadline, false for an output that times its own pulses
+     */
+    public TransmitEngine(PulseOutput output, boolean timeEdges)
+    {
+        this(output, timeEdges, DEFAULT_SPIN_MICROS, DEFAULT_TOLERANCE_PERCENT, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * TransmitEngine   -   Constructor, timing the edges with the default queue capacity
+     * @param output            -   where the edges are set, a radio or a loopback channel
+     * @param spinMicros        -   how long before a deadline the thread stops sleeping and spins
+     * @param tolerancePercent  -   how late an edge can be, as a percentage of the pulse length, for its frame to be on time
+     */
+    public TransmitEngine(PulseOutput output, int spinMicros, int tolerancePercent)
+    {
+        this(output, true, spinMicros, tolerancePercent, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * TransmitEngine   -   Constructor, starts the radio thread
+     * @param output            -   where the waveform is sent, a radio or a loopback channel
+     * @param timeEdges         -   true to set each edge at its deadline, false for an output that times its own pulses
+     * @param spinMicros        -   how long before a deadline the thread stops sleeping and spins
+     * @param tolerancePercent  -   how late an edge can be, as a percentage of the pulse length, for its frame to be on time
+     * @param queueCapacity     -   the most transmissions that can wait in each priority lane
+     */
+    public TransmitEngine(PulseOutput output, boolean timeEdges, int spinMicros, int tolerancePercent, int queueCapacity)
+    {
+        if (spinMicros < 0) throw new IllegalArgumentException("Spin time must not be negative: " + spinMicros);
+        if (tolerancePercent < 0) throw new IllegalArgumentException("Tolerance must not be negative: " + tolerancePercent);
+        if (queueCapacity < 1) throw new IllegalArgumentException("Queue capacity must be at least 1: " + queueCapacity);
+        this.output = output;
+        this.timeEdges = timeEdges;
+        this.spinNanos = TimeUnit.MICROSECONDS.toNanos(spinMicros);
+        this.tolerancePercent = tolerancePercent;
+        this.laneCapacity = queueCapacity;
+        this.lock = new ReentrantLock();
+        this.queued = lock.newCondition();
+        this.interactive = new ArrayDeque<>();
+        this.bulk = new ArrayDeque<>();
+        this.targets = new HashMap<>();
+        this.current = null;
+        this.interactiveWaiting = 0;
+        this.edgeError = new LatencyHistogram("Transmit edge error");
+        this.frameError = new LatencyHistogram("Transmit frame error");
+        this.frames = new LongAdder();
+        this.lateFrames = new LongAdder();
+        this.aborts = new LongAdder();
+        this.rejected = new LongAdder();
+        this.coalesced = new LongAdder();
+        this.preemptions = new LongAdder();
+        this.deferrals = new LongAdder();
+        this.budget = null;
+        this.running = true;
+        this.thread = new Thread(this::run, "Transmitter");
+        this.thread.setDaemon(true);
+        this.thread.setPriority(Thread.MAX_PRIORITY);
+        this.thread.start();
+    }
+
+    /**
+     * submit   -   queue an interactive waveform, with no target, to be sent repeatedly and return at once
+     * @see #submit(Waveform, int, int, Object, TransmitPriority)
+     */
+    public CompletableFuture<TransmitResult> submit(Waveform waveform, int repeats, int onTimeRepeats)
+    {
+        return submit(waveform, repeats, onTimeRepeats, null, TransmitPriority.INTERACTIVE);
+    }
+
+    /**
+     * submit   -   queue a waveform to be sent repeatedly and return at once
+     * @param waveform      -   the waveform
+     * @param repeats       -   the most times it is sent
+     * @param onTimeRepeats -   stop once this many repeats were sent on time, 0 to send every repeat
+     * @param target        -   the device it commands, an earlier transmission for an equal target is replaced,
+     *                          null if it replaces nothing
+     * @param priority      -   the lane it waits in
+     * @return              -   completes on the radio thread when the last pulse has ended, so anything slow done on
+     *                          completion should use the async methods of the future. A transmission replaced before
+     *                          it started is cancelled, one replaced after it started completes with the repeats sent.
+     *                          Cancelling the future withdraws a waiting transmission, or stops one being sent at the
+     *                          end of its frame.
+     *                          Fails with RejectedExecutionException if the lane is full, the engine is shut down, a
+     *                          frame is longer than the whole airtime budget or a bulk transmission would overrun it
+     */
+    public CompletableFuture<TransmitResult> submit(Waveform waveform, int repeats, int onTimeRepeats, Object target, TransmitPriority priority)
+    {
+        final Job job;
+        Job replaced = null;
+        lock.lock();
+        try
+        {
+            job = new Job(waveform, repeats, onTimeRepeats, target, priority, depth());
+            final ArrayDeque<Job> lane = lane(priority);
+            final Job earlier = (target == null) ? null : targets.get(target);
+            final String refused = refuse(job, lane, earlier);
+            if (refused != null)
+            {
+                rejected.increment();
+                job.future.completeExceptionally(new RejectedExecutionException(refused));
+                return job.future;
+            }
+            if (earlier != null)
+            {
+                coalesced.increment();
+                if (earlier == current) earlier.superseded = true; // the radio thread stops it at the end of its frame
+                else
+                {
+                    lane(earlier.priority).remove(earlier);
+                    replaced = earlier;
+                }
+            }
+            lane.add(job);
+            if (target != null) targets.put(target, job);
+            interactiveWaiting = interactive.size();
+            queued.signal();
+        } finally
+        {
+            lock.unlock();
+        }
+        if (priority == TransmitPriority.INTERACTIVE) LockSupport.unpark(thread); // a bulk job waiting for airtime gives way
+        if (replaced != null) finishReplaced(replaced); // outside the lock, completing may run the caller's code
+        job.future.whenComplete((result, e) -> {
+            if (job.future.isCancelled()) withdraw(job);
+        });
+        return job.future;
+    }
+
+    /**
+     * refuse   -   admission control, called with the lock held
+     * @param job       -   the job submitted
+     * @param lane      -   its lane
+     * @param earlier   -   the job it replaces, null if none
+     * @return          -   why it is refused, null if it is accepted
+     */
+    private String refuse(Job job, ArrayDeque<Job> lane, Job earlier)
+    {
+        final boolean replacesWaiting = earlier != null && earlier != current;
+        if (!running) return "Transmit engine shut down";
+        if (lane.size() >= laneCapacity && !(replacesWaiting && earlier.priority == job.priority)) return "Transmit queue full: " + lane.size();
+        final AirtimeBudget b = budget;
+        if (b == null) return null;
+        if (job.waveform.getAirtimeMicros() > b.getBudgetMicros()) return "Frame longer than the airtime budget: " + job.waveform.getAirtimeMicros() + " us";
+        if (job.priority == TransmitPriority.BULK) // interactive transmissions are deferred rather than refused
+        {
+            final long promised = backlogMicros(null) - (replacesWaiting ? earlier.remainingMicros() : 0);
+            if (b.getUsedMicros() + promised + job.remainingMicros() > b.getBudgetMicros())
+            {
+                return "Airtime budget exhausted: " + b.getUsedMicros() + " us used and " + promised + " us queued of " + b.getBudgetMicros() + " us";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * backlogMicros    -   airtime of the transmissions the radio thread will send, in the order it sends them
+     *                      if no more arrive, up to and including a job, called with the lock held
+     * @param upTo  -   the last job counted, null for all of them
+     * @return      -   microseconds of airtime not yet sent
+     */
+    private long backlogMicros(Job upTo)
+    {
+        long micros = 0;
+        if (current != null)
+        {
+            micros += (upTo != null && upTo != current) ? ahead(current, upTo.priority) : current.remainingMicros();
+            if (current == upTo) return micros;
+        }
+        for (Job j : interactive)
+        {
+            micros += j.remainingMicros();
+            if (j == upTo) return micros;
+        }
+        for (Job j : bulk)
+        {
+            micros += j.remainingMicros();
+            if (j == upTo) return micros;
+        }
+        return micros;
+    }
+
+    /**
+     * estimateCompletionNanos  -   when the transmission waiting or being sent for a target should end, from the
+     *                              airtime ahead of it and any wait for the airtime budget. Later interactive
+     *                              transmissions, the bulk order chosen for fairness and repeats stopped early
+     *                              once on time make the estimate approximate.
+     * @param target    -   the device
+     * @return          -   from System.nanoTime(), -1 if nothing is waiting for the target
+     */
+    public long estimateCompletionNanos(Object target)
+    {
+        lock.lock();
+        try
+        {
+            final Job job = targets.get(target);
+            return (job == null) ? -1 : estimate(backlogMicros(job));
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * estimateCompletionNanos  -   when a transmission submitted now would end, see estimateCompletionNanos(Object)
+     * @param priority      -   its lane
+     * @param airtimeMicros -   its airtime, every repeat
+     * @return              -   from System.nanoTime()
+     */
+    public long estimateCompletionNanos(TransmitPriority priority, long airtimeMicros)
+    {
+        lock.lock();
+        try
+        {
+            long ahead = (current == null) ? 0 : ahead(current, priority);
+            for (Job j : interactive) ahead += j.remainingMicros();
+            if (priority == TransmitPriority.BULK) for (Job j : bulk) ahead += j.remainingMicros();
+            return estimate(ahead + airtimeMicros);
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * ahead    -   airtime the job being sent will use before one of a priority can start, a bulk job only
+     *              finishes its frame before an interactive one
+     */
+    private static long ahead(Job current, TransmitPriority priority)
+    {
+        if (priority == TransmitPriority.INTERACTIVE && current.priority == TransmitPriority.BULK) return current.waveform.getAirtimeMicros();
+        return current.remainingMicros();
+    }
+
+    private long estimate(long airtimeMicros)
+    {
+        final AirtimeBudget b = budget;
+        long delay = (b == null) ? 0 : b.delayNanos(Math.min(airtimeMicros, b.getBudgetMicros()));
+        if (b != null && airtimeMicros > b.getBudgetMicros()) // more than one window's budget, a window of waiting for each
+        {
+            delay += TimeUnit.SECONDS.toNanos(b.getWindowSeconds()) * ((airtimeMicros - 1) / b.getBudgetMicros());
+        }
+        return System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(airtimeMicros) + delay;
+    }
+
+    /**
+     * withdraw -   take a cancelled job out of its lane, one being sent is stopped by the radio thread
+     * @param job   -   the job
+     */
+    private void withdraw(Job job)
+    {
+        lock.lock();
+        try
+        {
+            if (job == current) return;
+            lane(job.priority).remove(job);
+            if (job.target != null) targets.remove(job.target, job);
+            interactiveWaiting = interactive.size();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * finishReplaced   -   end a waiting job replaced by a later one for its target, a bulk job paused part way
+     *                      through completes with the repeats it sent, one never started is cancelled
+     */
+    private void finishReplaced(Job job)
+    {
+        if (job.started) job.future.complete(job.result());
+        else job.future.cancel(false);
+    }
+
+    /**
+     * send -   send a waveform repeatedly and wait until the last pulse has ended
+     * @param waveform      -   the waveform
+     * @param repeats       -   the most times it is sent
+     * @param onTimeRepeats -   stop once this many repeats were sent on time, 0 to send every repeat
+     * @return              -   the number of repeats sent
+     */
+    public int send(Waveform waveform, int repeats, int onTimeRepeats)
+    {
+        return submit(waveform, repeats, onTimeRepeats).join().getRepeats();
+    }
+
+    static <T> CompletableFuture<T> failed(Throwable cause)
+    {
+        final CompletableFuture<T> f = new CompletableFuture<>();
+        f.completeExceptionally(cause);
+        return f;
+    }
+
+    /**
+     * shutdown -   stop the radio thread once the waveforms already waiting have been sent, later submissions fail
+     */
+    public void shutdown()
+    {
+        lock.lock();
+        try
+        {
+            running = false;
+            queued.signal();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void run()
+    {
+        try
+        {
+            Job job;
+            while ((job = next()) != null)
+            {
+                boolean finished = true;
+                try
+                {
+                    if (!job.started)
+                    {
+                        job.started = true;
+                        job.startedNanos = System.nanoTime();
+                    }
+                    finished = send(job);
+                } catch (RuntimeException e)
+                {
+                    job.future.completeExceptionally(e); // a failed output loses one transmission, not the engine
+                } finally
+                {
+                    done(job, finished);
+                }
+                if (finished) job.future.complete(job.result());
+            }
+        } catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+        final List<Job> left = new ArrayList<>();
+        lock.lock();
+        try
+        {
+            running = false;
+            left.addAll(interactive);
+            left.addAll(bulk);
+            interactive.clear();
+            bulk.clear();
+            targets.clear();
+            interactiveWaiting = 0;
+        } finally
+        {
+            lock.unlock();
+        }
+        for (Job job : left) job.future.completeExceptionally(new RejectedExecutionException("Transmit engine shut down"));
+    }
+
+    /**
+     * next -   wait for the next job, interactive first
+     * @return  -   the job, null when shut down and nothing is waiting
+     */
+    private Job next() throws InterruptedException
+    {
+        lock.lock();
+        try
+        {
+            while (interactive.isEmpty() && bulk.isEmpty())
+            {
+                if (!running) return null;
+                queued.await(200, TimeUnit.MILLISECONDS);
+            }
+            current = interactive.isEmpty() ? nextBulk() : interactive.poll();
+            interactiveWaiting = interactive.size();
+            return current;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * nextBulk -   the next bulk job, a paused one is resumed first, then with an airtime budget the job for the device
+     *              that has used least airtime in the window, otherwise the oldest. Jobs with no target share one
+     *              account, so together they are one device and cannot starve the others. Called with the lock held
+     */
+    private Job nextBulk()
+    {
+        final AirtimeBudget b = budget;
+        final Job head = bulk.peekFirst();
+        if (b == null || head.started) return bulk.pollFirst();
+        Job best = null;
+        long least = Long.MAX_VALUE;
+        for (Job j : bulk)
+        {
+            final long used = b.getUsedMicros(j.target);
+            if (used < least)
+            {
+                least = used;
+                best = j;
+            }
+        }
+        bulk.remove(best);
+        return best;
+    }
+
+    /**
+     * done -   a job has stopped being sent, a paused one goes back to the front of its lane to be resumed
+     * @param job       -   the job
+     * @param finished  -   false if it was paused for an interactive job
+     */
+    private void done(Job job, boolean finished)
+    {
+        lock.lock();
+        try
+        {
+            current = null;
+            if (!finished)
+            {
+                bulk.addFirst(job);
+                job.preempted++;
+                preemptions.increment();
+            }
+            else if (job.target != null && targets.get(job.target) == job) targets.remove(job.target);
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * send -   send the repeats of a job not sent yet
+     * @param job   -   what to send
+     * @return      -   true when it is finished, false if it was paused between frames for an interactive job
+     */
+    private boolean send(Job job)
+    {
+        long deadline = System.nanoTime() + START_LEAD;
+        boolean finished = true;
+        while (job.sent < job.repeats && (!timeEdges || job.onTimeRepeats <= 0 || job.onTime < job.onTimeRepeats))
+        {
+            if (job.superseded || job.future.isCancelled()) break;
+            if (job.priority == TransmitPriority.BULK && interactiveWaiting > 0)
+            {
+                finished = false;
+                break;
+            }
+            final AirtimeBudget b = budget;
+            if (b != null && defer(job, b))
+            {
+                deadline = System.nanoTime() + START_LEAD;
+                continue; // it may have been replaced or an interactive job may have arrived while it waited
+            }
+            if (timeEdges) deadline = transmit(job, deadline, b);
+            else
+            {
+                job.waveform.sendTo(output);
+                if (b != null) b.record(job.target, job.waveform.getAirtimeMicros());
+            }
+            job.sent++;
+        }
+        if (timeEdges) waitUntil(deadline); // hold the last pulse, the sync gap, for its length
+        return finished;
+    }
+
+    /**
+     * defer    -   wait until the next frame of a job fits in the airtime budget, stops waiting if it is replaced
+     *              or cancelled, or for a bulk job as soon as an interactive one arrives, so the bulk job is paused
+     *              and the interactive one is served first
+     * @param job   -   the job
+     * @param b     -   the budget
+     * @return      -   true if it waited
+     */
+    private boolean defer(Job job, AirtimeBudget b)
+    {
+        long delay = b.delayNanos(job.waveform.getAirtimeMicros());
+        if (delay <= 0) return false;
+        if (delay == Long.MAX_VALUE) throw new RejectedExecutionException("Frame longer than the airtime budget: " + job.waveform.getAirtimeMicros() + " us");
+        deferrals.increment();
+        final long started = System.nanoTime();
+        while (delay > 0 && !job.superseded && !job.future.isCancelled())
+        {
+            if (job.priority == TransmitPriority.BULK && interactiveWaiting > 0) break;
+            LockSupport.parkNanos(Math.min(delay, TimeUnit.MILLISECONDS.toNanos(100))); // notice a replacement soon, submit wakes it for an interactive job
+            delay = b.delayNanos(job.waveform.getAirtimeMicros());
+        }
+        job.deferredNanos += System.nanoTime() - started;
+        return true;
+    }
+
+    /**
+     * transmit -   set the edges of one frame at their deadlines. An edge later than the tolerance would leave the
+     *              pulse before it too long and the ones after it too short while catching up, so the frame is
+     *              abandoned instead: the output is set idle for a sync gap, which receivers take as the end of a
+     *              frame, and the repeat is started again from a fresh deadline, at most MAX_RESTARTS times
+     * @param job       -   what to send
+     * @param deadline  -   when the first edge is due
+     * @param b         -   the airtime budget the abandoned frames are counted in, null if none
+     * @return          -   when the frame ends
+     */
+    private long transmit(Job job, long deadline, AirtimeBudget b)
+    {
+        final int[] pulses = job.waveform.pulses();
+        final long tolerance = TimeUnit.MICROSECONDS.toNanos(job.waveform.getProtocol().pulseLength) * tolerancePercent / 100;
+        final long syncGap = TimeUnit.MICROSECONDS.toNanos(Waveform.micros(pulses[pulses.length - 1]));
+        final long now = System.nanoTime();
+        if (now - deadline > tolerance) deadline = now + START_LEAD; // the last frame overran, start this one afresh
+        int restarts = 0;
+        long worst = 0;
+        long sentMicros = 0;
+        for (int i = 0; i < pulses.length; i++)
+        {
+            waitUntil(deadline);
+            final long error = System.nanoTime() - deadline; // when the edge is set, the output's own delay is the same for every edge
+            edgeError.record(error);
+            if (error > tolerance && i > 0)
+            {
+                output.level(false); // idle rather than a pulse cut short
+                frameError.record(error);
+                frames.increment();
+                lateFrames.increment();
+                aborts.increment();
+                if (b != null) b.record(job.target, sentMicros);
+                if (restarts++ == MAX_RESTARTS) return System.nanoTime() + syncGap; // give up on this repeat
+                deadline = System.nanoTime() + syncGap;
+                i = -1; // start again from the first pulse
+                worst = 0;
+                sentMicros = 0;
+                continue;
+            }
+            output.level(Waveform.isHigh(pulses[i]));
+            if (error > worst) worst = error;
+            deadline += TimeUnit.MICROSECONDS.toNanos(Waveform.micros(pulses[i]));
+            sentMicros += Waveform.micros(pulses[i]);
+        }
+        frameError.record(worst);
+        frames.increment();
+        if (worst <= tolerance) job.onTime++;
+        else lateFrames.increment();
+        if (b != null) b.record(job.target, sentMicros);
+        return deadline;
+    }
+
+    /**
+     * waitUntil    -   sleep until the spin time before the deadline, then spin until it passes
+     * @param deadline  -   from System.nanoTime()
+     */
+    private void waitUntil(long deadline)
+    {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > spinNanos)
+        {
+            LockSupport.parkNanos(remaining - spinNanos);
+        }
+        while (deadline - System.nanoTime() > 0); // spin, the sleep overshoot is too large for the last few microseconds
+    }
+
+    private ArrayDeque<Job> lane(TransmitPriority priority){return (priority == TransmitPriority.INTERACTIVE) ? interactive : bulk;}
+    private int depth(){return interactive.size() + bulk.size() + ((current == null) ? 0 : 1);}
+
+    /**
+     * getQueueDepth    -   transmissions waiting in either lane, paused ones included, and the one being sent
+     */
+    public int getQueueDepth()
+    {
+        lock.lock();
+        try
+        {
+            return depth();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * setAirtimeBudget -   limit the airtime to a duty cycle
+     * @param budget    -   the budget, null for no limit
+     */
+    public void setAirtimeBudget(AirtimeBudget budget){this.budget = budget;}
+
+    //getters
+    public AirtimeBudget getAirtimeBudget(){return budget;}
+    public long getDeferrals(){return deferrals.sum();} // frames that waited for the airtime budget
+    public PulseOutput getOutput(){return output;}
+    public boolean isRunning(){return running;}
+    public boolean isTimingEdges(){return timeEdges;}
+    public int getQueueCapacity(){return laneCapacity;} // of each lane
+    public long getRejected(){return rejected.sum();}
+    public long getCoalesced(){return coalesced.sum();}     // transmissions replaced by a later one for their target
+    public long getPreemptions(){return preemptions.sum();} // times a bulk transmission was paused for an interactive one
+    public int getSpinMicros(){return (int)TimeUnit.NANOSECONDS.toMicros(spinNanos);}
+    public int getTolerancePercent(){return tolerancePercent;}
+    public LatencyHistogram getEdgeError(){return edgeError;}
+    public LatencyHistogram getFrameError(){return frameError;}
+    public long getFrames(){return frames.sum();}
+    public long getLateFrames(){return lateFrames.sum();}
+    public long getAborts(){return aborts.sum();} // frames abandoned part way for a late edge, counted in the late frames
+}
@@ -0,0 +1,18 @@
+package org.ladbury.RCSwitch;
+
+/**
+ * TransmitPriority -   the lane a transmission is queued in. Each lane is sent in the order it was queued,
+ *                      the interactive lane is always emptied before any bulk transmission is sent
+ */
+public enum TransmitPriority
+{
+    /**
+     * INTERACTIVE  -   a command someone is waiting to see happen. Sent before any bulk transmission, and
+     *                  a bulk transmission already being sent is paused between its frames to let it go first
+     */
+    INTERACTIVE,
+    /**
+     * BULK         -   scheduled or automated commands, sent when no interactive command is waiting
+     */
+    BULK
+}
@@ -0,0 +1,67 @@
+package org.ladbury.RCSwitch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TransmitResult   -   what happened to one submitted transmission, given when its future completes.
+ *                      The nanosecond times are from System.nanoTime() for measuring, the completion time is also
+ *                      given from the wall clock for reporting.
+ */
+public class TransmitResult
+{
+    private final Waveform waveform;
+    private final int repeats;
+    private final int queuedAhead;
+    private final int preempted;
+    private final long deferredNanos;
+    private final long submittedNanos;
+    private final long startedNanos;
+    private final long completedNanos;
+    private final long completedMillis;
+
+    /**
+     * TransmitResult   -   Constructor
+     * @param waveform          -   the waveform sent
+     * @param repeats           -   the number of repeats sent
+     * @param queuedAhead       -   transmissions waiting or being sent when it was submitted
+     * @param preempted         -   times it was paused to let an interactive transmission go first
+     * @param deferredNanos     -   time spent waiting for the airtime budget
+     * @param submittedNanos    -   when it was submitted
+     * @param startedNanos      -   when the radio thread started sending it
+     * @param completedNanos    -   when the last pulse ended, the result is made then
+     */
+    TransmitResult(Waveform waveform, int repeats, int queuedAhead, int preempted, long deferredNanos, long submittedNanos, long startedNanos, long completedNanos)
+    {
+        this.waveform = waveform;
+        this.repeats = repeats;
+        this.queuedAhead = queuedAhead;
+        this.preempted = preempted;
+        this.deferredNanos = deferredNanos;
+        this.submittedNanos = submittedNanos;
+        this.startedNanos = startedNanos;
+        this.completedNanos = completedNanos;
+        this.completedMillis = System.currentTimeMillis();
+    }
+
+    //getters
+    public Waveform getWaveform(){return waveform;}
+    public int getRepeats(){return repeats;}
+    public int getQueuedAhead(){return queuedAhead;}
+    public int getPreempted(){return preempted;}
+    public long getDeferredMicros(){return TimeUnit.NANOSECONDS.toMicros(deferredNanos);}
+    public long getSubmittedNanos(){return submittedNanos;}
+    public long getStartedNanos(){return startedNanos;}
+    public long getCompletedNanos(){return completedNanos;}
+    public long getCompletedMillis(){return completedMillis;} // wall clock
+    public long getQueueMicros(){return TimeUnit.NANOSECONDS.toMicros(startedNanos - submittedNanos);}
+    public long getSendMicros(){return TimeUnit.NANOSECONDS.toMicros(completedNanos - startedNanos);} // including any pauses
+    public long getAirtimeMicros(){return waveform.getAirtimeMicros() * repeats;}
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s code %d x%d, %d queued ahead, waited %d us, sent in %d us, preempted %d, deferred %d us",
+                waveform.getProtocol().name(), waveform.getCode(), repeats, queuedAhead, getQueueMicros(), getSendMicros(),
+                preempted, getDeferredMicros());
+    }
+}
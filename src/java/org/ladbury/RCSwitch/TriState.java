@@ -0,0 +1,6 @@
+package org.ladbury.RCSwitch;
+
+/**
+ * TriState -   one symbol of a tristate code word, sent as two bits
+ */
+enum TriState {zero,one,floating}
@@ -0,0 +1,74 @@
+package org.ladbury.RCSwitch;
+
+/**
+ * Waveform -   one repeat of a code compiled for a protocol into a flat array of pulses, the data bits most
+ *              significant first followed by the sync. Each pulse is one int holding the duration in microseconds
+ *              with the output level in the top bit, so sending is a loop over the array with no bit tests,
+ *              table lookups or multiplications. Immutable, shared through a WaveformCache.
+ */
+public class Waveform
+{
+    private static final int LEVEL_BIT = 0x80000000;
+
+    private final Protocol protocol;
+    private final long code;
+    private final int length;
+    private final int[] pulses;
+    private final long airtimeMicros;
+
+    /**
+     * Waveform -   Constructor, compiles the code
+     * @param protocol  -   the protocol to send with
+     * @param code      -   the code, the low bits are sent
+     * @param length    -   number of bits of the code sent, at most 64
+     */
+    public Waveform(Protocol protocol, long code, int length)
+    {
+        this.protocol = protocol;
+        this.code = code;
+        this.length = length;
+        this.pulses = new int[2 * length + 2];
+        long airtime = 0;
+        int p = 0;
+        for (int i = length - 1; i >= 0; i--)
+        {
+            final HighLow bit = ((code & (1L << i)) != 0) ? protocol.one : protocol.zero;
+            p = add(p, bit);
+            airtime += (long)protocol.pulseLength * (bit.high + bit.low);
+        }
+        add(p, protocol.syncFactor);
+        airtime += (long)protocol.pulseLength * (protocol.syncFactor.high + protocol.syncFactor.low);
+        this.airtimeMicros = airtime;
+    }
+
+    private int add(int p, HighLow pulse)
+    {
+        final boolean firstLevel = !protocol.invertedSignal;
+        pulses[p++] = encode(firstLevel, protocol.pulseLength * pulse.high);
+        pulses[p++] = encode(!firstLevel, protocol.pulseLength * pulse.low);
+        return p;
+    }
+
+    private static int encode(boolean high, int micros){return high ? (micros | LEVEL_BIT) : micros;}
+
+    /**
+     * sendTo   -   send the waveform
+     * @param output    -   where to send it
+     */
+    public void sendTo(PulseOutput output)
+    {
+        for (int pulse : pulses) output.pulse(isHigh(pulse), micros(pulse));
+    }
+
+    // decoding a pulse, for a TransmitEngine timing the edges itself
+    int[] pulses(){return pulses;} // not copied, must not be changed
+    static boolean isHigh(int pulse){return pulse < 0;}
+    static int micros(int pulse){return pulse & ~LEVEL_BIT;}
+
+    //getters
+    public Protocol getProtocol(){return protocol;}
+    public long getCode(){return code;}
+    public int getLength(){return length;}
+    public int getPulseCount(){return pulses.length;}
+    public long getAirtimeMicros(){return airtimeMicros;} // one repeat
+}
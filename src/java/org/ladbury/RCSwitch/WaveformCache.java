@@ -0,0 +1,93 @@
+package org.ladbury.RCSwitch;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * WaveformCache    -   the most recently sent waveforms, so a command sent again is not compiled again.
+ *                      Looking a waveform up reuses one key and only a newly compiled waveform allocates.
+ *                      When full the least recently used waveform is dropped. Thread safe.
+ */
+public class WaveformCache
+{
+    private final int capacity;
+    private final LinkedHashMap<Key, Waveform> waveforms;
+    private final Key probe;
+    private long hits;
+    private long misses;
+
+    /**
+     * Key  -   protocol, code and length of a waveform
+     */
+    private static class Key
+    {
+        Protocol protocol;
+        long code;
+        int length;
+
+        Key(Protocol protocol, long code, int length)
+        {
+            this.protocol = protocol;
+            this.code = code;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return protocol == k.protocol && code == k.code && length == k.length;
+        }
+
+        @Override
+        public int hashCode(){return 31 * (31 * protocol.hashCode() + Long.hashCode(code)) + length;}
+    }
+
+    /**
+     * WaveformCache    -   Constructor
+     * @param capacity  -   the most waveforms kept
+     */
+    public WaveformCache(int capacity)
+    {
+        this.capacity = Math.max(1, capacity);
+        this.waveforms = new LinkedHashMap<Key, Waveform>(16, 0.75f, true) // access order, least recently used first
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Waveform> eldest){return size() > WaveformCache.this.capacity;}
+        };
+        this.probe = new Key(null, 0, 0);
+        this.hits = 0;
+        this.misses = 0;
+    }
+
+    /**
+     * get  -   the waveform for a code, compiled and kept if it is not already
+     * @param protocol  -   the protocol to send with
+     * @param code      -   the code
+     * @param length    -   number of bits of the code sent
+     * @return          -   the waveform
+     */
+    public synchronized Waveform get(Protocol protocol, long code, int length)
+    {
+        probe.protocol = protocol;
+        probe.code = code;
+        probe.length = length;
+        Waveform w = waveforms.get(probe);
+        if (w != null)
+        {
+            hits++;
+            return w;
+        }
+        misses++;
+        w = new Waveform(protocol, code, length);
+        waveforms.put(new Key(protocol, code, length), w);
+        return w;
+    }
+
+    public synchronized void clear(){waveforms.clear();}
+    public synchronized int size(){return waveforms.size();}
+    public int getCapacity(){return capacity;}
+    public synchronized long getHits(){return hits;}
+    public synchronized long getMisses(){return misses;}
+}
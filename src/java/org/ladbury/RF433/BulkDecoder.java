@@ -0,0 +1,331 @@
+package org.ladbury.RF433;
+
+import org.ladbury.RCSwitch.ProtocolDefinition;
+import org.ladbury.RCSwitch.ProtocolMatcher;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * BulkDecoder  -   decodes a directory of capture files in parallel and reports how often each code was received.
+ *                  Each file is indexed and its frames are split into ranges which are decoded as fork/join tasks,
+ *                  every task has its own matcher, reader view and statistics, and the statistics are merged as
+ *                  the tasks join, so the decoding threads share nothing and throughput scales with the cores.
+ *                  Frames are decoded with the same ProtocolMatcher, tolerance and minimum size as the Receiver.
+ */
+public class BulkDecoder
+{
+    private static final int LEAF_FRAMES = 4096; // frames decoded by one task without splitting further
+
+    private final int tolerancePercent;
+    private final long bucketMillis;
+    private final ProtocolDefinition[] protocols;
+    private final ForkJoinPool pool;
+
+    /**
+     * BulkDecoder  -   Constructor for the built in protocols
+     * @param parallelism       -   number of decoding threads, normally the number of cores
+     * @param tolerancePercent  -   percentage variation in pulse width allowed
+     * @param bucketMillis      -   width of the time buckets the counts are reported in, milliseconds
+     */
+    public BulkDecoder(int parallelism, int tolerancePercent, long bucketMillis)
+    {
+        this(parallelism, tolerancePercent, bucketMillis, ProtocolDefinition.builtIns());
+    }
+
+    /**
+     * BulkDecoder  -   Constructor
+     * @param parallelism       -   number of decoding threads, normally the number of cores
+     * @param tolerancePercent  -   percentage variation in pulse width allowed
+     * @param bucketMillis      -   width of the time buckets the counts are reported in, milliseconds
+     * @param protocols         -   the protocols to decode, built in and learned
+     */
+    public BulkDecoder(int parallelism, int tolerancePercent, long bucketMillis, ProtocolDefinition[] protocols)
+    {
+        this.protocols = protocols.clone();
+        this.tolerancePercent = tolerancePercent;
+        this.bucketMillis = Math.max(1, bucketMillis);
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * decode   -   decode every capture file in a directory and print the statistics
+     * @param directory -   the directory holding the capture files
+     * @throws IOException if the directory cannot be read
+     */
+    public void decode(String directory) throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(Paths.get(directory)))
+        {
+            for (Path p : dir) if (Files.isRegularFile(p)) files.add(p);
+        }
+        Collections.sort(files);
+        final long started = System.nanoTime();
+        Stats stats = pool.invoke(new FilesTask(files));
+        final double seconds = (System.nanoTime() - started) / 1e9;
+        pool.shutdown();
+        print(stats);
+        System.out.printf("Decoded %d files, %d frames, %d edges in %.3f s on %d threads (%.0f frames/s)%n",
+                files.size() - stats.badFiles, stats.frames, stats.edges, seconds, pool.getParallelism(),
+                stats.frames / seconds);
+        if (stats.badFiles > 0) System.out.println(stats.badFiles + " files could not be read");
+    }
+
+    private void print(Stats stats)
+    {
+        System.out.printf("Frames: %d, Decoded: %d, Not decoded: %d, Refined: %d%n",
+                stats.frames, stats.decoded, stats.frames - stats.decoded, stats.refined);
+        for (int p = 0; p < protocols.length; p++)
+        {
+            if (stats.protocolCounts[p] > 0) System.out.printf("%s: %d%n", protocols[p].name(), stats.protocolCounts[p]);
+        }
+        List<Key> keys = new ArrayList<>(stats.codes.keySet());
+        keys.sort(null);
+        System.out.println("Protocol,Bits,Code,Bucket start,Count");
+        for (Key k : keys)
+        {
+            System.out.printf("%s,%d,%s,%s,%d%n", protocols[k.protocol].name(), k.bitCount, k.codeString(),
+                    Instant.ofEpochMilli(k.bucket), stats.codes.get(k)[0]);
+        }
+    }
+
+    /**
+     * Stats    -   counts collected by a task, merged into the parent task's counts when it joins
+     */
+    private static class Stats
+    {
+        long frames = 0;
+        long edges = 0;
+        long decoded = 0;
+        long refined = 0;
+        int badFiles = 0;
+        final long[] protocolCounts;
+        final Map<Key, long[]> codes = new HashMap<>(); // count held in a one element array so it can be updated in place
+
+        Stats(int protocolCount)
+        {
+            this.protocolCounts = new long[protocolCount];
+        }
+
+        void merge(Stats s)
+        {
+            frames += s.frames;
+            edges += s.edges;
+            decoded += s.decoded;
+            refined += s.refined;
+            badFiles += s.badFiles;
+            for (int p = 0; p < protocolCounts.length; p++) protocolCounts[p] += s.protocolCounts[p];
+            for (Map.Entry<Key, long[]> e : s.codes.entrySet())
+            {
+                long[] count = codes.get(e.getKey());
+                if (count == null) codes.put(e.getKey(), e.getValue());
+                else count[0] += e.getValue()[0];
+            }
+        }
+    }
+
+    /**
+     * Key  -   protocol, payload and time bucket of a decoded frame.
+     *          A task reuses one key to look codes up and only copies it when a new code is stored
+     */
+    private static class Key implements Comparable<Key>
+    {
+        int protocol;
+        int bitCount;
+        long[] words;
+        long bucket;
+
+        Key(int maxBits)
+        {
+            this.words = new long[(maxBits + 63) >>> 6];
+        }
+
+        private int wordCount(){return (bitCount + 63) >>> 6;}
+
+        void setBits(ProtocolMatcher matcher)
+        {
+            bitCount = matcher.getBitCount();
+            matcher.copyBits(words);
+            if ((bitCount & 63) != 0) words[wordCount() - 1] &= -1L << (64 - (bitCount & 63)); // clear bits past the end
+        }
+
+        Key copy()
+        {
+            Key k = new Key(0);
+            k.protocol = protocol;
+            k.bitCount = bitCount;
+            k.words = Arrays.copyOf(words, wordCount());
+            k.bucket = bucket;
+            return k;
+        }
+
+        String codeString()
+        {
+            char[] c = new char[bitCount];
+            for (int i = 0; i < bitCount; i++) c[i] = ((words[i >>> 6] & (1L << (63 - (i & 63)))) != 0) ? '1' : '0';
+            return new String(c);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            if (protocol != k.protocol || bitCount != k.bitCount || bucket != k.bucket) return false;
+            for (int i = 0; i < wordCount(); i++)
+            {
+                if (words[i] != k.words[i]) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int h = 31 * (31 * protocol + bitCount) + Long.hashCode(bucket);
+            for (int i = 0; i < wordCount(); i++) h = 31 * h + Long.hashCode(words[i]);
+            return h;
+        }
+
+        @Override
+        public int compareTo(Key k)
+        {
+            if (protocol != k.protocol) return Integer.compare(protocol, k.protocol);
+            if (bitCount != k.bitCount) return Integer.compare(bitCount, k.bitCount);
+            for (int i = 0; i < wordCount(); i++)
+            {
+                if (words[i] != k.words[i]) return Long.compareUnsigned(words[i], k.words[i]);
+            }
+            return Long.compare(bucket, k.bucket);
+        }
+    }
+
+    /**
+     * FilesTask    -   decodes all the files, one subtask per file
+     */
+    private class FilesTask extends RecursiveTask<Stats>
+    {
+        private static final long serialVersionUID = 1L;
+        private final List<Path> files;
+
+        FilesTask(List<Path> files){this.files = files;}
+
+        @Override
+        protected Stats compute()
+        {
+            List<FileTask> tasks = new ArrayList<>();
+            for (Path p : files) tasks.add(new FileTask(p));
+            invokeAll(tasks);
+            Stats stats = new Stats(protocols.length);
+            for (FileTask t : tasks) stats.merge(t.join());
+            return stats;
+        }
+    }
+
+    /**
+     * FileTask -   indexes the frames of one file and splits them into ranges
+     */
+    private class FileTask extends RecursiveTask<Stats>
+    {
+        private static final long serialVersionUID = 1L;
+        private final Path file;
+
+        FileTask(Path file){this.file = file;}
+
+        @Override
+        protected Stats compute()
+        {
+            try (CaptureReader reader = new CaptureReader(file))
+            {
+                int[] positions = new int[1024];
+                int count = 0;
+                int position = reader.position();
+                while (reader.next())
+                {
+                    if (count == positions.length) positions = Arrays.copyOf(positions, count * 2);
+                    positions[count++] = position;
+                    position = reader.position();
+                }
+                return new RangeTask(reader, positions, 0, count).invoke();
+            } catch (IOException e)
+            {
+                System.out.println("Skipped " + file + ": " + e.getMessage());
+                Stats stats = new Stats(protocols.length);
+                stats.badFiles = 1;
+                return stats;
+            }
+        }
+    }
+
+    /**
+     * RangeTask    -   decodes a range of frames of one file, splitting it in half while it is large
+     */
+    private class RangeTask extends RecursiveTask<Stats>
+    {
+        private static final long serialVersionUID = 1L;
+        private final CaptureReader reader;
+        private final int[] positions;
+        private final int from;
+        private final int to;
+
+        RangeTask(CaptureReader reader, int[] positions, int from, int to)
+        {
+            this.reader = reader;
+            this.positions = positions;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Stats compute()
+        {
+            if (to - from <= LEAF_FRAMES) return decodeRange();
+            final int mid = (from + to) >>> 1;
+            RangeTask right = new RangeTask(reader, positions, mid, to);
+            right.fork();
+            Stats stats = new RangeTask(reader, positions, from, mid).compute();
+            stats.merge(right.join());
+            return stats;
+        }
+
+        private Stats decodeRange()
+        {
+            Stats stats = new Stats(protocols.length);
+            if (from >= to) return stats;
+            final CaptureReader frames = reader.view();
+            final ProtocolMatcher matcher = new ProtocolMatcher(frames.getMaxEdges(), protocols);
+            final Key probe = new Key(frames.getMaxEdges() / 2);
+            frames.seek(positions[from]);
+            for (int f = from; f < to && frames.next(); f++)
+            {
+                stats.frames++;
+                stats.edges += frames.size();
+                if (frames.size() < Receiver.MIN_MESSAGE_SIZE) continue; // noise, as in the Receiver
+                if (!matcher.decode(frames, tolerancePercent, Receiver.MIN_MESSAGE_SIZE)) continue;
+                stats.decoded++;
+                if (matcher.isRefined()) stats.refined++;
+                probe.protocol = matcher.getIndex();
+                probe.setBits(matcher);
+                probe.bucket = Math.floorDiv(frames.getFrameMillis(), bucketMillis) * bucketMillis;
+                stats.protocolCounts[probe.protocol]++;
+                long[] count = stats.codes.get(probe);
+                if (count == null) stats.codes.put(probe.copy(), new long[]{1});
+                else count[0]++;
+            }
+            return stats;
+        }
+    }
+}
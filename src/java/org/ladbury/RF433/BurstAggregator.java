@@ -0,0 +1,199 @@
+package org.ladbury.RF433;
+
+import org.ladbury.RCSwitch.ProtocolDefinition;
+
+import java.time.Instant;
+
+/**
+ * BurstAggregator  -   combines the repeats of a transmission into a single decoded message.
+ *                      Senders repeat each code many times, repeats of the same frame arriving within the
+ *                      burst window are grouped and each bit is decided by a majority vote over the repeats.
+ *                      Repeats that failed to decode because of a few bad bit pairs still vote with their good
+ *                      bits, which recovers frames at the edge of range.
+ *                      Used by the decoder thread only.
+ */
+class BurstAggregator
+{
+    private final long windowMillis;    // longest gap between repeats of the same burst
+    private final int tolerancePercent;
+    private final int maxBits;
+
+    // the burst being collected
+    private ProtocolDefinition protocol;
+    private Instant firstReceived;
+    private long lastReceived;          // milliseconds since the epoch
+    private int bitCount;
+    private int repeats;
+    private long pulseWidthTotal;
+    private final int[] ones;           // votes for a one at each bit position
+    private final int[] votes;          // frames that had a readable bit at each position
+    private final boolean[] firstBits;  // bits of the first repeat, used to break ties
+
+    /**
+     * BurstAggregator  -   Constructor
+     * @param windowMillis      -   longest gap between repeats of the same burst in milliseconds
+     * @param tolerancePercent  -   percentage variation in pulse width allowed when reading damaged repeats
+     * @param maxBits           -   largest number of bits in a message
+     */
+    BurstAggregator(long windowMillis, int tolerancePercent, int maxBits)
+    {
+        this.windowMillis = windowMillis;
+        this.tolerancePercent = tolerancePercent;
+        this.maxBits = maxBits;
+        this.ones = new int[maxBits];
+        this.votes = new int[maxBits];
+        this.firstBits = new boolean[maxBits];
+        this.protocol = null;
+    }
+
+    boolean isOpen(){return protocol != null;}
+
+    /**
+     * add  -   add a successfully decoded repeat
+     * @param protocol  -   the protocol it was decoded with
+     * @param msg       -   the decoded message
+     * @return          -   the previous burst if this message does not belong to it, otherwise null
+     */
+    DecodedMessage add(ProtocolDefinition protocol, DecodedMessage msg)
+    {
+        final long received = msg.getReceivedTime().toEpochMilli();
+        DecodedMessage finished = null;
+        if (isOpen() && !(protocol == this.protocol && msg.size() == bitCount
+                && received - lastReceived <= windowMillis && agrees(msg)))
+        {
+            finished = flush();
+        }
+        if (!isOpen())
+        {
+            this.protocol = protocol;
+            this.firstReceived = msg.getReceivedTime();
+            this.bitCount = Math.min(msg.size(), maxBits);
+            this.repeats = 0;
+            this.pulseWidthTotal = 0;
+            for (int i = 0; i < bitCount; i++)
+            {
+                ones[i] = 0;
+                votes[i] = 0;
+                firstBits[i] = msg.getBit(i);
+            }
+        }
+        for (int i = 0; i < bitCount; i++)
+        {
+            votes[i]++;
+            if (msg.getBit(i)) ones[i]++;
+        }
+        repeats++;
+        pulseWidthTotal += msg.getPulseWidth();
+        lastReceived = received;
+        return finished;
+    }
+
+    /**
+     * addDamaged   -   try to use a repeat that failed to decode, good bit pairs vote and bad ones abstain
+     * @param msg   -   the raw message
+     * @return      -   true if the message was accepted as a repeat of the current burst
+     */
+    boolean addDamaged(RawMessage msg)
+    {
+        if (!isOpen()) return false;
+        final long received = msg.getReceivedTime().toEpochMilli();
+        if (received - lastReceived > windowMillis) return false;
+        final int firstDataTiming = (protocol.invertedSignal) ? (2) : (1);
+        if ((msg.size() - firstDataTiming) / 2 != bitCount) return false; // not aligned with the burst
+        final int pulseWidth = (int)(pulseWidthTotal / repeats);
+        final int tolerance = pulseWidth * tolerancePercent / 100;
+
+        // first pass, check enough of the frame is readable and agrees with the burst so far
+        int readable = 0;
+        int agreeing = 0;
+        for (int b = 0; b < bitCount; b++)
+        {
+            final int bit = readBit(msg, firstDataTiming + 2 * b, pulseWidth, tolerance);
+            if (bit < 0) continue;
+            readable++;
+            if ((bit == 1) == majority(b)) agreeing++;
+        }
+        if (readable * 2 < bitCount || agreeing * 8 < readable * 7) return false;
+
+        // second pass, vote with the readable bits
+        for (int b = 0; b < bitCount; b++)
+        {
+            final int bit = readBit(msg, firstDataTiming + 2 * b, pulseWidth, tolerance);
+            if (bit < 0) continue;
+            votes[b]++;
+            if (bit == 1) ones[b]++;
+        }
+        repeats++;
+        pulseWidthTotal += pulseWidth; // keep the average pulse width of the burst unchanged
+        lastReceived = received;
+        return true;
+    }
+
+    /**
+     * expire   -   close the burst if no repeat has arrived within the window
+     * @param now   -   current time in milliseconds since the epoch
+     * @return      -   the finished burst or null
+     */
+    DecodedMessage expire(long now)
+    {
+        if (isOpen() && now - lastReceived > windowMillis) return flush();
+        return null;
+    }
+
+    /**
+     * flush    -   close the burst regardless of the window
+     * @return  -   the finished burst or null if none was open
+     */
+    DecodedMessage flush()
+    {
+        if (!isOpen()) return null;
+        DecodedMessage dMsg = new DecodedMessage(protocol.name(), (int)(pulseWidthTotal / repeats), firstReceived);
+        long agreement = 0;
+        long cast = 0;      // bits a damaged repeat could not read abstained, they are not disagreement
+        for (int i = 0; i < bitCount; i++)
+        {
+            final boolean bit = majority(i);
+            dMsg.addBit(bit);
+            agreement += (bit) ? ones[i] : votes[i] - ones[i];
+            cast += votes[i];
+        }
+        dMsg.setRepeats(repeats, (cast == 0) ? 0 : (double)agreement / cast);
+        protocol = null;
+        return dMsg;
+    }
+
+    private boolean majority(int i)
+    {
+        final int zeros = votes[i] - ones[i];
+        return (ones[i] == zeros) ? firstBits[i] : ones[i] > zeros;
+    }
+
+    /**
+     * agrees   -   a decoded repeat belongs to the burst if it matches the current majority almost everywhere,
+     *              a different code sent straight after this one starts a new burst
+     */
+    private boolean agrees(DecodedMessage msg)
+    {
+        int differences = 0;
+        for (int i = 0; i < bitCount; i++)
+        {
+            if (msg.getBit(i) != majority(i)) differences++;
+        }
+        return differences * 8 <= bitCount;
+    }
+
+    /**
+     * readBit  -   classify one bit pair of a damaged frame against the burst protocol
+     * @return  -   0, 1 or -1 if the pair matches neither
+     */
+    private int readBit(RawMessage msg, int i, int pulseWidth, int tolerance)
+    {
+        final int bit1Dur = msg.duration(i);
+        final int bit2Dur = msg.duration(i + 1);
+        if (Math.abs(bit1Dur - pulseWidth * protocol.zero.high) < tolerance &&
+                Math.abs(bit2Dur - pulseWidth * protocol.zero.low) < tolerance) return 0;
+        if (Math.abs(bit1Dur - pulseWidth * protocol.one.high) < tolerance &&
+                Math.abs(bit2Dur - pulseWidth * protocol.one.low) < tolerance) return 1;
+        return -1;
+    }
+}
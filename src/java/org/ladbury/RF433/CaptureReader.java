@@ -0,0 +1,127 @@
+package org.ladbury.RF433;
+
+import org.ladbury.RCSwitch.FrameDurations;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * CaptureReader    -   reads the frames of a capture file written by CaptureWriter through a read only mapping.
+ *                      Call next() to move to each frame in turn, the frame is then available through the getters.
+ *                      A reader is not thread safe, use view() to give each thread its own reader of the same mapping
+ */
+class CaptureReader implements Closeable, FrameDurations
+{
+    private final FileChannel channel; // null for a view, the file is closed by the reader that opened it
+    private final ByteBuffer data;
+    private final int maxEdges;
+    private final long startMillis;
+    private final long startMicros;
+
+    // the current frame
+    private long frameMicros;
+    private long frameMillis;
+    private int edgeCount;
+    private int edgeStart;
+
+    /**
+     * CaptureReader    -   Constructor, opens the file and checks the header
+     * @param file  -   the capture file
+     * @throws IOException if the file cannot be read or is not a capture file
+     */
+    CaptureReader(Path file) throws IOException
+    {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        if (channel.size() > Integer.MAX_VALUE)
+        {
+            channel.close();
+            throw new IOException(file + " is too large to map, split the capture");
+        }
+        this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < CaptureWriter.HEADER_SIZE || data.getInt(0) != CaptureWriter.MAGIC)
+        {
+            channel.close();
+            throw new IOException(file + " is not a capture file");
+        }
+        if (data.getShort(4) != CaptureWriter.VERSION)
+        {
+            channel.close();
+            throw new IOException(file + " has unsupported capture version " + data.getShort(4));
+        }
+        this.maxEdges = data.getInt(8);
+        this.startMillis = data.getLong(16);
+        this.startMicros = data.getLong(24);
+        final int committed = data.getInt(CaptureWriter.COMMITTED_OFFSET);
+        if (committed > 0 && committed < data.limit()) data.limit(committed); // the rest was never written
+        data.position(data.getShort(6));
+        this.edgeCount = 0;
+    }
+
+    private CaptureReader(CaptureReader source)
+    {
+        this.channel = null;
+        this.data = source.data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.maxEdges = source.maxEdges;
+        this.startMillis = source.startMillis;
+        this.startMicros = source.startMicros;
+        this.edgeCount = 0;
+    }
+
+    /**
+     * view -   another reader over the same mapping with its own position, the file is not read again
+     * @return  -   the new reader, positioned where this one is
+     */
+    CaptureReader view(){return new CaptureReader(this);}
+
+    //getters
+    int getMaxEdges(){return maxEdges;}
+    long getStartMillis(){return startMillis;}
+    long getStartMicros(){return startMicros;}
+    long getFrameMicros(){return frameMicros;}
+    long getFrameMillis(){return frameMillis;}
+    @Override public int size(){return edgeCount;}
+    @Override public int duration(int i){return data.getInt(edgeStart + 4 * i) & ~CaptureWriter.LEVEL_BIT;}
+    boolean level(int i){return (data.getInt(edgeStart + 4 * i) & CaptureWriter.LEVEL_BIT) != 0;}
+    int position(){return data.position();}
+
+    /**
+     * seek -   move to a frame boundary previously returned by position()
+     * @param position  -   the start of a frame
+     */
+    void seek(int position){data.position(position);}
+
+    /**
+     * next -   move to the next frame
+     * @return  -   false at the end of the file, or at an incomplete or empty frame, the zero filled
+     *              space after the frames of a capture whose writer did not close it
+     */
+    boolean next()
+    {
+        if (data.remaining() < CaptureWriter.FRAME_HEADER_SIZE) return false;
+        final int start = data.position();
+        frameMicros = data.getLong();
+        frameMillis = data.getLong();
+        edgeCount = data.getInt();
+        if (edgeCount <= 0 || edgeCount > maxEdges || frameMillis == 0 || data.remaining() < 4 * edgeCount)
+        {
+            data.position(start); // truncated or damaged frame
+            edgeCount = 0;
+            return false;
+        }
+        edgeStart = data.position();
+        data.position(edgeStart + 4 * edgeCount);
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (channel != null) channel.close();
+    }
+}
@@ -0,0 +1,76 @@
+package org.ladbury.RF433;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CaptureReplay    -   feeds a capture file back through a Receiver, edge by edge, exactly as the
+ *                      interrupt handler would. Frames are replayed either with their original spacing
+ *                      or as fast as the receiver can decode them, to reproduce field problems and to
+ *                      measure decoder throughput offline.
+ */
+public class CaptureReplay
+{
+    private static final int FLUSH_GAP = 1000000; // microseconds of silence after the last frame
+
+    private final String fileName;
+    private final boolean realTime;
+
+    /**
+     * CaptureReplay    -   Constructor
+     * @param fileName  -   the capture file
+     * @param realTime  -   true to keep the original spacing between frames, false for maximum speed
+     */
+    public CaptureReplay(String fileName, boolean realTime)
+    {
+        this.fileName = fileName;
+        this.realTime = realTime;
+    }
+
+    /**
+     * replay   -   feed every frame to the receiver and wait for it to decode them
+     * @param receiver  -   a receiver created without a pin
+     * @throws IOException if the file cannot be read
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void replay(Receiver receiver) throws IOException, InterruptedException
+    {
+        long frames = 0;
+        long edges = 0;
+        long time = 0;           // replay clock in microseconds, advanced by the recorded durations
+        boolean level = false;
+        final long decodedBefore = receiver.getDecodedCount();
+        final long started = System.nanoTime();
+        try (CaptureReader reader = new CaptureReader(Paths.get(fileName)))
+        {
+            final long wallStart = System.nanoTime() / 1000;
+            while (reader.next())
+            {
+                if (realTime)
+                {
+                    final long due = wallStart + reader.getFrameMicros() - reader.getStartMicros();
+                    final long wait = due - System.nanoTime() / 1000;
+                    if (wait > 0) TimeUnit.MICROSECONDS.sleep(wait);
+                } else
+                {
+                    // keep well inside the receiver's queue so no frame is dropped
+                    while (receiver.getPendingFrames() > 256) Thread.yield();
+                }
+                for (int i = 0; i < reader.size(); i++)
+                {
+                    time += reader.duration(i);
+                    level = reader.level(i);
+                    receiver.onEdge(time, level);
+                }
+                frames++;
+                edges += reader.size();
+            }
+        }
+        receiver.onEdge(time + FLUSH_GAP, !level); // the gap ends the last frame
+        while (receiver.getPendingFrames() > 0) TimeUnit.MILLISECONDS.sleep(1);
+        final double seconds = (System.nanoTime() - started) / 1e9;
+        System.out.printf("Replayed %d frames, %d edges in %.3f s (%.0f frames/s, %.0f edges/s), %d decoded%n",
+                frames, edges, seconds, frames / seconds, edges / seconds, receiver.getDecodedCount() - decodedBefore);
+    }
+}
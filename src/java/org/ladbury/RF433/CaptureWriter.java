@@ -0,0 +1,124 @@
+package org.ladbury.RF433;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * CaptureWriter    -   appends captured frames to a binary capture file through a memory mapped region.
+ *
+ * The file format, all values little endian:
+ *  Header (HEADER_SIZE bytes)
+ *      int     MAGIC
+ *      short   VERSION
+ *      short   header size in bytes
+ *      int     maximum edges in a frame
+ *      int     end of the last complete frame, updated after each frame is written, so a capture whose
+ *              writer was killed before it could trim the file is read only up to the frames written.
+ *              0 in files from writers that did not record it
+ *      long    time the capture started, milliseconds since the epoch
+ *      long    time the capture started on the receiver's microsecond clock
+ *  Frames, repeated to the end of the file
+ *      long    time of the first edge on the receiver's microsecond clock
+ *      long    time the frame started, milliseconds since the epoch
+ *      int     edge count
+ *      int[]   edges, the duration since the previous edge in microseconds in bits 0-30
+ *              and the pin level after the edge in bit 31 (set = high)
+ */
+class CaptureWriter implements Closeable
+{
+    static final int MAGIC = 0x52463433; // "RF43"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int COMMITTED_OFFSET = 12;
+    static final int FRAME_HEADER_SIZE = 20;
+    static final int LEVEL_BIT = 0x80000000;
+    private static final int REGION_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final int regionSize;
+    private final MappedByteBuffer header;  // stays mapped to update the committed end
+    private MappedByteBuffer region;
+    private long regionStart;
+    private long frames;
+
+    /**
+     * CaptureWriter    -   Constructor, creates the file and writes the header
+     * @param fileName  -   the file to create, it is overwritten if it exists
+     * @param maxEdges  -   the largest number of edges in a frame
+     * @throws IOException if the file cannot be created
+     */
+    CaptureWriter(String fileName, int maxEdges) throws IOException
+    {
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.regionSize = Math.max(REGION_SIZE, HEADER_SIZE + FRAME_HEADER_SIZE + 4 * maxEdges);
+        this.frames = 0;
+        map(0);
+        region.putInt(MAGIC);
+        region.putShort(VERSION);
+        region.putShort((short)HEADER_SIZE);
+        region.putInt(maxEdges);
+        region.putInt(0);
+        region.putLong(System.currentTimeMillis());
+        region.putLong(System.nanoTime()/1000);
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        commit();
+    }
+
+    long getFrames(){return frames;}
+
+    private void map(long position) throws IOException
+    {
+        regionStart = position;
+        region = channel.map(FileChannel.MapMode.READ_WRITE, position, regionSize);
+        region.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * write    -   append a frame, a new region is mapped when the current one is full
+     * @param msg   -   the frame
+     * @throws IOException if the file cannot be extended
+     */
+    void write(RawMessage msg) throws IOException
+    {
+        final int length = FRAME_HEADER_SIZE + 4 * msg.size();
+        if (region.remaining() < length) map(regionStart + region.position());
+        region.putLong(msg.getStartMicros());
+        region.putLong(msg.getReceivedMillis());
+        region.putInt(msg.size());
+        for (int i = 0; i < msg.size(); i++)
+        {
+            region.putInt(msg.level(i) ? (msg.duration(i) | LEVEL_BIT) : msg.duration(i));
+        }
+        frames++;
+        commit();
+    }
+
+    /**
+     * commit   -   record in the header that the file is complete up to the end of the last frame written
+     */
+    private void commit()
+    {
+        header.putInt(COMMITTED_OFFSET, (int)Math.min(regionStart + region.position(), Integer.MAX_VALUE)); // readers map at most this much
+    }
+
+    /**
+     * close    -   flush the data and trim the file to the frames written
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public void close() throws IOException
+    {
+        final long end = regionStart + region.position();
+        region.force();
+        header.force();
+        channel.truncate(end);
+        channel.close();
+    }
+}
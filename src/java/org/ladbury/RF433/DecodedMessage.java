@@ -0,0 +1,169 @@
+package org.ladbury.RF433;
+
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * DecodedMessage   -   a message decoded from a received frame.
+ *                      The payload is held as bits packed into longs, most significant bit first, so messages of
+ *                      any length up to the largest frame are kept exactly. Appending a bit does not allocate,
+ *                      the bit string is only built when asked for. Messages are equal when their protocol and
+ *                      payload are equal, so they can be used as keys in maps of codes.
+ *                      A message is only changed while the decoder builds it, so once delivered it is immutable and
+ *                      the same instance is safely shared by the receiver's store, its listeners and every subscriber.
+ */
+public class DecodedMessage
+{
+    private static final int DEFAULT_WORDS = 2; // 128 bits, enough for the largest frame the receiver holds
+
+    private final Instant receivedTime;
+    private final String protocolName;
+    private final int pulseWidth;
+    private int numberOfBits;
+    private long[] words;
+    private String codeString; // built on demand
+    private int hash;           // 0 until computed
+    private int repeats;
+    private double confidence;
+    private String receiverName; // the receiver that heard it, null for a receiver working alone
+
+    DecodedMessage(String protocolName,int pulseWidth, Instant t)
+    {
+        this.protocolName = protocolName;
+        this.pulseWidth = pulseWidth;
+        this.receivedTime = t;
+        this.numberOfBits = 0;
+        this.words = new long[DEFAULT_WORDS];
+        this.codeString = null;
+        this.hash = 0;
+        this.repeats = 1;
+        this.confidence = 1.0;
+        this.receiverName = null;
+    }
+
+    @Override
+    public String toString()
+    {
+        final long code = getCode();
+        String s = String.format("%s (PulseWidth %d) %d bits code %d 0x%h %s",
+                protocolName,pulseWidth,numberOfBits,code,code,getBits());
+        if (repeats > 1) s = s + String.format(" (%d repeats, confidence %.2f)",repeats,confidence);
+        if (receiverName != null) s = s + " from " + receiverName;
+        return s;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (!(o instanceof DecodedMessage)) return false;
+        DecodedMessage m = (DecodedMessage) o;
+        if (numberOfBits != m.numberOfBits || !protocolName.equals(m.protocolName)) return false;
+        for (int i = 0; i < wordCount(); i++)
+        {
+            if (words[i] != m.words[i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int h = hash;
+        if (h == 0)
+        {
+            h = 31 * protocolName.hashCode() + numberOfBits;
+            for (int i = 0; i < wordCount(); i++) h = 31 * h + Long.hashCode(words[i]);
+            hash = h;
+        }
+        return h;
+    }
+
+    /**
+     * setRepeats   -   record how the message was reconstructed from a burst of repeats
+     * @param repeats       -   number of repeats combined
+     * @param confidence    -   fraction of the votes that agreed with the result, 0-1
+     */
+    void setRepeats(int repeats, double confidence)
+    {
+        this.repeats = repeats;
+        this.confidence = confidence;
+    }
+
+    void setReceiverName(String receiverName){this.receiverName = receiverName;}
+
+    void addBit(boolean bit)
+    {
+        final int i = numberOfBits;
+        if ((i >>> 6) >= words.length) words = Arrays.copyOf(words, words.length * 2);
+        if (bit) words[i >>> 6] |= 1L << (63 - (i & 63));
+        numberOfBits++;
+        codeString = null;
+        hash = 0;
+    }
+
+    /**
+     * setBits  -   replace the payload
+     * @param src   -   bits packed most significant bit first
+     * @param count -   number of bits to take from src
+     */
+    void setBits(long[] src, int count)
+    {
+        final int n = (count + 63) >>> 6;
+        if (n > words.length) words = new long[n];
+        System.arraycopy(src, 0, words, 0, n);
+        Arrays.fill(words, n, words.length, 0);
+        if ((count & 63) != 0) words[n - 1] &= -1L << (64 - (count & 63)); // clear bits past the end
+        numberOfBits = count;
+        codeString = null;
+        hash = 0;
+    }
+
+    private int wordCount(){return (numberOfBits + 63) >>> 6;}
+
+    //getters
+    public int size() {return numberOfBits;}
+    public boolean getBit(int i) {return (words[i >>> 6] & (1L << (63 - (i & 63)))) != 0;}
+    public String getProtocolName() {return protocolName;}
+    public int getPulseWidth() {return pulseWidth;}
+    public int getRepeats() {return repeats;}
+    public double getConfidence() {return confidence;}
+    public Instant getReceivedTime(){return receivedTime;}
+    public String getReceiverName(){return receiverName;}
+
+    /**
+     * getBits  -   the payload as a string of 0 and 1
+     * @return  -   the bit string
+     */
+    public String getBits()
+    {
+        if (codeString == null)
+        {
+            char[] c = new char[numberOfBits];
+            for (int i = 0; i < numberOfBits; i++) c[i] = getBit(i) ? '1' : '0';
+            codeString = new String(c);
+        }
+        return codeString;
+    }
+
+    /**
+     * getCode  -   the payload as a number, only the last 64 bits are kept for longer messages
+     * @return  -   the code
+     */
+    public long getCode()
+    {
+        if (numberOfBits == 0) return 0;
+        if (numberOfBits <= 64) return words[0] >>> (64 - numberOfBits);
+        final int start = numberOfBits - 64;
+        final int w = start >>> 6;
+        final int offset = start & 63;
+        if (offset == 0) return words[w];
+        return (words[w] << offset) | (words[w + 1] >>> (64 - offset));
+    }
+
+    /**
+     * getWords -   the packed payload
+     * @return  -   a copy of the payload, most significant bit first
+     */
+    public long[] getWords(){return Arrays.copyOf(words, wordCount());}
+}
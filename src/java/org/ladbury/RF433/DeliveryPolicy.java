@@ -0,0 +1,22 @@
+package org.ladbury.RF433;
+
+/**
+ * DeliveryPolicy   -   what is done with a decoded message when a subscriber's queue is full
+ */
+public enum DeliveryPolicy
+{
+    /**
+     * DROP_NEWEST  -   discard the new message, those already waiting are kept.
+     *                  Suits a subscriber that only falls behind for short bursts
+     */
+    DROP_NEWEST,
+    /**
+     * DROP_OLDEST  -   discard the oldest message still waiting, so the queue always holds the most recent traffic.
+     *                  Suits a slow subscriber where stale messages are of no use
+     */
+    DROP_OLDEST,
+    /**
+     * BLOCK        -   wait for room, the decoder stops until the subscriber catches up
+     */
+    BLOCK
+}
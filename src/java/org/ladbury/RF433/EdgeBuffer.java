@@ -0,0 +1,72 @@
+package org.ladbury.RF433;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * EdgeBuffer   -   preallocated primitive storage for captured edges.
+ *                  The buffer is divided into fixed size frame slots, each edge is one int holding the duration
+ *                  with the pin level after the edge in the top bit, so recording an edge never allocates.
+ *                  The capture store is held outside the heap in a direct buffer, its size is fixed when it is
+ *                  created and the garbage collector never scans or moves it.
+ */
+class EdgeBuffer
+{
+    static final int EDGE_BYTES = 4;
+    private static final int LEVEL_BIT = 0x80000000; // durations are at most Integer.MAX_VALUE so the top bit is free
+
+    private final int slots;
+    private final int slotSize;
+    private final ByteBuffer edges;
+
+    /**
+     * EdgeBuffer   -   Constructor for an off heap buffer
+     * @param slots     -   number of frames that can be held
+     * @param slotSize  -   maximum number of edges in a frame
+     */
+    EdgeBuffer(int slots, int slotSize)
+    {
+        this(slots, slotSize, true);
+    }
+
+    /**
+     * EdgeBuffer   -   Constructor
+     * @param slots     -   number of frames that can be held
+     * @param slotSize  -   maximum number of edges in a frame
+     * @param offHeap   -   true to allocate a direct buffer, false for a small heap buffer such as a copy of a frame
+     */
+    EdgeBuffer(int slots, int slotSize, boolean offHeap)
+    {
+        this.slots = slots;
+        this.slotSize = slotSize;
+        final int bytes = Math.multiplyExact(Math.multiplyExact(slots, slotSize), EDGE_BYTES);
+        this.edges = (offHeap ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes)).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * bytes    -   the memory needed for a buffer
+     * @param slots     -   number of frames
+     * @param slotSize  -   maximum number of edges in a frame
+     * @return          -   the size in bytes
+     */
+    static long bytes(int slots, int slotSize){return (long)slots * slotSize * EDGE_BYTES;}
+
+    //getters
+    int getSlots(){return slots;}
+    int getSlotSize(){return slotSize;}
+    long getCapacityBytes(){return edges.capacity();}
+    int offset(int slot){return slot * slotSize;}
+    int duration(int index){return edges.getInt(index * EDGE_BYTES) & ~LEVEL_BIT;}
+    boolean level(int index){return (edges.getInt(index * EDGE_BYTES) & LEVEL_BIT) != 0;}
+
+    /**
+     * put  -   store an edge
+     * @param index     -   absolute position in the buffer
+     * @param duration  -   time since the previous edge in microseconds, not negative
+     * @param high      -   true if the pin is high after the edge
+     */
+    void put(int index, int duration, boolean high)
+    {
+        edges.putInt(index * EDGE_BYTES, high ? (duration | LEVEL_BIT) : duration);
+    }
+}
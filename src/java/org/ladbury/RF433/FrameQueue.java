@@ -0,0 +1,241 @@
+package org.ladbury.RF433;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * FrameQueue   -   lock free single producer, single consumer queue of captured frames held in a fixed off heap
+ *                  frame store, so the memory used is set when the queue is created whatever the traffic.
+ *                  The producer (GPIO listener) writes edges directly into the slot it holds and publishes it,
+ *                  the consumer (decoder thread) takes the oldest published slot and releases it once decoded.
+ *                  Slots pass between the threads by index through two rings, published slots to the consumer
+ *                  and released slots back to the producer. A slot is only ever held by one thread, so frames
+ *                  cannot be torn.
+ *                  When no slot is free the overflow policy decides which frame is lost. For DROP_OLDEST the
+ *                  producer takes the oldest published slot back with the same compare and set the consumer
+ *                  uses, so a slot is either decoded or reused, never both.
+ *                  The consumer spins briefly and then parks, the producer unparks it when it publishes a frame.
+ */
+class FrameQueue
+{
+    private static final int SPIN_TRIES = 1000;
+    private static final int SPARE_SLOTS = 2; // the slot being captured into and the slot being decoded
+
+    private final RawMessage[] frames;
+    private final EdgeBuffer edges;
+    private final OverflowPolicy policy;
+    private final int[] published;  // slot indices waiting to be decoded, oldest at head
+    private final int publishedMask;
+    private final int[] released;   // slot indices free for the producer, oldest at freeHead
+    private final int releasedMask;
+    private final AtomicLong head;  // next published slot to be taken, advanced by the consumer or a DROP_OLDEST producer
+    private final AtomicLong tail;  // next published position, written by the producer only
+    private final AtomicLong freeTail; // next released position, written by the consumer only
+    private volatile Thread consumer;
+    private volatile boolean consumerWaiting;
+
+    // fields used only by the producer
+    private int writeSlot;
+    private long producerTail;
+    private long freeHead;
+    private long publishedCount;
+    private volatile long dropped;  // read by metrics on other threads, volatile so a long is never torn on 32 bit ARM
+
+    // fields used only by the consumer
+    private int readSlot;           // -1 when the consumer holds no slot
+    private long consumerFreeTail;
+
+    /**
+     * FrameQueue   -   Constructor, allocates all the frame storage up front
+     * @param capacity      -   the number of frames that can be waiting to be decoded, at least 1
+     * @param maxFrameSize  -   the maximum number of edges in a frame
+     * @param policy        -   which frame to lose when all of them are waiting
+     */
+    FrameQueue(int capacity, int maxFrameSize, OverflowPolicy policy)
+    {
+        final int slots = Math.max(1, capacity) + SPARE_SLOTS;
+        this.edges = new EdgeBuffer(slots, maxFrameSize);
+        this.frames = new RawMessage[slots];
+        for (int i = 0; i < slots; i++) frames[i] = new RawMessage(edges, i);
+        this.policy = policy;
+        final int ringSize = Integer.highestOneBit(slots - 1) << 1; // never fewer positions than slots
+        this.published = new int[ringSize];
+        this.publishedMask = ringSize - 1;
+        this.released = new int[ringSize];
+        this.releasedMask = ringSize - 1;
+        for (int i = 1; i < slots; i++) released[i - 1] = i; // slot 0 is captured into first
+        this.head = new AtomicLong(0);
+        this.tail = new AtomicLong(0);
+        this.freeTail = new AtomicLong(slots - 1);
+        this.consumerWaiting = false;
+        this.writeSlot = 0;
+        this.producerTail = 0;
+        this.freeHead = 0;
+        this.publishedCount = 0;
+        this.dropped = 0;
+        this.readSlot = -1;
+        this.consumerFreeTail = slots - 1;
+    }
+
+    /**
+     * minimumMemory    -   the smallest frame store, one frame waiting as well as the frames being captured and decoded
+     * @param maxFrameSize  -   the maximum number of edges in a frame
+     * @return              -   bytes
+     */
+    static long minimumMemory(int maxFrameSize){return EdgeBuffer.bytes(1 + SPARE_SLOTS, maxFrameSize);}
+
+    /**
+     * capacityFor  -   the number of frames that can wait in a frame store of a given size
+     * @param memoryBytes   -   the memory the store may use, at least minimumMemory
+     * @param maxFrameSize  -   the maximum number of edges in a frame
+     * @return              -   the capacity, the store never uses more than the memory given
+     * @throws IllegalArgumentException if the memory is less than minimumMemory
+     */
+    static int capacityFor(long memoryBytes, int maxFrameSize)
+    {
+        if (memoryBytes < minimumMemory(maxFrameSize))
+        {
+            throw new IllegalArgumentException("Frame memory of " + memoryBytes + " bytes is less than the minimum of " + minimumMemory(maxFrameSize));
+        }
+        final long slots = memoryBytes / EdgeBuffer.bytes(1, maxFrameSize);
+        return (int)Math.min(Integer.MAX_VALUE / 2, slots - SPARE_SLOTS);
+    }
+
+    //getters
+    int size(){return (int)Math.max(0, tail.get() - head.get());}
+    int getCapacity(){return frames.length - SPARE_SLOTS;}
+    long getMemoryBytes(){return edges.getCapacityBytes();}
+    OverflowPolicy getPolicy(){return policy;}
+    long getDropped(){return dropped;}
+    long getPublished(){return publishedCount;} // producer only
+
+    /**
+     * writeFrame   -   producer only
+     * @return      -   the frame currently being captured
+     */
+    RawMessage writeFrame(){return frames[writeSlot];}
+
+    /**
+     * publish  -   producer only, makes the frame being captured available to the consumer
+     * @return  -   the next frame to capture into, the same frame again if it was dropped
+     */
+    RawMessage publish()
+    {
+        int next;
+        while (true)
+        {
+            if (freeHead < freeTail.get())
+            {
+                next = released[(int)(freeHead++ & releasedMask)];
+                break;
+            }
+            if (policy == OverflowPolicy.DROP_NEWEST)
+            {
+                dropped++; // consumer is too far behind, reuse the frame rather than overwrite a queued one
+                return writeFrame();
+            }
+            next = claim();
+            if (next >= 0)
+            {
+                dropped++; // the oldest waiting frame is reused for the next capture
+                break;
+            }
+            // the consumer took the last waiting frame, so it has just released a slot
+        }
+        published[(int)(producerTail & publishedMask)] = writeSlot;
+        producerTail++;
+        publishedCount++;
+        tail.set(producerTail);
+        if (consumerWaiting) LockSupport.unpark(consumer);
+        writeSlot = next;
+        return writeFrame();
+    }
+
+    /**
+     * claim    -   take the oldest published slot, used by the consumer and by a DROP_OLDEST producer
+     * @return  -   the slot index, or -1 if nothing is waiting
+     */
+    private int claim()
+    {
+        long h;
+        while ((h = head.get()) < tail.get())
+        {
+            final int slot = published[(int)(h & publishedMask)];
+            if (head.compareAndSet(h, h + 1)) return slot;
+        }
+        return -1;
+    }
+
+    /**
+     * poll -   consumer only
+     * @return  -   the oldest published frame, the same frame until it is released, or null if there are none
+     */
+    RawMessage poll()
+    {
+        if (readSlot < 0) readSlot = claim();
+        return (readSlot < 0) ? null : frames[readSlot];
+    }
+
+    /**
+     * release  -   consumer only, hands the frame returned by poll or take back to the producer
+     */
+    void release()
+    {
+        if (readSlot < 0) return;
+        released[(int)(consumerFreeTail & releasedMask)] = readSlot;
+        consumerFreeTail++;
+        readSlot = -1;
+        freeTail.set(consumerFreeTail); // after the frame has been read, so the producer cannot reuse it early
+    }
+
+    /**
+     * take -   consumer only, waits for a frame by spinning briefly and then parking
+     * @param timeout   -   the maximum time to wait
+     * @param unit      -   the units of timeout
+     * @return          -   the oldest published frame or null if none arrived in time
+     * @throws InterruptedException if the consumer thread is interrupted while waiting
+     */
+    RawMessage take(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        RawMessage frame;
+        for (int i = 0; i < SPIN_TRIES; i++)
+        {
+            frame = poll();
+            if (frame != null) return frame;
+        }
+        consumer = Thread.currentThread();
+        consumerWaiting = true;
+        try
+        {
+            frame = poll(); // recheck after advertising we are waiting, or a publish could be missed
+            if (frame != null) return frame;
+            LockSupport.parkNanos(this, unit.toNanos(timeout));
+            if (Thread.interrupted()) throw new InterruptedException();
+            return poll();
+        } finally
+        {
+            consumerWaiting = false;
+        }
+    }
+
+    /**
+     * setWaiting   -   consumer only, for a consumer that waits on several queues itself rather than in take.
+     *                  While waiting is set the producer unparks the calling thread when it publishes a frame
+     * @param waiting   -   true before the consumer parks, false once it wakes
+     */
+    void setWaiting(boolean waiting)
+    {
+        if (waiting) consumer = Thread.currentThread();
+        consumerWaiting = waiting;
+    }
+
+    /**
+     * wake -   release the consumer from take without publishing a frame
+     */
+    void wake()
+    {
+        Thread t = consumer;
+        if (t != null) LockSupport.unpark(t);
+    }
+}
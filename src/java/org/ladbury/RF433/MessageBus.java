@@ -0,0 +1,88 @@
+package org.ladbury.RF433;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * MessageBus   -   passes decoded messages to the subscribers that want them as soon as they are decoded.
+ *                  Each subscriber has its own bounded queue, publishing only tests the filters and queues, so
+ *                  it takes the same time however slow the subscribers are (unless one chose to BLOCK).
+ *                  Subscribing and cancelling can happen at any time from any thread.
+ */
+public class MessageBus
+{
+    private final List<Subscription> subscriptions;
+    private final boolean blockAllowed; // false when the publisher is a decoder worker shared between receivers
+
+    public MessageBus()
+    {
+        this(true);
+    }
+
+    /**
+     * MessageBus   -   Constructor
+     * @param blockAllowed  -   false to refuse BLOCK subscribers, for a bus published to by a ReceiverManager worker,
+     *                          where one waiting subscriber would stop decoding for every receiver of the worker
+     */
+    MessageBus(boolean blockAllowed)
+    {
+        this.subscriptions = new CopyOnWriteArrayList<>();
+        this.blockAllowed = blockAllowed;
+    }
+
+    /**
+     * subscribe    -   receive messages through a queue the subscriber takes them from
+     * @param filter    -   the messages wanted
+     * @param capacity  -   the most messages that can wait in the queue
+     * @param policy    -   what happens to a message when the queue is full, BLOCK throws IllegalArgumentException
+     *                      on the buses of a ReceiverManager and its receivers
+     * @return          -   the subscription, take messages from it and cancel it when done
+     */
+    public Subscription subscribe(MessageFilter filter, int capacity, DeliveryPolicy policy)
+    {
+        checkPolicy(policy);
+        Subscription s = new Subscription(this, filter, capacity, policy);
+        subscriptions.add(s);
+        return s;
+    }
+
+    /**
+     * subscribe    -   receive messages on a delivery thread of the subscriber's own
+     * @param filter    -   the messages wanted
+     * @param capacity  -   the most messages that can wait for the consumer
+     * @param policy    -   what happens to a message when the queue is full, BLOCK throws IllegalArgumentException
+     *                      on the buses of a ReceiverManager and its receivers
+     * @param consumer  -   called with each message on the delivery thread
+     * @return          -   the subscription, cancel it to stop the thread
+     */
+    public Subscription subscribe(MessageFilter filter, int capacity, DeliveryPolicy policy, Consumer<DecodedMessage> consumer)
+    {
+        checkPolicy(policy);
+        Subscription s = new Subscription(this, filter, capacity, policy);
+        s.deliverTo(consumer);
+        subscriptions.add(s);
+        return s;
+    }
+
+    private void checkPolicy(DeliveryPolicy policy)
+    {
+        if (policy == DeliveryPolicy.BLOCK && !blockAllowed)
+        {
+            throw new IllegalArgumentException("A subscriber cannot block the decoder workers shared between receivers");
+        }
+    }
+
+    void remove(Subscription s){subscriptions.remove(s);}
+    public boolean isBlockAllowed(){return blockAllowed;}
+    public int getSubscriberCount(){return subscriptions.size();}
+
+    /**
+     * publish  -   queue a message for every subscriber whose filter it passes
+     * @param msg   -   the message
+     */
+    void publish(DecodedMessage msg)
+    {
+        for (Subscription s : subscriptions) s.offer(msg);
+    }
+}
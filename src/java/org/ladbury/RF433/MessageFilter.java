@@ -0,0 +1,64 @@
+package org.ladbury.RF433;
+
+import java.util.function.Predicate;
+
+/**
+ * MessageFilter    -   chooses the decoded messages a subscriber receives.
+ *                      Filters are built from the protocol name and the code and combined with and / or,
+ *                      they are immutable and are tested on the decoder thread, so they should be cheap.
+ */
+public final class MessageFilter implements Predicate<DecodedMessage>
+{
+    private static final MessageFilter ANY = new MessageFilter(m -> true);
+
+    private final Predicate<DecodedMessage> test;
+
+    private MessageFilter(Predicate<DecodedMessage> test){this.test = test;}
+
+    /**
+     * any  -   every message
+     */
+    public static MessageFilter any(){return ANY;}
+
+    /**
+     * protocol -   messages decoded with any of the named protocols
+     * @param names -   protocol names, as ProtocolDefinition.name()
+     */
+    public static MessageFilter protocol(String... names)
+    {
+        final String[] n = names.clone();
+        return new MessageFilter(m ->
+        {
+            for (String name : n) if (name.equals(m.getProtocolName())) return true;
+            return false;
+        });
+    }
+
+    /**
+     * code -   messages with this code, as DecodedMessage.getCode()
+     * @param code  -   the code
+     */
+    public static MessageFilter code(long code){return new MessageFilter(m -> m.getCode() == code);}
+
+    /**
+     * code -   messages with this code and number of bits
+     * @param code      -   the code
+     * @param bitCount  -   the number of bits
+     */
+    public static MessageFilter code(long code, int bitCount)
+    {
+        return new MessageFilter(m -> m.size() == bitCount && m.getCode() == code);
+    }
+
+    /**
+     * of   -   messages accepted by any predicate, for filters the factories cannot express
+     * @param predicate -   the test
+     */
+    public static MessageFilter of(Predicate<DecodedMessage> predicate){return new MessageFilter(predicate);}
+
+    public MessageFilter and(MessageFilter other){return new MessageFilter(m -> test(m) && other.test(m));}
+    public MessageFilter or(MessageFilter other){return new MessageFilter(m -> test(m) || other.test(m));}
+
+    @Override
+    public boolean test(DecodedMessage message){return test.test(message);}
+}
@@ -0,0 +1,20 @@
+package org.ladbury.RF433;
+
+/**
+ * OverflowPolicy   -   what the receiver does with a newly captured frame when every slot of its frame store
+ *                      is waiting to be decoded. The listener capturing frames can never wait, so there is no
+ *                      blocking choice, a subscriber's queue of decoded messages has its own DeliveryPolicy
+ */
+public enum OverflowPolicy
+{
+    /**
+     * DROP_NEWEST  -   discard the new frame, the frames already waiting are decoded.
+     *                  Suits a decoder that only falls behind for short bursts
+     */
+    DROP_NEWEST,
+    /**
+     * DROP_OLDEST  -   discard the oldest frame still waiting, so the store always holds the most recent traffic.
+     *                  Suits a slow decoder where stale frames are of no use
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,289 @@
+package org.ladbury.RF433;
+
+import org.ladbury.RCSwitch.HighLow;
+import org.ladbury.RCSwitch.ProtocolDefinition;
+import org.ladbury.RCSwitch.ProtocolMatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ProtocolLearner  -   infers new protocols from frames that no known protocol decodes.
+ *                      Undecoded frames are grouped by length and sync duration, repeats of the same remote fall
+ *                      into the same group. Once a group holds enough frames its durations are clustered, the
+ *                      smallest cluster gives the pulse width and every cluster must be a whole number of pulses.
+ *                      The bit pairs are then read as multiples of the pulse width, a frame whose pairs are all one
+ *                      of two shapes gives the zero and one bits, and the sync gap gives the sync ratio.
+ *                      A learned protocol is only accepted if it decodes the frames it was learned from.
+ *                      Used by the decoder thread only.
+ */
+class ProtocolLearner
+{
+    private static final int MIN_FRAMES = 8;        // frames of one shape needed before learning
+    private static final int MAX_FRAMES = 64;       // frames kept in a group, the oldest are dropped
+    private static final int MAX_GROUPS = 32;       // groups kept, the least recently used is dropped
+    private static final int MIN_BITS = 8;          // shortest message that can be learned
+    private static final int MIN_CLUSTER_PERCENT = 2; // smaller clusters are treated as glitches
+    private static final int MIN_SHAPE_PERCENT = 5; // share of the bit pairs each of zero and one must have
+    private static final int MIN_COVER_PERCENT = 95; // share of the bit pairs that must be zero or one
+    private static final int MIN_DECODE_PERCENT = 90; // share of the group the learned protocol must decode
+    private static final int MAX_RATIO = Byte.MAX_VALUE; // largest number of pulses HighLow can hold
+
+    /**
+     * Group    -   undecoded frames with the same number of edges and a similar sync duration
+     */
+    private static class Group
+    {
+        final int size;
+        final int sync;
+        final List<int[]> frames = new ArrayList<>();
+        int attempts = 0;  // frame count when learning last failed
+
+        Group(int size, int sync)
+        {
+            this.size = size;
+            this.sync = sync;
+        }
+    }
+
+    private final int tolerancePercent;
+    private final int maxEdges;
+    private final List<Group> groups;           // most recently used last
+    private final List<ProtocolDefinition> known;
+    private int learnedCount;
+
+    /**
+     * ProtocolLearner  -   Constructor
+     * @param tolerancePercent  -   percentage variation in pulse width allowed
+     * @param maxEdges          -   the largest number of durations in a frame
+     * @param known             -   the protocols already decoded, built in and learned
+     */
+    ProtocolLearner(int tolerancePercent, int maxEdges, ProtocolDefinition[] known)
+    {
+        this.tolerancePercent = tolerancePercent;
+        this.maxEdges = maxEdges;
+        this.groups = new ArrayList<>();
+        this.known = new ArrayList<>(Arrays.asList(known));
+        this.learnedCount = 0;
+        for (ProtocolDefinition d : known) if (!d.isBuiltIn()) learnedCount++;
+    }
+
+    /**
+     * add  -   add an undecoded frame and try to learn from its group
+     * @param msg   -   the frame
+     * @return      -   a newly learned protocol, or null
+     */
+    ProtocolDefinition add(RawMessage msg)
+    {
+        final int n = msg.size();
+        if (n < 2 * MIN_BITS + 1) return null;
+        final int[] durations = new int[n];
+        for (int i = 0; i < n; i++) durations[i] = msg.duration(i);
+
+        Group group = findGroup(n, durations[0]);
+        if (group.frames.size() >= MAX_FRAMES) group.frames.remove(0);
+        group.frames.add(durations);
+        if (group.frames.size() < MIN_FRAMES || group.frames.size() < 2 * group.attempts) return null;
+
+        ProtocolDefinition learned = learn(group.frames);
+        if (learned == null)
+        {
+            group.attempts = group.frames.size(); // wait for twice as many frames before trying again
+            return null;
+        }
+        groups.remove(group);
+        known.add(learned);
+        learnedCount++;
+        return learned;
+    }
+
+    private Group findGroup(int size, int sync)
+    {
+        final int tolerance = sync * tolerancePercent / 100;
+        for (Iterator<Group> it = groups.iterator(); it.hasNext(); )
+        {
+            Group g = it.next();
+            if (g.size == size && Math.abs(g.sync - sync) < tolerance)
+            {
+                it.remove();
+                groups.add(g); // most recently used last
+                return g;
+            }
+        }
+        if (groups.size() >= MAX_GROUPS) groups.remove(0);
+        Group g = new Group(size, sync);
+        groups.add(g);
+        return g;
+    }
+
+    /**
+     * learn    -   infer a protocol from frames with the same shape
+     * @param frames    -   the frames
+     * @return          -   the protocol, or null if the frames do not fit a pulse width modulated protocol
+     */
+    private ProtocolDefinition learn(List<int[]> frames)
+    {
+        final double pulseWidth = pulseWidth(frames);
+        if (pulseWidth <= 0) return null;
+
+        // try both places the data could start, after the sync gap or after a sync gap and a short pulse
+        ProtocolDefinition best = null;
+        int bestCover = 0;
+        for (int firstData = 1; firstData <= 2; firstData++)
+        {
+            final boolean inverted = (firstData == 2);
+            final Map<Integer, Integer> shapes = new HashMap<>(); // pair shape high * 256 + low, and its count
+            int pairs = 0;
+            for (int[] d : frames)
+            {
+                for (int i = firstData; i + 1 < d.length; i += 2)
+                {
+                    final int high = pulses(d[i], pulseWidth);
+                    final int low = pulses(d[i + 1], pulseWidth);
+                    pairs++;
+                    if (high > 0 && low > 0) shapes.merge(high * 256 + low, 1, Integer::sum);
+                }
+            }
+            if (pairs == 0 || pairs / frames.size() < MIN_BITS) continue;
+            int first = -1;
+            int second = -1;
+            for (Map.Entry<Integer, Integer> e : shapes.entrySet())
+            {
+                if (first < 0 || e.getValue() > shapes.get(first))
+                {
+                    second = first;
+                    first = e.getKey();
+                } else if (second < 0 || e.getValue() > shapes.get(second))
+                {
+                    second = e.getKey();
+                }
+            }
+            if (second < 0) continue; // every bit the same, zero and one cannot be told apart
+            final int cover = shapes.get(first) + shapes.get(second);
+            if (cover * 100 < pairs * MIN_COVER_PERCENT || shapes.get(second) * 100 < pairs * MIN_SHAPE_PERCENT) continue;
+
+            // zero is the shape with the shorter high part
+            final int zeroShape = (first / 256 < second / 256 || (first / 256 == second / 256 && first < second)) ? first : second;
+            final int oneShape = (zeroShape == first) ? second : first;
+            final HighLow zero = new HighLow((byte)(zeroShape / 256), (byte)(zeroShape % 256));
+            final HighLow one = new HighLow((byte)(oneShape / 256), (byte)(oneShape % 256));
+
+            final int syncGap = median(frames, 0);
+            final int syncPulses = (int)Math.round(syncGap / pulseWidth);
+            if (syncPulses <= Math.max(Math.max(zero.high, zero.low), Math.max(one.high, one.low)) || syncPulses > MAX_RATIO) continue;
+            final HighLow sync;
+            if (inverted)
+            {
+                final int shortPulses = pulses(median(frames, 1), pulseWidth);
+                if (shortPulses <= 0 || shortPulses >= syncPulses) continue;
+                sync = new HighLow((byte)syncPulses, (byte)shortPulses);
+            } else
+            {
+                // a trailing odd duration is the high part of the next sync
+                final int[] d0 = frames.get(0);
+                final int trailing = ((d0.length - 1) % 2 == 1) ? pulses(median(frames, d0.length - 1), pulseWidth) : 1;
+                sync = new HighLow((byte)Math.max(1, Math.min(trailing, syncPulses - 1)), (byte)syncPulses);
+            }
+            ProtocolDefinition candidate = new ProtocolDefinition(nextName(), (int)Math.round(pulseWidth),
+                    sync, zero, one, inverted);
+            if (cover > bestCover && decodes(candidate, frames))
+            {
+                best = candidate;
+                bestCover = cover;
+            }
+        }
+        if (best == null) return null;
+        for (ProtocolDefinition d : known)
+        {
+            if (d.sameTimings(best)) return null; // already known, the frames must be failing for another reason
+        }
+        return best;
+    }
+
+    /**
+     * pulseWidth   -   cluster the data durations and find the pulse width they are multiples of
+     * @return      -   the pulse width in microseconds, or 0 if the durations are not multiples of one width
+     */
+    private double pulseWidth(List<int[]> frames)
+    {
+        int count = 0;
+        for (int[] d : frames) count += d.length - 1;
+        final int[] all = new int[count];
+        int k = 0;
+        for (int[] d : frames) for (int i = 1; i < d.length; i++) all[k++] = d[i];
+        Arrays.sort(all);
+
+        // split the sorted durations wherever the gap to the next is larger than the tolerance
+        List<double[]> clusters = new ArrayList<>(); // mean, count
+        int start = 0;
+        for (int i = 1; i <= all.length; i++)
+        {
+            if (i == all.length || all[i] - all[i - 1] > all[i - 1] * tolerancePercent / 100)
+            {
+                long sum = 0;
+                for (int j = start; j < i; j++) sum += all[j];
+                if ((i - start) * 100 >= all.length * MIN_CLUSTER_PERCENT) clusters.add(new double[]{(double)sum / (i - start), i - start});
+                start = i;
+            }
+        }
+        if (clusters.isEmpty()) return 0;
+
+        // every cluster must be a whole number of the smallest, then refine the width from all of them
+        final double smallest = clusters.get(0)[0];
+        double total = 0;
+        double pulses = 0;
+        for (double[] c : clusters)
+        {
+            final long ratio = Math.round(c[0] / smallest);
+            if (ratio < 1 || ratio > MAX_RATIO) return 0;
+            if (Math.abs(c[0] - ratio * smallest) > smallest * tolerancePercent / 100) return 0;
+            total += c[0] * c[1];
+            pulses += ratio * c[1];
+        }
+        return total / pulses;
+    }
+
+    private int pulses(int duration, double pulseWidth)
+    {
+        final long n = Math.round(duration / pulseWidth);
+        if (n < 1 || n > MAX_RATIO) return -1;
+        return (Math.abs(duration - n * pulseWidth) < pulseWidth * tolerancePercent / 100) ? (int)n : -1;
+    }
+
+    private static int median(List<int[]> frames, int index)
+    {
+        final int[] values = new int[frames.size()];
+        for (int f = 0; f < values.length; f++) values[f] = frames.get(f)[index];
+        Arrays.sort(values);
+        return values[values.length / 2];
+    }
+
+    private boolean decodes(ProtocolDefinition candidate, List<int[]> frames)
+    {
+        ProtocolMatcher matcher = new ProtocolMatcher(maxEdges, new ProtocolDefinition[]{candidate});
+        int decoded = 0;
+        for (int[] d : frames)
+        {
+            if (matcher.decode(d, 0, d.length, tolerancePercent, MIN_BITS)) decoded++;
+        }
+        return decoded * 100 >= frames.size() * MIN_DECODE_PERCENT;
+    }
+
+    private String nextName()
+    {
+        String name;
+        int n = learnedCount;
+        boolean used;
+        do
+        {
+            name = "learned" + (++n);
+            used = false;
+            for (ProtocolDefinition d : known) used |= d.name().equals(name);
+        } while (used);
+        return name;
+    }
+}
@@ -0,0 +1,159 @@
+package org.ladbury.RF433;
+
+import org.ladbury.RCSwitch.FrameDurations;
+import org.ladbury.RCSwitch.ProtocolDefinition;
+import org.ladbury.RCSwitch.ProtocolMatcher;
+
+import java.time.Instant;
+
+/**
+ * RawMessage   -   a view of one frame slot in an EdgeBuffer
+ *                  instances are created once per slot and reused, so capturing a frame does not allocate
+ */
+class RawMessage implements FrameDurations
+{
+    private final EdgeBuffer buffer;
+    private final int offset;
+    private int size;
+    private long receivedTime; //milliseconds since the epoch
+    private long startMicros;  //time of the first edge on the receiver's microsecond clock
+    private long publishedNanos; //when the listener passed the frame to the decoder, System.nanoTime()
+
+    // result of decoding while the frame was captured, see Receiver.setStreamingDecode
+    private final long[] decodedBits;
+    private ProtocolDefinition decodedProtocol;
+    private int decodedPulseWidth;
+    private int decodedBitCount;
+
+    RawMessage(EdgeBuffer buffer, int slot)
+    {
+        this.buffer = buffer;
+        this.offset = buffer.offset(slot);
+        this.size = 0;
+        this.receivedTime = System.currentTimeMillis();
+        this.startMicros = 0;
+        this.decodedBits = new long[(buffer.getSlotSize() / 2 + 63) >>> 6];
+        this.decodedProtocol = null;
+    }
+
+    /**
+     * start    -   empty the frame ready for a new message
+     * @param receivedTime  -   time the message started in milliseconds since the epoch
+     * @param startMicros   -   time of the first edge in microseconds
+     */
+    void start(long receivedTime, long startMicros)
+    {
+        this.size = 0;
+        this.receivedTime = receivedTime;
+        this.startMicros = startMicros;
+        this.decodedProtocol = null;
+    }
+
+    /**
+     * setDecoded   -   store the result of a successful match in place of the edges
+     * @param matcher   -   a matcher that has just finished successfully
+     */
+    void setDecoded(ProtocolMatcher matcher)
+    {
+        decodedProtocol = matcher.getDefinition();
+        decodedPulseWidth = matcher.getPulseWidth();
+        decodedBitCount = matcher.getBitCount();
+        matcher.copyBits(decodedBits);
+    }
+
+    /**
+     * clear    -   throw away the edges recorded so far
+     */
+    void clear(){size = 0;}
+
+    /**
+     * add  -   append an edge to the frame
+     * @param duration  -   time since the previous edge in microseconds
+     * @param high      -   true if the pin is high after the edge
+     * @return          -   false if the frame is full
+     */
+    boolean add(int duration, boolean high)
+    {
+        if (size >= buffer.getSlotSize()) return false;
+        buffer.put(offset + size, duration, high);
+        size++;
+        return true;
+    }
+
+    /**
+     * copy -   make a standalone copy of the frame that does not depend on the slot being kept
+     * @return  -   the copy
+     */
+    RawMessage copy()
+    {
+        RawMessage c = new RawMessage(new EdgeBuffer(1, Math.max(size, 1), false), 0);
+        c.receivedTime = receivedTime;
+        c.startMicros = startMicros;
+        for (int i = 0; i < size; i++) c.add(duration(i), level(i));
+        return c;
+    }
+
+    void setPublishedNanos(long publishedNanos){this.publishedNanos = publishedNanos;}
+
+    //getters
+    long getPublishedNanos(){return publishedNanos;}
+    @Override public int size(){return size;}
+    @Override public int duration(int i){return buffer.duration(offset + i);}
+    boolean level(int i){return buffer.level(offset + i);}
+    boolean isDecoded(){return decodedProtocol != null;}
+    ProtocolDefinition getDecodedProtocol(){return decodedProtocol;}
+    int getDecodedPulseWidth(){return decodedPulseWidth;}
+    int getDecodedBitCount(){return decodedBitCount;}
+    long[] getDecodedBits(){return decodedBits;}
+    public Instant getReceivedTime(){return Instant.ofEpochMilli(receivedTime);}
+    long getReceivedMillis(){return receivedTime;}
+    long getStartMicros(){return startMicros;}
+
+    @Override
+    public String toString()
+    {
+        String s = "";
+        for (int i = 0; i < size; i++)
+        {
+            s = s+duration(i)+" "+(level(i)?"HI":"LO")+" "; // duration and new pin state
+        }
+        return s;
+    }
+    public String timingsToCSV()
+    {
+        String s = "";
+        for (int i = 0; i < size; i++)
+        {
+            s = s+duration(i)+",";
+        }
+        return s.substring(0,s.length()-1); // remove last ,
+    }
+    public String waveform()
+    {
+        String s = "";
+        int pulses;
+        int pulseWidth;
+        // Characters tried for drawing the pulse train
+        // Low line - "_", "\u0332" Combining Low Line, "\uFF3F"; FULLWIDTH LOW LINE
+        // High line - "\u0305" COMBINING OVERLINE, "\u203E" over line
+        // Vertical -  "\u20D2" COMBINING LONG VERTICAL LINE OVERLAY, "\u007C" Vertical line, "\u02E9" MODIFIER LETTER EXTRA-LOW TONE BAR
+        if (duration(0) > 50000) {return "Excessive duration in pluse 0 "+duration(0);}
+        pulseWidth = 100; //gives a reasonable pulse train
+        for (int e = 0; e < size; e++)
+        {
+            pulses = duration(e)/pulseWidth;
+            if (level(e))
+            {
+                // rising edge so for the duration it was low
+                for (int i = 0; i<pulses; i++) s = s+ "_";
+                s = s+"\u20D2";
+            } else
+            {
+                // falling edge so for the duration it was high
+                for (int i = 0; i<pulses; i++) s = s+"\u0305";
+                s = s+"\u20D2";
+            }
+        }
+        return s;
+    }
+}
@@ -3,58 +3,306 @@ import com.pi4j.io.gpio.*;
 import com.pi4j.io.gpio.event.GpioPinDigitalStateChangeEvent;
 import com.pi4j.io.gpio.event.GpioPinListenerDigital;
 
-import java.time.Instant;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import org.apache.commons.collections4.queue.CircularFifoQueue;
+import org.ladbury.RCSwitch.EdgeListener;
 import org.ladbury.RCSwitch.HighLow;
-import org.ladbury.RCSwitch.Protocol;
+import org.ladbury.RCSwitch.LatencyHistogram;
+import org.ladbury.RCSwitch.ProtocolDefinition;
+import org.ladbury.RCSwitch.ProtocolMatcher;
+import org.ladbury.RCSwitch.ProtocolRegistry;
+import org.ladbury.RCSwitch.RadioMetrics;
 
 
 /**
  * Receiver is a simple class to receive changing waveforms and store them for interpretation
  * Created by GJWood on 17/01/2017.
  */
-public class Receiver implements GpioPinListenerDigital,Runnable
+public class Receiver implements GpioPinListenerDigital,EdgeListener,Runnable
 {
-    private int pulseWidthTolerance; //percentage variation in pulse width allowed
+    // the decoding configuration is volatile as the decoder is already running when the setters are called
+    private volatile int pulseWidthTolerance; //percentage variation in pulse width allowed
     @SuppressWarnings("FieldCanBeLocal")
     private final int MIN_MESSAGE_SEPARATION_TIME = 4300; //minimum gap between rawMessages in microseconds
-    @SuppressWarnings("FieldCanBeLocal")
-    private final int MESSAGE_STORAGE_CAPACITY = 1000;
-    private static final int MIN_MESSAGE_SIZE = 6; //two bits sync + four bits message
+    private static final int MESSAGE_STORAGE_CAPACITY = 1000;
+    static final int MIN_MESSAGE_SIZE = 6; //two bits sync + four bits message
+    public static final int GLITCH_AUTO = -1; // glitch threshold set from the registered protocols
+    private static final int GLITCH_FRACTION = 3; // a glitch is shorter than a third of the shortest protocol duration
     private static final int MAX_MESSAGE_SIZE = 258;//66; // limit on long (64bits) => 32 bit * 2 H/L changes per bit + 2 for sync
+    public static final long DEFAULT_FRAME_MEMORY = EdgeBuffer.bytes(MESSAGE_STORAGE_CAPACITY + 2, MAX_MESSAGE_SIZE); // room for 1000 waiting frames
+    public static final long MIN_FRAME_MEMORY = FrameQueue.minimumMemory(MAX_MESSAGE_SIZE); // room for 1 waiting frame
 
     private final GpioPinDigitalInput receivePin;
     private RawMessage rawMessage;
-    private volatile boolean newMessage;
     private volatile boolean interrupted;
     private volatile boolean finished;
     @SuppressWarnings("FieldCanBeLocal")
-    private final Thread decoder;
-    private final CircularFifoQueue <RawMessage> rawMessages;
+    private final Thread decoder; // null when a ReceiverManager worker decodes
+    private String name; // reported with each message, null for a receiver working alone
+    private final MessageBus subscribers;
+    private volatile ProtocolRegistry registry;
+    private volatile ProtocolMatcher matcher; // used by the decoder thread only, replaced by the setters
+    private ProtocolMatcher streamMatcher; // used by the listener thread only
+    private volatile ProtocolLearner learner; // null if protocols are not being learned
+    private Path learnedFile;
+    private final List<ProtocolDefinition> learnedProtocols; // those in the learned protocol file
+    private ProtocolDefinition decodedProtocol;
+    private final long[] bits; // scratch for copying decoded bits
+    private volatile long refinedCount;
+    private volatile BurstAggregator bursts; // null if repeats are reported individually
+    private int burstWindow;
+    private volatile CaptureWriter capture; // null if frames are not being recorded
+    private volatile long decodedCount;
+    private volatile boolean printMessages;
+    private volatile Consumer<DecodedMessage> messageListener; // null if no one is listening
+    private boolean streamingDecode;
+    private boolean streamAlive;
+    private int streamEdges;
+    private final FrameQueue rawMessages; // handoff from the listener thread to the decoder thread
+    private final CircularFifoQueue<RawMessage> undecodedMessages;
     private final CircularFifoQueue<DecodedMessage> decodedMessages;
 
     private long lastTime;
+    private int glitchSetting; // GLITCH_AUTO, 0 for no filter, or a fixed threshold
+    private volatile int glitchThreshold; // microseconds, 0 for no filter
+    private boolean pendingEdge; // an edge held back until the next shows it is not the start of a glitch
+    private long pendingTime;
+    private boolean pendingHigh;
+    private final RadioMetrics metrics;
+    private final LatencyHistogram handlerLatency; // listener entered to edge buffered, the handler's own cost
+    private final LatencyHistogram queueLatency;   // gap seen to frame taken by the decoder
+    private final LatencyHistogram decodeLatency;  // frame taken to decode finished
+    private final LatencyHistogram frameLatency;   // gap seen to message delivered
 
+    /**
+     * Receiver -   Constructor, starts the decoder thread, with room for 1000 frames waiting to be decoded
+     *              and the newest frames dropped if the decoder falls further behind
+     * @param receivePin    -   the pin the radio receiver is connected to,
+     *                          null if edges will be supplied by calling onEdge (replay or simulation)
+     */
     public Receiver(GpioPinDigitalInput receivePin)
+    {
+        this(receivePin, DEFAULT_FRAME_MEMORY, OverflowPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * Receiver -   Constructor, starts the decoder thread
+     * @param receivePin        -   the pin the radio receiver is connected to,
+     *                              null if edges will be supplied by calling onEdge (replay or simulation)
+     * @param frameMemory       -   bytes of off heap memory for frames waiting to be decoded, allocated now and never
+     *                              grown, it also limits the undecoded frames kept for analysis to the same number.
+     *                              At least MIN_FRAME_MEMORY, less throws IllegalArgumentException
+     * @param overflowPolicy    -   which frame is lost when the decoder falls so far behind that the memory is full
+     */
+    public Receiver(GpioPinDigitalInput receivePin, long frameMemory, OverflowPolicy overflowPolicy)
+    {
+        this(receivePin, frameMemory, overflowPolicy, true);
+    }
+
+    /**
+     * Receiver -   Constructor
+     * @param receivePin        -   the pin the radio receiver is connected to, null if edges will be supplied by onEdge
+     * @param frameMemory       -   bytes of off heap memory for frames waiting to be decoded
+     * @param overflowPolicy    -   which frame is lost when the memory is full
+     * @param ownDecoder        -   true to start a decoder thread, false if a ReceiverManager worker will decode
+     */
+    Receiver(GpioPinDigitalInput receivePin, long frameMemory, OverflowPolicy overflowPolicy, boolean ownDecoder)
     {
         this.receivePin = receivePin;
         this.pulseWidthTolerance = 30;
         this.lastTime = 0;
-        this.rawMessage = new RawMessage(MAX_MESSAGE_SIZE);
-        this.rawMessages = new CircularFifoQueue<>(MESSAGE_STORAGE_CAPACITY);
+        this.pendingEdge = false;
+        this.pendingTime = 0;
+        this.pendingHigh = false;
+        this.metrics = new RadioMetrics();
+        this.handlerLatency = new LatencyHistogram("Edge handler");
+        this.queueLatency = new LatencyHistogram("Frame queued");
+        this.decodeLatency = new LatencyHistogram("Decode");
+        this.frameLatency = new LatencyHistogram("Gap to decoded");
+        this.rawMessages = new FrameQueue(FrameQueue.capacityFor(frameMemory, MAX_MESSAGE_SIZE), MAX_MESSAGE_SIZE, overflowPolicy);
+        this.rawMessage = rawMessages.writeFrame();
+        this.registry = new ProtocolRegistry();
+        this.matcher = registry.newMatcher(MAX_MESSAGE_SIZE);
+        this.streamMatcher = registry.newMatcher(MAX_MESSAGE_SIZE);
+        this.learner = null;
+        this.learnedFile = null;
+        this.learnedProtocols = new ArrayList<>();
+        setGlitchThreshold(GLITCH_AUTO);
+        this.streamingDecode = false;
+        this.streamAlive = false;
+        this.streamEdges = 0;
+        this.decodedProtocol = null;
+        this.bits = new long[(MAX_MESSAGE_SIZE / 2 + 63) >>> 6];
+        this.refinedCount = 0;
+        this.bursts = null;
+        this.burstWindow = 0;
+        this.capture = null;
+        this.decodedCount = 0;
+        this.printMessages = true;
+        this.messageListener = null;
+        this.undecodedMessages = new CircularFifoQueue<>(Math.min(MESSAGE_STORAGE_CAPACITY, rawMessages.getCapacity()));
         this.decodedMessages = new CircularFifoQueue<>(MESSAGE_STORAGE_CAPACITY);
-        this.newMessage = false;
         this.interrupted = false;
         this.finished = false;
-        this.decoder = new Thread(this);
-        decoder.start();
+        this.name = null;
+        this.subscribers = new MessageBus(ownDecoder); // a shared worker must not wait for one receiver's subscriber
+        this.decoder = ownDecoder ? new Thread(this) : null;
+        if (decoder != null) decoder.start();
     }
 
     public int getPulseWidthTolerance() {return pulseWidthTolerance;}
     public boolean isFinished(){return finished;}
+    public String getName(){return name;}
+    void setName(String name){this.name = name;}
     public void setPulseWidthTolerance(int pulseWidthTolerance) {this.pulseWidthTolerance = pulseWidthTolerance;}
+    public boolean isStreamingDecode() {return streamingDecode;}
+
+    /**
+     * setStreamingDecode   -   choose when messages are decoded, call before enableReceive
+     * @param streamingDecode   -   true to decode bits in the listener as each edge arrives, the decoded code is
+     *                              ready as soon as the trailing gap is seen and frames that fail every protocol
+     *                              are dropped without being buffered, so they are not kept for analysis.
+     *                              false to buffer every frame and decode it once the trailing gap is seen
+     * @throws IllegalStateException if protocols are being learned or repeats grouped into bursts, they need the
+     *                              frames that fail
+     */
+    public void setStreamingDecode(boolean streamingDecode)
+    {
+        if (streamingDecode && learner != null) throw new IllegalStateException("Streaming decode keeps no failed frames to learn protocols from");
+        if (streamingDecode && bursts != null) throw new IllegalStateException("Streaming decode keeps no damaged repeats to vote in a burst");
+        this.streamingDecode = streamingDecode;
+    }
+    public int getBurstWindow() {return burstWindow;}
+    public long getDecodedCount() {return decodedCount;}
+    public long getRefinedCount() {return refinedCount;} // decoded only once the pulse width was estimated from the whole frame
+    public long getDroppedFrames() {return rawMessages.getDropped();}
+    public boolean isPrintMessages() {return printMessages;}
+
+    /**
+     * setPrintMessages -   choose whether messages are printed, call before enableReceive
+     * @param printMessages -   false to only count and store messages, for load tests where printing every
+     *                          message would limit the decoder to the speed of the console
+     */
+    public void setPrintMessages(boolean printMessages) {this.printMessages = printMessages;}
+
+    /**
+     * setMessageListener   -   be told of every message as it is decoded
+     * @param messageListener   -   called on the decoder thread, it should return quickly, null to stop
+     */
+    public void setMessageListener(Consumer<DecodedMessage> messageListener) {this.messageListener = messageListener;}
+
+    /**
+     * getMessageBus    -   subscribe here to be sent decoded messages, each subscriber through its own bounded queue,
+     *                      as soon as they are decoded. A slow subscriber only fills its own queue.
+     *                      The bus of a receiver attached to a ReceiverManager does not accept BLOCK subscribers
+     * @return          -   the bus
+     */
+    public MessageBus getMessageBus() {return subscribers;}
+    public int getPendingFrames() {return rawMessages.size();}
+    public int getFrameCapacity() {return rawMessages.getCapacity();} // frames that can wait to be decoded
+    public long getFrameMemory() {return rawMessages.getMemoryBytes();} // off heap bytes holding them
+    public OverflowPolicy getOverflowPolicy() {return rawMessages.getPolicy();}
+
+    /**
+     * setBurstWindow   -   group repeated transmissions into bursts, call before enableReceive
+     * @param burstWindow   -   longest gap between repeats of a burst in milliseconds, 0 reports every repeat.
+     *                          Each burst is reported once, its bits decided by majority vote over the repeats
+     * @throws IllegalStateException if decoding is streamed, damaged repeats are then dropped rather than voting
+     */
+    public void setBurstWindow(int burstWindow)
+    {
+        if (burstWindow > 0 && streamingDecode) throw new IllegalStateException("Streaming decode keeps no damaged repeats to vote in a burst");
+        this.burstWindow = burstWindow;
+        this.bursts = (burstWindow > 0) ? new BurstAggregator(burstWindow, pulseWidthTolerance, MAX_MESSAGE_SIZE / 2) : null;
+    }
+
+    /**
+     * setCaptureFile   -   record every captured frame to a binary capture file, call before enableReceive.
+     *                      Frames are written by the decoder thread so recording never blocks the listener,
+     *                      streamed frames are not recorded as their edges are not kept
+     * @param fileName  -   the file to create, it is overwritten if it exists
+     * @throws IOException if the file cannot be created
+     */
+    public void setCaptureFile(String fileName) throws IOException
+    {
+        this.capture = new CaptureWriter(fileName, MAX_MESSAGE_SIZE);
+    }
+
+    public ProtocolRegistry getProtocolRegistry() {return registry;}
+    public int getGlitchThreshold() {return glitchThreshold;}
+    public long getGlitchCount() {return metrics.getGlitchesFiltered();}
+    public RadioMetrics getMetrics() {return metrics;}
+
+    // latency of each stage of the receive pipeline, snapshot or print them at any time
+    public LatencyHistogram getHandlerLatency() {return handlerLatency;} // the cost of each edge in the listener
+    public LatencyHistogram getQueueLatency() {return queueLatency;}
+    public LatencyHistogram getDecodeLatency() {return decodeLatency;}
+    public LatencyHistogram getFrameLatency() {return frameLatency;}
+
+    /**
+     * setGlitchThreshold   -   filter out glitches, pairs of edges closer together than the threshold, before
+     *                          anything is buffered or decoded, call before enableReceive.
+     *                          A glitch is a spike of RF noise, it splits a pulse into three short durations so the
+     *                          frame cannot be decoded. Both its edges are dropped, which restores the pulse.
+     *                          Filtering holds each edge back until the next arrives, the end of a frame is not
+     *                          delayed as the edge after the gap is enough to end it
+     * @param glitchThreshold   -   microseconds, 0 for no filter, GLITCH_AUTO (the default) for a third of the
+     *                              shortest duration any registered protocol sends, updated as protocols are learned
+     */
+    public void setGlitchThreshold(int glitchThreshold)
+    {
+        this.glitchSetting = glitchThreshold;
+        updateGlitchThreshold();
+    }
+
+    private void updateGlitchThreshold()
+    {
+        glitchThreshold = (glitchSetting == GLITCH_AUTO) ? registry.shortestDuration() / GLITCH_FRACTION : Math.max(0, glitchSetting);
+    }
+
+    /**
+     * setProtocolRegistry  -   decode the protocols in a registry rather than only the built in ones,
+     *                          call before enableReceive
+     * @param registry  -   the registry, protocols learned are added to it
+     */
+    public void setProtocolRegistry(ProtocolRegistry registry)
+    {
+        this.registry = registry;
+        this.matcher = registry.newMatcher(MAX_MESSAGE_SIZE);
+        this.streamMatcher = registry.newMatcher(MAX_MESSAGE_SIZE);
+        updateGlitchThreshold();
+    }
+
+    /**
+     * setLearnedProtocolFile   -   decode the protocols in a file as well as the built in ones and learn new protocols
+     *                              from frames that are not decoded, call before enableReceive.
+     *                              Each protocol learned is added to the file and decoded from the next frame on.
+     *                              To only decode the protocols in a learned file load it into a ProtocolRegistry
+     * @param fileName  -   the learned protocol file, it is created when the first protocol is learned
+     * @throws IOException if the file cannot be read or has an invalid line
+     * @throws IllegalStateException if decoding is streamed, the frames that fail are then not kept to learn from
+     */
+    public void setLearnedProtocolFile(String fileName) throws IOException
+    {
+        if (streamingDecode) throw new IllegalStateException("Streaming decode keeps no failed frames to learn protocols from");
+        this.learnedFile = Paths.get(fileName);
+        learnedProtocols.clear();
+        for (ProtocolDefinition d : ProtocolDefinition.load(learnedFile))
+        {
+            if (registry.add(d)) learnedProtocols.add(d); // duplicates of known protocols are not counted or saved again
+        }
+        this.matcher = registry.newMatcher(MAX_MESSAGE_SIZE);
+        this.streamMatcher = registry.newMatcher(MAX_MESSAGE_SIZE);
+        this.learner = new ProtocolLearner(pulseWidthTolerance, MAX_MESSAGE_SIZE, registry.toArray());
+        updateGlitchThreshold();
+        if (!learnedProtocols.isEmpty()) System.out.println("Loaded " + learnedProtocols.size() + " learned protocols from " + fileName);
+    }
 
     /**
      * EnableReceive    -   plug in the interrupt handler
@@ -62,6 +310,7 @@ public class Receiver implements GpioPinListenerDigital,Runnable
      */
     public void enableReceive()
     {
+        if (receivePin == null) return; // edges are supplied through onEdge
         this.receivePin.addListener(this);
         System.out.println("Listener added");
     }
@@ -71,126 +320,212 @@ public class Receiver implements GpioPinListenerDigital,Runnable
      */
     public void disableReceive()
     {
-        this.receivePin.removeListener(this);
-        System.out.println("Listener removed");
+        if (receivePin != null)
+        {
+            this.receivePin.removeListener(this);
+            System.out.println("Listener removed");
+        }
         interrupted = true;
+        rawMessages.wake();
     }
 
     /**
-     * handleGpioPinDigitalStateChangeEvent -   interrupt handler
-     *                                          records pin event & time since last event
+     * handleGpioPinDigitalStateChangeEvent -   interrupt handler. pi4j events carry no time of the edge, so the edge is
+     *                                          timed as the listener is entered and the delay dispatching the event to
+     *                                          the listener cannot be measured, the handler latency is its own cost
      * @param pinEvent  the event that caused the interrupt
      */
     @Override
     public void handleGpioPinDigitalStateChangeEvent(GpioPinDigitalStateChangeEvent pinEvent)
     {
-        final long time = System.nanoTime()/1000; //micros();
-        final int duration = (int)(time - lastTime);
+        final long now = System.nanoTime();
+        onEdge(now/1000, pinEvent.getState().isHigh()); //micros();
+        handlerLatency.recordSince(now); // replayed and simulated edges are not timed, their clock is not the wall clock
+    }
+
+    /**
+     * onEdge   -   passes the edge through the glitch filter to be recorded, nothing is allocated here.
+     *              Called by the interrupt handler, or directly to replay or simulate a signal
+     * @param time  -   time of the edge in microseconds
+     * @param high  -   true if the pin is high after the edge
+     */
+    @Override
+    public void onEdge(long time, boolean high)
+    {
+        metrics.edgeSeen();
+        final int threshold = glitchThreshold;
+        if (threshold <= 0)
+        {
+            if (pendingEdge) accept(pendingTime, pendingHigh); // the filter has just been turned off
+            pendingEdge = false;
+            accept(time, high);
+            return;
+        }
+        if (pendingEdge)
+        {
+            if (time - pendingTime < threshold)
+            {
+                pendingEdge = false; // a glitch, drop both its edges so the pulse it split is whole again
+                metrics.glitchFiltered();
+                return;
+            }
+            accept(pendingTime, pendingHigh);
+        }
+        if (time - lastTime > MIN_MESSAGE_SEPARATION_TIME) endFrame(); // the frame is over whatever this edge turns out to be
+        pendingEdge = true;
+        pendingTime = time;
+        pendingHigh = high;
+    }
+
+    /**
+     * publish  -   pass the frame being captured to the decoder thread and start capturing into the next
+     */
+    private void publish()
+    {
+        rawMessage.setPublishedNanos(System.nanoTime());
+        final long published = rawMessages.getPublished();
+        final long dropped = rawMessages.getDropped();
+        rawMessage = rawMessages.publish();
+        if (rawMessages.getPublished() != published) metrics.frameCaptured();
+        if (rawMessages.getDropped() != dropped) metrics.frameDropped();
+    }
 
+    /**
+     * endFrame -   pass on the frame being recorded as soon as the gap after it is seen
+     */
+    private void endFrame()
+    {
+        if (streamingDecode)
+        {
+            if (streamAlive && streamEdges >= MIN_MESSAGE_SIZE && streamMatcher.finish(MIN_MESSAGE_SIZE))
+            {
+                rawMessage.setDecoded(streamMatcher);
+                publish();
+            }
+            streamAlive = false;
+        } else if (rawMessage.size() >= MIN_MESSAGE_SIZE)
+        {
+            publish();
+            rawMessage.clear(); // the next frame is started by the edge after the gap, until then it must stay empty
+        }
+    }
+
+    /**
+     * accept   -   records pin level & time since last edge in the edge buffer
+     * @param time  -   time of the edge in microseconds
+     * @param high  -   true if the pin is high after the edge
+     */
+    private void accept(long time, boolean high)
+    {
+        final int duration = (int)Math.min(time - lastTime, Integer.MAX_VALUE);
+
+        if (streamingDecode)
+        {
+            streamEdge(duration, time);
+            lastTime = time;
+            return;
+        }
         if (duration > MIN_MESSAGE_SEPARATION_TIME)
         {
             // A long stretch without signal level change occurred. This could
             // be the gap between two transmissions. store events as a message
-            if (rawMessage.events.size()>= MIN_MESSAGE_SIZE)
+            if (rawMessage.size()>= MIN_MESSAGE_SIZE)
             {
-                rawMessages.add(rawMessage); // save only reasonable length rawMessages
-                newMessage =true;
+                publish(); // save only reasonable length rawMessages
             }
-            rawMessage= new RawMessage(MAX_MESSAGE_SIZE);
+            rawMessage.start(System.currentTimeMillis(), time);
         } else
         {
-            if (rawMessage.events.size() >= MAX_MESSAGE_SIZE)
+            if (rawMessage.size() >= MAX_MESSAGE_SIZE)
             {
-                rawMessage.events.clear(); //throw fragment away
+                rawMessage.clear(); //throw fragment away
+                metrics.frameOverflowed();
             }
         }
-        rawMessage.events.add( new RF433Event(pinEvent,duration)); // save the current event
+        rawMessage.add(duration, high); // save the current event
         lastTime = time;
     }
 
     /**
-     * processMessage   -   Attempt to decode the message
-     * @param msg       -   a raw message
+     * streamEdge   -   decode an edge as it arrives, only the decoded result is passed to the decoder thread
+     * @param duration  -   time since the last edge in microseconds
+     * @param time      -   time of the edge in microseconds
      */
-    private boolean processMessage(RawMessage msg)
+    private void streamEdge(int duration, long time)
     {
-        boolean matched = false;
-        for(Protocol pr: Protocol.values())
+        if (duration > MIN_MESSAGE_SEPARATION_TIME)
+        {
+            // the gap ends the message and is the sync of the next one
+            if (streamAlive && streamEdges >= MIN_MESSAGE_SIZE && streamMatcher.finish(MIN_MESSAGE_SIZE))
+            {
+                rawMessage.setDecoded(streamMatcher);
+                publish();
+            }
+            rawMessage.start(System.currentTimeMillis(), time);
+            streamMatcher.begin(duration, pulseWidthTolerance);
+            streamAlive = true;
+            streamEdges = 1;
+        } else if (streamAlive)
         {
-            matched = processMsgWithProtocol(pr, msg);
-            if (matched){break;}
+            if (++streamEdges > MAX_MESSAGE_SIZE)
+            {
+                streamAlive = false;
+                metrics.frameOverflowed();
+            } else streamAlive = streamMatcher.feed(duration); // drop failed frames early
         }
-        return matched;
     }
 
     /**
-     * processMsgWithProtocol  -   Attempt to decode a raw messages using the specified protocol
-     * @param protocol          -   A specification of sync and bit encoding timings
-     * @param rawMessage               -   the raw message
-     * @return                  -   true if decoded successfully, decoded message added to store
+     * processMessage   -   Attempt to decode the message, all protocols are tried in a single pass and if that fails
+     *                      the pulse width is estimated from the whole frame and the frame tried again
+     * @param msg       -   a raw message
+     * @return          -   the decoded message or null, decodedProtocol is set to the protocol used
      */
-    private boolean processMsgWithProtocol(Protocol protocol, RawMessage rawMessage)
+    DecodedMessage processMessage(RawMessage msg)
     {
-        if (rawMessage == null) return false;
-        if (rawMessage.events.size() < MIN_MESSAGE_SIZE) return false; // ignore very short transmissions: no device sends them, so this must be noise
-        //Assuming the longer pulse length is the pulse captured in timings[0]
-        final int syncLengthInPulses =  ((protocol.syncFactor.low) > (protocol.syncFactor.high)) ? (protocol.syncFactor.low) : (protocol.syncFactor.high);
-        final int pulseWidth = rawMessage.events.get(0).duration / syncLengthInPulses;
-        final int pulseWidthTolerance = pulseWidth * this.pulseWidthTolerance / 100;
-
-        /* For protocols that start low, the sync period looks like
-         *               _________
-         * _____________|         |??????????|
-         *
-         * |--1st dur--|-2nd dur-|-Start data-|
-         *
-         * The 3rd saved duration starts the data.
-         *
-         * For protocols that start high, the sync period looks like
-         *
-         *  ______________
-         * |              |____________|?????????|
-         *
-         * |-filtered out-|--1st dur--|--Start data--|
-         *
-         * The 2nd saved duration starts the data
-         */
-        final int firstDataTiming = (protocol.invertedSignal) ? (2) : (1);
-        DecodedMessage dMsg = new DecodedMessage(protocol.name(),pulseWidth,rawMessage.getReceivedTime());
-        for (int i = firstDataTiming; i < rawMessage.events.size() - 1; i += 2)
+        if (msg == null) return null;
+        DecodedMessage dMsg;
+        if (msg.isDecoded())
         {
-            int bit1Dur = rawMessage.events.get(i).duration;
-            int bit2Dur = rawMessage.events.get(i+1).duration;
-            //check each pair of bits matches the protocol definition for
-            if (Math.abs( bit1Dur - pulseWidth * protocol.zero.high) < pulseWidthTolerance &&
-                    Math.abs(bit2Dur - pulseWidth * protocol.zero.low) < pulseWidthTolerance)
-            {
-                // matched bit 0
-                dMsg.addBit(false);
-            } else if (Math.abs(bit1Dur - pulseWidth * protocol.one.high) < pulseWidthTolerance &&
-                    Math.abs(bit2Dur - pulseWidth * protocol.one.low) < pulseWidthTolerance)
-            {
-                // matched bit 1
-                dMsg.addBit(true);
-            } else
-            {
-                return false; // Failed, out of spec bit pair cannot be translated
-            }
-        }
-        if (dMsg.size() >= MIN_MESSAGE_SIZE) {
-            decodedMessages.add(dMsg);
-            return true;
+            decodedProtocol = msg.getDecodedProtocol();
+            dMsg = new DecodedMessage(decodedProtocol.name(),msg.getDecodedPulseWidth(),msg.getReceivedTime());
+            dMsg.setBits(msg.getDecodedBits(), msg.getDecodedBitCount());
+            return dMsg;
         }
-        return false;
+        if (msg.size() < MIN_MESSAGE_SIZE) return null; // ignore very short transmissions: no device sends them, so this must be noise
+        final ProtocolMatcher matcher = this.matcher; // the same one for the whole frame
+        if (!matcher.decode(msg, pulseWidthTolerance, MIN_MESSAGE_SIZE)) return null;
+        if (matcher.isRefined()) refinedCount++; // only the decoder thread writes
+        decodedProtocol = matcher.getDefinition();
+        dMsg = new DecodedMessage(decodedProtocol.name(),matcher.getPulseWidth(),msg.getReceivedTime());
+        matcher.copyBits(bits);
+        dMsg.setBits(bits, matcher.getBitCount());
+        return dMsg;
+    }
+
+    /**
+     * deliver  -   store a decoded message and report it
+     * @param dMsg  -   the message, may be null
+     */
+    private void deliver(DecodedMessage dMsg)
+    {
+        if (dMsg == null) return;
+        dMsg.setReceiverName(name);
+        decodedMessages.add(dMsg);
+        decodedCount++; // only the decoder thread writes
+        if (printMessages) System.out.println(dMsg.toString());
+        final Consumer<DecodedMessage> listener = messageListener;
+        if (listener != null) listener.accept(dMsg);
+        subscribers.publish(dMsg);
     }
 
     private boolean analyseMsg(RawMessage msg)
     {
-        if (rawMessage == null) return false;
-        if (rawMessage.events.size() < MIN_MESSAGE_SIZE) return false; // ignore very short transmissions: no device sends them, so this must be noise
+        if (msg == null) return false;
+        if (msg.size() < MIN_MESSAGE_SIZE) return false; // ignore very short transmissions: no device sends them, so this must be noise
         //Assuming the longer pulse length is the pulse captured in timings[0]
-        int s0Duration = msg.events.get(0).duration;
-        int s1Duration =  msg.events.get(1).duration;
+        int s0Duration = msg.duration(0);
+        int s1Duration =  msg.duration(1);
         int pulseWidth;
         int syncLengthInPulses;
         int pulseWidthTolerance;
@@ -203,12 +538,12 @@ public class Receiver implements GpioPinListenerDigital,Runnable
             pulseWidth = s0Duration;
             syncLengthInPulses = s1Duration/pulseWidth;
         }
-        int firstDataTiming = (msg.events.get(0).gpioEvent.getState() == PinState.getState(true) ) ? (2) : (1);
+        int firstDataTiming = (msg.level(0)) ? (2) : (1);
         System.out.format("Pulse width: %d, Sync Length %d, First data %d, ",pulseWidth,syncLengthInPulses, firstDataTiming);
         pulseWidthTolerance = pulseWidth * this.pulseWidthTolerance / 100;
         // check if we have two plausible bits
-        int bit1Dur = rawMessage.events.get(firstDataTiming).duration;
-        int bit2Dur = rawMessage.events.get(firstDataTiming+1).duration;
+        int bit1Dur = msg.duration(firstDataTiming);
+        int bit2Dur = msg.duration(firstDataTiming+1);
         System.out.println("bit1Dur = " + bit1Dur+" bit2Dur = " + bit2Dur);
         byte bit1Pulses = 0;
         byte bit2Pulses = 0;
@@ -224,11 +559,11 @@ public class Receiver implements GpioPinListenerDigital,Runnable
         HighLow zero = new HighLow(bit1Pulses,bit2Pulses);  // one and zero may be swapped
         HighLow one = new HighLow(bit2Pulses,bit1Pulses);
         System.out.print("Bit zero " + zero.toString() + " Bit one " + one.toString() );
-        DecodedMessage dMsg = new DecodedMessage("***NEW***",pulseWidth,rawMessage.getReceivedTime());
-        for (int i = firstDataTiming; i < rawMessage.events.size() - 1; i += 2)
+        DecodedMessage dMsg = new DecodedMessage("***NEW***",pulseWidth,msg.getReceivedTime());
+        for (int i = firstDataTiming; i < msg.size() - 1; i += 2)
         {
-            bit1Dur = rawMessage.events.get(i).duration;
-            bit2Dur = rawMessage.events.get(i+1).duration;
+            bit1Dur = msg.duration(i);
+            bit2Dur = msg.duration(i+1);
             //check each pair of bits matches the protocol definition for
             if (Math.abs( bit1Dur - pulseWidth * zero.high) < pulseWidthTolerance &&
                     Math.abs(bit2Dur - pulseWidth * zero.low) < pulseWidthTolerance)
@@ -251,169 +586,171 @@ public class Receiver implements GpioPinListenerDigital,Runnable
     }
 
     /**
-     * Run  -   The decoding loop
+     * learn    -   learn from an undecoded frame, a protocol learned is saved and decoded from the next frame
+     * @param message   -   the frame
+     * @param learner   -   the learner
+     */
+    private void learn(RawMessage message, ProtocolLearner learner)
+    {
+        final ProtocolRegistry registry = this.registry;
+        if (registry.isFull()) return; // no room for another
+        ProtocolDefinition learned = learner.add(message);
+        if (learned == null || !registry.add(learned)) return;
+        matcher = registry.newMatcher(MAX_MESSAGE_SIZE);
+        updateGlitchThreshold();
+        learnedProtocols.add(learned);
+        System.out.println("Learned protocol: " + learned.format());
+        try
+        {
+            ProtocolDefinition.save(learnedFile, learnedProtocols);
+        } catch (IOException e)
+        {
+            System.out.println("Learned protocols not saved: " + e.getMessage());
+        }
+    }
+
+    private void record(RawMessage message)
+    {
+        try
+        {
+            capture.write(message); // only the decoder thread clears it
+        } catch (IOException e)
+        {
+            System.out.println("Capture stopped: " + e.getMessage());
+            stopCapture();
+        }
+    }
+
+    private void stopCapture()
+    {
+        try
+        {
+            capture.close();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        capture = null;
+    }
+
+    /**
+     * Run  -   The decoding loop, woken by the listener as soon as a message has been captured
      */
     @Override
     public void run()
     {
-        boolean decoded;
+        RawMessage message;
         while(!interrupted)
         {
             try
             {
-                TimeUnit.MILLISECONDS.sleep(200);
+                message = rawMessages.take(200, TimeUnit.MILLISECONDS);
             } catch (InterruptedException e)
             {
                 interrupted = true;
                 System.out.println("run interrupted");
                 break;
             }
-            if (newMessage)
-            {
-                newMessage=false;
-                for(RawMessage message: rawMessages)
-                {
-                    decoded = processMessage(message);
-                    if (decoded)
-                    {
-                        rawMessages.remove(message);
-                        System.out.println(decodedMessages.get(decodedMessages.size()-1).toString());
-                    }
-                }
-            }
-        }
-        System.out.println("Decoding stopped");
-        System.out.printf("Summary - Decoded Messages: %d, Raw rawMessages: %d%n",decodedMessages.size(), rawMessages.size());
-        for(DecodedMessage d:decodedMessages) System.out.println(d.toString());
-        System.out.println("Messages not decoded");
-        for(RawMessage r:rawMessages)
-        {   analyseMsg(r);
-            System.out.println(r.toString());
-            System.out.println(r.waveform());
-        }
-        System.out.println("Timings in CSV format");
-        for(RawMessage r:rawMessages)
-        {
-            System.out.println(r.timingsToCSV());
+            expireBursts();
+            if (message != null) decode(message);
         }
-        finished = true; // let main know
+        stopDecoding();
     }
-}
-
-class RF433Event
-{
-    final GpioPinDigitalStateChangeEvent gpioEvent;
-    final int duration;
-
-    RF433Event(GpioPinDigitalStateChangeEvent e, int d)
-    {gpioEvent=e; duration=d;}
 
-    @Override
-    public String toString()
+    /**
+     * decodeNext   -   decode the oldest waiting frame, for a decoder worker shared between receivers
+     * @return      -   false if no frame was waiting
+     */
+    boolean decodeNext()
     {
-        return gpioEvent.getEdge().toString()+" "+ duration;
-
+        RawMessage message = rawMessages.poll();
+        if (message == null) return false;
+        expireBursts();
+        decode(message);
+        return true;
     }
-}
-
-class RawMessage
-{
-    final ArrayList<RF433Event> events;
-    private final Instant receivedTime;
 
-    public Instant getReceivedTime()
-    {
-        return receivedTime;
-    }
-    RawMessage(int size)
-    {
-        events = new ArrayList<>(size);
-        receivedTime = Instant.now();
-    }
-    @Override
-    public String toString()
-    {
-        String s = "";
-        for (RF433Event e: events)
-        {
-            s = s+e.duration+" "+e.gpioEvent.getState().toString().substring(0,2)+" "; // duration and new pin state
-        }
-        return s;
-    }
-    public String timingsToCSV()
+    /**
+     * decode   -   decode a frame taken from the frame store, deliver or keep the result and release the frame
+     * @param message   -   the frame
+     */
+    private void decode(RawMessage message)
     {
-        String s = "";
-        for (RF433Event e: events)
+        final long taken = System.nanoTime();
+        queueLatency.record(taken - message.getPublishedNanos());
+        final BurstAggregator bursts = this.bursts;
+        if (capture != null && !message.isDecoded()) record(message);
+        final long decodeStart = System.nanoTime();
+        DecodedMessage dMsg = processMessage(message);
+        decodeLatency.recordSince(decodeStart);
+        if (dMsg != null)
         {
-            s = s+e.duration+",";
-        }
-        return s.substring(0,s.length()-1); // remove last ,
-    }
-    public String waveform()
-    {
-        String s = "";
-        int pulses;
-        int pulseWidth;
-        // Characters tried for drawing the pulse train
-        // Low line - "_", "\u0332" Combining Low Line, "\uFF3F"; FULLWIDTH LOW LINE
-        // High line - "\u0305" COMBINING OVERLINE, "\u203E" over line
-        // Vertical -  "\u20D2" COMBINING LONG VERTICAL LINE OVERLAY, "\u007C" Vertical line, "\u02E9" MODIFIER LETTER EXTRA-LOW TONE BAR
-        if (events.get(0).duration > 50000) {return "Excessive duration in pluse 0 "+events.get(0).duration;}
-        pulseWidth = 100; //gives a reasonable pulse train
-        for (RF433Event e: events)
+            metrics.frameDecoded(decodedProtocol.name());
+            if (bursts != null) deliver(bursts.add(decodedProtocol, dMsg));
+            else deliver(dMsg);
+            frameLatency.recordSince(message.getPublishedNanos());
+        } else
         {
-            pulses = e.duration/pulseWidth;
-            if (e.gpioEvent.getEdge() == PinEdge.RISING)
-            {
-                // rising edge so for the duration it was low
-                for (int i = 0; i<pulses; i++) s = s+ "_";
-                s = s+"\u20D2";
-            } else
+            metrics.frameUndecoded();
+            if (bursts == null || !bursts.addDamaged(message))
             {
-                // falling edge so for the duration it was high
-                for (int i = 0; i<pulses; i++) s = s+"\u0305";
-                s = s+"\u20D2";
+                undecodedMessages.add(message.copy()); // keep for analysis, the frame itself is reused
+                final ProtocolLearner learner = this.learner;
+                if (learner != null) learn(message, learner);
             }
         }
-        return s;
-    }
-}
-class DecodedMessage
-{
-    private final Instant receivedTime;
-    private final String protocolName;
-    private final int pulseWidth;
-    private int numberOfBits;
-    private long code;
-    private String codeString;
-
-    DecodedMessage(String protocolName,int pulseWidth, Instant t)
-    {
-        this.protocolName = protocolName;
-        this.pulseWidth = pulseWidth;
-        this.receivedTime = t;
-        this.numberOfBits = 0;
-        this.code = 0;
-        this.codeString = "";
+        rawMessages.release();
     }
 
-    @Override
-    public String toString()
+    /**
+     * expireBursts -   deliver a burst once its window has passed without another repeat
+     */
+    void expireBursts()
     {
-        return String.format("%s (PulseWidth %d) %d bits code %d 0x%h %s",
-                protocolName,pulseWidth,numberOfBits,code,code,codeString);
+        final BurstAggregator bursts = this.bursts;
+        if (bursts != null) deliver(bursts.expire(System.currentTimeMillis()));
     }
 
-    public void addBit(boolean bit)
+    /**
+     * setDecoderWaiting    -   for a decoder worker shared between receivers, while waiting is set the listener
+     *                          wakes the calling thread as soon as it captures a frame
+     * @param waiting   -   true before the worker parks, false once it wakes
+     */
+    void setDecoderWaiting(boolean waiting){rawMessages.setWaiting(waiting);}
+    boolean isStopping(){return interrupted;}
+
+    /**
+     * stopDecoding -   decode the frames still waiting, deliver what is left, close the capture file and print the summary
+     */
+    void stopDecoding()
     {
-        codeString += ((bit)?"1":"0");
-        code = ((code<<1) | ((bit)?1:0)); //this will overflow and lose msb if moe than 64 bits
-        numberOfBits++;
+        while (decodeNext()); // the listener has been removed, so no more arrive
+        final BurstAggregator bursts = this.bursts;
+        if (bursts != null) deliver(bursts.flush());
+        if (capture != null) stopCapture();
+        System.out.println("Decoding stopped");
+        System.out.printf("Summary - Decoded Messages: %d, Raw rawMessages: %d, Dropped: %d, Refined: %d, Glitches: %d%n",
+                decodedMessages.size(), undecodedMessages.size(), rawMessages.getDropped(), refinedCount, getGlitchCount());
+        System.out.println(metrics);
+        for (LatencyHistogram h : new LatencyHistogram[]{handlerLatency, queueLatency, decodeLatency, frameLatency})
+        {
+            if (h.snapshot().getCount() > 0) System.out.println(h);
+        }
+        if (printMessages)
+        {
+            for(DecodedMessage d:decodedMessages) System.out.println(d.toString());
+            System.out.println("Messages not decoded");
+            for(RawMessage r:undecodedMessages)
+            {   analyseMsg(r);
+                System.out.println(r.toString());
+                System.out.println(r.waveform());
+            }
+            System.out.println("Timings in CSV format");
+            for(RawMessage r:undecodedMessages)
+            {
+                System.out.println(r.timingsToCSV());
+            }
+        }
+        finished = true; // let main know
     }
-
-    //getters
-    public int size() {return codeString.length();}
-    public String getBits() {return codeString;}
-    public long getCode() {return code;}
-    public Instant getReceivedTime(){return receivedTime;}
 }
@@ -0,0 +1,252 @@
+package org.ladbury.RF433;
+
+import com.pi4j.io.gpio.GpioPinDigitalInput;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * ReceiverManager  -   runs any number of receivers, on different pins and antennas, with a fixed pool of decoder
+ *                      workers shared between them, so decoding scales with the cores rather than a thread per pin.
+ *                      Each receiver keeps its own capture front end and frame store, and is given to one worker
+ *                      in turn, a worker decodes all of its receivers and parks when none has a frame waiting.
+ *                      Frames of one receiver are always decoded by the same worker, so a receiver's decode state
+ *                      is never shared between threads.
+ *                      A transmission heard by several receivers is delivered once, from the receiver that decoded
+ *                      it first, and every message reports the receiver it came from.
+ */
+public class ReceiverManager
+{
+    private static final int SPIN_TRIES = 1000;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private final List<Receiver> receivers;
+    private final Worker[] workers;
+    private final long dedupeMillis;
+    private final Map<DecodedMessage, Heard> recent; // messages delivered within the dedupe window, oldest first
+    private final Map<String, LongAdder> duplicates; // per receiver, messages dropped as already heard elsewhere
+    private final LongAdder delivered;
+    private final MessageBus subscribers;
+    private volatile Consumer<DecodedMessage> messageListener;
+    private volatile boolean printMessages;
+    private volatile boolean stopping;
+
+    /**
+     * Heard    -   when a message was last delivered and which receiver delivered it
+     */
+    private static class Heard
+    {
+        final String receiver;
+        long lastMillis;
+
+        Heard(String receiver, long lastMillis)
+        {
+            this.receiver = receiver;
+            this.lastMillis = lastMillis;
+        }
+    }
+
+    /**
+     * ReceiverManager  -   Constructor, starts the decoder workers
+     * @param workerCount   -   number of decoder threads, 0 for one per core
+     * @param dedupeMillis  -   messages heard by another receiver within this many milliseconds of the last delivery
+     *                          of the same message are dropped, 0 delivers every message from every receiver
+     */
+    public ReceiverManager(int workerCount, long dedupeMillis)
+    {
+        this.receivers = new CopyOnWriteArrayList<>();
+        this.dedupeMillis = dedupeMillis;
+        this.recent = new LinkedHashMap<>();
+        this.duplicates = new ConcurrentHashMap<>();
+        this.delivered = new LongAdder();
+        this.subscribers = new MessageBus(false); // published on the workers
+        this.messageListener = null;
+        this.printMessages = true;
+        this.stopping = false;
+        final int n = (workerCount > 0) ? workerCount : Runtime.getRuntime().availableProcessors();
+        this.workers = new Worker[n];
+        for (int i = 0; i < n; i++)
+        {
+            workers[i] = new Worker();
+            workers[i].setName("Decoder " + (i + 1));
+            workers[i].start();
+        }
+    }
+
+    /**
+     * attach   -   add a receiver with the default frame store
+     * @param name          -   reported with each message the receiver hears, unique among the receivers
+     * @param receivePin    -   the pin the radio receiver is connected to, null to supply edges by calling onEdge
+     * @return              -   the receiver, configure it and then enable it or call enableReceive here
+     */
+    public Receiver attach(String name, GpioPinDigitalInput receivePin)
+    {
+        return attach(name, receivePin, Receiver.DEFAULT_FRAME_MEMORY, OverflowPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * attach   -   add a receiver
+     * @param name              -   reported with each message the receiver hears, unique among the receivers
+     * @param receivePin        -   the pin the radio receiver is connected to, null to supply edges by calling onEdge
+     * @param frameMemory       -   bytes of off heap memory for the receiver's frames waiting to be decoded, at least
+     *                              Receiver.MIN_FRAME_MEMORY
+     * @param overflowPolicy    -   which frame is lost when that memory is full
+     * @return                  -   the receiver, configure it and then enable it or call enableReceive here
+     */
+    public Receiver attach(String name, GpioPinDigitalInput receivePin, long frameMemory, OverflowPolicy overflowPolicy)
+    {
+        Receiver receiver = new Receiver(receivePin, frameMemory, overflowPolicy, false);
+        receiver.setName(name);
+        receiver.setPrintMessages(false); // printed here once duplicates are removed
+        receiver.setMessageListener(this::onMessage);
+        synchronized (receivers)
+        {
+            receivers.add(receiver);
+            workers[(receivers.size() - 1) % workers.length].add(receiver);
+        }
+        return receiver;
+    }
+
+    public List<Receiver> getReceivers(){return new ArrayList<>(receivers);}
+    public int getWorkerCount(){return workers.length;}
+    public long getDeliveredCount(){return delivered.sum();}
+    public boolean isPrintMessages(){return printMessages;}
+    public void setPrintMessages(boolean printMessages){this.printMessages = printMessages;}
+
+    /**
+     * setMessageListener   -   be told of every message once duplicates are removed
+     * @param messageListener   -   called on a decoder worker, it should return quickly, null to stop
+     */
+    public void setMessageListener(Consumer<DecodedMessage> messageListener){this.messageListener = messageListener;}
+
+    /**
+     * getMessageBus    -   subscribe here to be sent every message once duplicates are removed, the receivers'
+     *                      own buses carry every message each of them heard. Messages are published on the shared
+     *                      decoder workers, so neither these buses nor the receivers' accept BLOCK subscribers
+     * @return          -   the bus
+     */
+    public MessageBus getMessageBus(){return subscribers;}
+
+    /**
+     * getDuplicateCount    -   messages a receiver heard that had already been delivered from another
+     * @param name  -   the receiver
+     * @return      -   the count
+     */
+    public long getDuplicateCount(String name)
+    {
+        LongAdder count = duplicates.get(name);
+        return (count == null) ? 0 : count.sum();
+    }
+
+    public void enableReceive()
+    {
+        for (Receiver r : receivers) r.enableReceive();
+    }
+
+    /**
+     * disableReceive   -   stop every receiver, the workers decode the frames already captured and print each
+     *                      receiver's summary as they stop
+     */
+    public void disableReceive()
+    {
+        for (Receiver r : receivers) r.disableReceive();
+        stopping = true;
+        for (Worker w : workers) LockSupport.unpark(w);
+    }
+
+    /**
+     * isFinished   -   true once every worker has stopped
+     */
+    public boolean isFinished()
+    {
+        for (Worker w : workers) if (w.isAlive()) return false;
+        return true;
+    }
+
+    /**
+     * onMessage    -   drop a message another receiver has already delivered, called on the decoder workers
+     * @param msg   -   a message decoded by one of the receivers
+     */
+    private void onMessage(DecodedMessage msg)
+    {
+        final String receiver = msg.getReceiverName();
+        if (dedupeMillis > 0)
+        {
+            final long now = msg.getReceivedTime().toEpochMilli();
+            synchronized (recent)
+            {
+                for (Iterator<Heard> it = recent.values().iterator(); it.hasNext(); )
+                {
+                    if (now - it.next().lastMillis <= dedupeMillis) break;
+                    it.remove(); // oldest first, so the rest are all within the window
+                }
+                Heard heard = recent.remove(msg);
+                if (heard != null && !heard.receiver.equals(receiver))
+                {
+                    heard.lastMillis = Math.max(heard.lastMillis, now); // repeats keep the window open
+                    recent.put(msg, heard);
+                    duplicates.computeIfAbsent(receiver, k -> new LongAdder()).increment();
+                    return;
+                }
+                recent.put(msg, new Heard(receiver, now)); // a repeat heard by the delivering receiver is delivered again
+            }
+        }
+        delivered.increment();
+        if (printMessages) System.out.println(msg.toString());
+        final Consumer<DecodedMessage> listener = messageListener;
+        if (listener != null) listener.accept(msg);
+        subscribers.publish(msg);
+    }
+
+    /**
+     * Worker   -   decodes the frames of the receivers it was given, spinning briefly and then parking when
+     *              none has a frame waiting, any of their listeners wakes it by capturing a frame
+     */
+    private class Worker extends Thread
+    {
+        private final List<Receiver> mine = new CopyOnWriteArrayList<>();
+
+        void add(Receiver receiver)
+        {
+            mine.add(receiver);
+            LockSupport.unpark(this); // start waiting on its frames too
+        }
+
+        @Override
+        public void run()
+        {
+            int idle = 0;
+            while (!stopping)
+            {
+                boolean decoded = false;
+                for (Receiver r : mine) decoded |= r.decodeNext();
+                if (decoded)
+                {
+                    idle = 0;
+                    continue;
+                }
+                if (++idle < SPIN_TRIES) continue;
+                idle = 0;
+                for (Receiver r : mine) r.setDecoderWaiting(true);
+                boolean waiting = true;
+                for (Receiver r : mine) waiting &= !r.decodeNext(); // recheck after advertising, or a frame could be missed
+                if (waiting && !stopping) LockSupport.parkNanos(this, PARK_NANOS);
+                for (Receiver r : mine)
+                {
+                    r.setDecoderWaiting(false);
+                    r.expireBursts();
+                }
+            }
+            for (Receiver r : mine) r.stopDecoding(); // decodes the frames still waiting first
+        }
+    }
+}
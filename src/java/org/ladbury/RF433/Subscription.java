@@ -0,0 +1,149 @@
+package org.ladbury.RF433;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Subscription -   one subscriber's bounded queue of decoded messages.
+ *                  Messages that pass the filter are queued by the decoder as soon as they are decoded, the
+ *                  subscriber takes them from its own thread, or gives a consumer that a delivery thread calls.
+ *                  When the queue is full the delivery policy decides whether the new message or the oldest
+ *                  waiting one is dropped, or whether the decoder waits, so only a BLOCK subscriber can slow
+ *                  decoding. Thread safe.
+ */
+public class Subscription
+{
+    private final MessageBus bus;
+    private final MessageFilter filter;
+    private final DeliveryPolicy policy;
+    private final ArrayBlockingQueue<DecodedMessage> queue;
+    private final LongAdder delivered;
+    private final LongAdder dropped;
+    private volatile boolean cancelled;
+    private Thread deliveryThread;
+
+    /**
+     * Subscription -   Constructor, use MessageBus.subscribe
+     * @param bus       -   the bus it is registered with
+     * @param filter    -   the messages wanted
+     * @param capacity  -   the most messages that can wait
+     * @param policy    -   what happens to a message when the queue is full
+     */
+    Subscription(MessageBus bus, MessageFilter filter, int capacity, DeliveryPolicy policy)
+    {
+        this.bus = bus;
+        this.filter = filter;
+        this.policy = policy;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.delivered = new LongAdder();
+        this.dropped = new LongAdder();
+        this.cancelled = false;
+        this.deliveryThread = null;
+    }
+
+    /**
+     * offer    -   queue a message if it passes the filter, called by the decoder
+     * @param msg   -   the message
+     */
+    void offer(DecodedMessage msg)
+    {
+        if (cancelled || !filter.test(msg)) return;
+        switch (policy)
+        {
+            case DROP_NEWEST:
+                if (!queue.offer(msg)) dropped.increment();
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(msg))
+                {
+                    if (queue.poll() != null) dropped.increment(); // the subscriber may have just taken it
+                }
+                break;
+            case BLOCK:
+                try
+                {
+                    while (!cancelled && !queue.offer(msg, 100, TimeUnit.MILLISECONDS)); // recheck cancelled while waiting
+                } catch (InterruptedException e)
+                {
+                    dropped.increment();
+                    Thread.currentThread().interrupt();
+                }
+                break;
+        }
+    }
+
+    /**
+     * deliverTo    -   start a thread that passes each message to a consumer as soon as it is queued
+     * @param consumer  -   called on the delivery thread, a slow consumer only fills its own queue
+     */
+    void deliverTo(Consumer<DecodedMessage> consumer)
+    {
+        deliveryThread = new Thread(() ->
+        {
+            while (!cancelled)
+            {
+                try
+                {
+                    DecodedMessage msg = queue.poll(200, TimeUnit.MILLISECONDS);
+                    if (msg != null)
+                    {
+                        delivered.increment();
+                        consumer.accept(msg);
+                    }
+                } catch (InterruptedException e)
+                {
+                    break;
+                }
+            }
+        }, "Subscriber");
+        deliveryThread.setDaemon(true);
+        deliveryThread.start();
+    }
+
+    /**
+     * take -   wait for the next message
+     * @return  -   the message
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public DecodedMessage take() throws InterruptedException
+    {
+        DecodedMessage msg = queue.take();
+        delivered.increment();
+        return msg;
+    }
+
+    /**
+     * poll -   wait a limited time for the next message
+     * @param timeout   -   the maximum time to wait
+     * @param unit      -   the units of timeout
+     * @return          -   the message, or null if none arrived in time
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public DecodedMessage poll(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        DecodedMessage msg = queue.poll(timeout, unit);
+        if (msg != null) delivered.increment();
+        return msg;
+    }
+
+    /**
+     * cancel   -   stop receiving messages, those still queued can be taken, a delivery thread stops
+     */
+    public void cancel()
+    {
+        cancelled = true;
+        bus.remove(this);
+        if (deliveryThread != null) deliveryThread.interrupt();
+    }
+
+    //getters
+    public MessageFilter getFilter(){return filter;}
+    public DeliveryPolicy getPolicy(){return policy;}
+    public boolean isCancelled(){return cancelled;}
+    public int size(){return queue.size();}
+    public int getCapacity(){return queue.size() + queue.remainingCapacity();}
+    public long getDelivered(){return delivered.sum();}
+    public long getDropped(){return dropped.sum();}
+}
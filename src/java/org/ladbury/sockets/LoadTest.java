@@ -0,0 +1,114 @@
+package org.ladbury.sockets;
+
+import org.ladbury.RCSwitch.EdgeSimulator;
+import org.ladbury.RCSwitch.RadioReceiver;
+import org.ladbury.RF433.Receiver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LoadTest -   drives the receivers with a simulated signal at increasing edge rates to find where they fail.
+ *              Runs without GPIO. The rate is doubled each step until the Receiver drops frames because its
+ *              decoder has fallen behind, or the simulator can no longer reach the rate asked for.
+ */
+class LoadTest
+{
+    private static final int CODES_PER_STEP = 2000;
+    private static final long START_RATE = 10000;  // edges per second, 433MHz remotes produce a few thousand
+    private static final long SEED = 433;
+
+    private final int jitter;
+    private final double glitchRate;
+    private final double dropRate;
+    private final int frameGap;
+    private final boolean streamingDecode;
+
+    /**
+     * LoadTest -   Constructor
+     * @param jitter            -   pulse width jitter in microseconds
+     * @param glitchRate        -   probability of a glitch before each edge
+     * @param dropRate          -   probability of each edge being lost
+     * @param frameGap          -   extra gap before every frame in microseconds, between repeats and bursts
+     * @param streamingDecode   -   decode the Receiver's frames as the edges arrive
+     */
+    LoadTest(int jitter, double glitchRate, double dropRate, int frameGap, boolean streamingDecode)
+    {
+        this.jitter = jitter;
+        this.glitchRate = glitchRate;
+        this.dropRate = dropRate;
+        this.frameGap = frameGap;
+        this.streamingDecode = streamingDecode;
+    }
+
+    private EdgeSimulator simulator(long edgeRate)
+    {
+        EdgeSimulator sim = new EdgeSimulator(SEED);
+        sim.setJitter(jitter);
+        sim.setGlitchRate(glitchRate);
+        sim.setDropRate(dropRate);
+        sim.setFrameGap(frameGap);
+        sim.setEdgeRate(edgeRate);
+        return sim;
+    }
+
+    /**
+     * sweepReceiver    -   find the edge rate at which the Receiver starts dropping frames
+     */
+    void sweepReceiver()
+    {
+        System.out.println("Receiver load test, streaming decode " + streamingDecode);
+        System.out.println("Requested edges/s, Achieved edges/s, Frames sent, Decoded, Dropped, Decoded %, Glitches sent, Glitches filtered");
+        double lastGood = 0;
+        for (long rate = START_RATE; ; rate *= 2)
+        {
+            Receiver receiver = new Receiver(null);
+            receiver.setPulseWidthTolerance(25);
+            receiver.setStreamingDecode(streamingDecode);
+            receiver.setPrintMessages(false);
+            receiver.getMetrics().register("Load test receiver"); // replaces the last step's
+            EdgeSimulator sim = simulator(rate);
+            sim.run(receiver, CODES_PER_STEP);
+            try
+            {
+                while (receiver.getPendingFrames() > 0) TimeUnit.MILLISECONDS.sleep(1);
+                receiver.disableReceive();
+                while (!receiver.isFinished()) TimeUnit.MILLISECONDS.sleep(1);
+            } catch (InterruptedException e)
+            {
+                e.printStackTrace();
+            }
+            final long decoded = receiver.getDecodedCount();
+            final long dropped = receiver.getDroppedFrames();
+            System.out.printf("%d, %.0f, %d, %d, %d, %.1f, %d, %d%n", rate, sim.getAchievedEdgeRate(), sim.getFramesSent(),
+                    decoded, dropped, 100.0 * decoded / sim.getFramesSent(), sim.getGlitches(), receiver.getGlitchCount());
+            if (dropped > 0)
+            {
+                System.out.printf("Receiver dropped frames at %.0f edges/s, none were dropped at %.0f edges/s%n",
+                        sim.getAchievedEdgeRate(), lastGood);
+                return;
+            }
+            if (sim.getAchievedEdgeRate() < rate * 0.9)
+            {
+                System.out.printf("No frames dropped, simulator limit reached at %.0f edges/s%n", sim.getAchievedEdgeRate());
+                return;
+            }
+            lastGood = sim.getAchievedEdgeRate();
+        }
+    }
+
+    /**
+     * measureRadioReceiver -   the RadioReceiver decodes in the listener, so it cannot drop frames,
+     *                          instead the fastest rate it accepts edges at is measured
+     */
+    void measureRadioReceiver()
+    {
+        RadioReceiver radioReceiver = new RadioReceiver(null);
+        radioReceiver.getMetrics().register("Load test RadioReceiver");
+        radioReceiver.setPrintCodes(false);
+        EdgeSimulator sim = simulator(0);
+        sim.run(radioReceiver, CODES_PER_STEP);
+        System.out.printf("RadioReceiver accepted %.0f edges/s, %d of %d frames decoded (%.1f%%)%n",
+                sim.getAchievedEdgeRate(), radioReceiver.getReceivedCount(), sim.getFramesSent(),
+                100.0 * radioReceiver.getReceivedCount() / sim.getFramesSent());
+    }
+}
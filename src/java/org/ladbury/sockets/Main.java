@@ -8,12 +8,22 @@ import com.pi4j.io.gpio.GpioController;
 import com.pi4j.io.gpio.GpioFactory;
 import com.pi4j.io.gpio.RaspiPin;
 import com.pi4j.io.gpio.PinPullResistance;
+import org.ladbury.RCSwitch.AirtimeBudget;
 import org.ladbury.RCSwitch.Protocol;
+import org.ladbury.RCSwitch.ProtocolRegistry;
 import org.ladbury.RCSwitch.RadioReceiver;
 import org.ladbury.RCSwitch.RadioTransmitter;
 import org.ladbury.RCSwitch.SwitchControl;
+import org.ladbury.RF433.BulkDecoder;
+import org.ladbury.RF433.CaptureReplay;
+import org.ladbury.RF433.OverflowPolicy;
 import org.ladbury.RF433.Receiver;
+import org.ladbury.RF433.ReceiverManager;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("CanBeFinal")
@@ -28,6 +38,12 @@ public class Main implements Runnable,IParameterValidator
     private boolean testRC = false;
     @Parameter(names = {"--testRadioTransmitter", "-trt"},description = "Test Radio Transmitter")
     private boolean testRT = false;
+    @Parameter(names = {"--onTimeRepeats", "-otr"},description = "Stop repeating a transmission once this many repeats were sent on time (0 = send every repeat)", arity = 1)
+    private int onTimeRepeats = 0;
+    @Parameter(names = {"--dutyCycle", "-dc"},description = "Limit transmissions to this percentage of airtime, bulk commands over the limit are refused (0 = no limit)", arity = 1)
+    private double dutyCycle = 0;
+    @Parameter(names = {"--dutyCycleWindow", "-dcw"},description = "Sliding window the duty cycle is measured over in seconds", arity = 1)
+    private int dutyCycleWindow = 3600;
     @Parameter(names = {"--switch","-s"},description = "Switch a socket (1-4), 0 = all add -on if required",arity = 1)
     private int switchNumber = -1;
     @Parameter(names = {"--train","-t"}, description = "Train socket (1-4)", arity = 1)
@@ -36,11 +52,55 @@ public class Main implements Runnable,IParameterValidator
     private boolean switchOn = false;
     @Parameter(names = {"--TestRadioReceiver", "-trr"},description = "Test Radio Receiver")
     private boolean testRR = false;
+    @Parameter(names = {"--receiverPins", "-rpn"},description = "Receive on these pins (pi4j numbering, comma separated) with a shared pool of decoder threads", arity = 1)
+    private List<Integer> receiverPins = new ArrayList<>();
+    @Parameter(names = {"--decoderThreads", "-dt"},description = "Decoder threads shared by the receivers, 0 = one per core", arity = 1)
+    private int decoderThreads = 0;
+    @Parameter(names = {"--dedupeWindow", "-dw"},description = "Report a message heard by several receivers once, max gap in ms (0 = off)", arity = 1)
+    private int dedupeWindow = 500;
+    @Parameter(names = {"--streamingDecode", "-sd"},description = "Decode received messages as each edge arrives")
+    private boolean streamingDecode = false;
+    @Parameter(names = {"--glitchThreshold", "-gt"},description = "Drop glitches shorter than this in microseconds, 0 = off, -1 = from the shortest protocol pulse", arity = 1)
+    private int glitchThreshold = Receiver.GLITCH_AUTO;
+    @Parameter(names = {"--frameMemory", "-fm"},description = "Kilobytes of memory for received frames waiting to be decoded", arity = 1)
+    private int frameMemoryKB = (int)(Receiver.DEFAULT_FRAME_MEMORY / 1024);
+    @Parameter(names = {"--overflowPolicy", "-op"},description = "Frame lost when the frame memory is full, DROP_NEWEST or DROP_OLDEST", arity = 1)
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    @Parameter(names = {"--burstWindow", "-bw"},description = "Report repeated messages once, max gap between repeats in ms (0 = off)", arity = 1)
+    private int burstWindow = 0;
+    @Parameter(names = {"--capture", "-c"},description = "Record received frames to a capture file", arity = 1)
+    private String captureFile = null;
+    @Parameter(names = {"--protocols", "-pr"},description = "Decode the protocols in this file as well as the built in ones", arity = 1)
+    private String protocolFile = null;
+    @Parameter(names = {"--learn", "-ln"},description = "Learn unknown protocols into this file and decode the protocols already in it, with several receiver pins each has its own file with the pin number appended", arity = 1)
+    private String learnedFile = null;
+    @Parameter(names = {"--replay", "-rp"},description = "Replay a capture file through the receiver, no GPIO is used", arity = 1)
+    private String replayFile = null;
+    @Parameter(names = {"--replayFast", "-rf"},description = "Replay at maximum speed rather than the recorded speed")
+    private boolean replayFast = false;
+    @Parameter(names = {"--bulkDecode", "-bd"},description = "Decode every capture file in a directory in parallel and report code counts", arity = 1)
+    private String bulkDecodeDirectory = null;
+    @Parameter(names = {"--bucketMinutes", "-bm"},description = "Time bucket for bulk decode counts in minutes", arity = 1)
+    private int bucketMinutes = 60;
+    @Parameter(names = {"--loadTest", "-lt"},description = "Drive the receivers with a simulated signal at increasing edge rates, no GPIO is used")
+    private boolean loadTest = false;
+    @Parameter(names = {"--simJitter", "-sj"},description = "Simulated pulse width jitter in microseconds", arity = 1)
+    private int simJitter = 0;
+    @Parameter(names = {"--simGlitchRate", "-sg"},description = "Simulated probability of a glitch before each edge", arity = 1)
+    private double simGlitchRate = 0;
+    @Parameter(names = {"--simDropRate", "-sdr"},description = "Simulated probability of each edge being lost", arity = 1)
+    private double simDropRate = 0;
+    @Parameter(names = {"--simFrameGap", "-sfg"},description = "Simulated extra gap added to the sync gap before every frame in microseconds", arity = 1)
+    private int simFrameGap = 0;
+    @Parameter(names = {"--soakTest", "-st"},description = "Send this many switch commands through a loopback transmitter and receiver, no GPIO is used", arity = 1)
+    private int soakCommands = 0;
+    @Parameter(names = {"--soakRealTime", "-srt"},description = "Send the soak test at the real transmission speed")
+    private boolean soakRealTime = false;
 
 
     private JCommander jc;
     private int numberArgs =0;
-    private final GpioController gpio;
+    private GpioController gpio;
     private RadioReceiver radioReceiver;
     private RadioTransmitter radioTransmitter;
     private Receiver receiver;
@@ -49,11 +109,11 @@ private static SocketControl s;
 
     private Main()
     {
-        gpio= GpioFactory.getInstance();
+        gpio= null; // not created until needed so offline actions run on any machine
     }
 
-    public static RadioTransmitter getTransmitter(){return main.radioTransmitter;}
-    public static RadioReceiver getReceiver(){return main.radioReceiver;}
+    public static RadioTransmitter getTransmitter(){return (main == null) ? null : main.radioTransmitter;}
+    public static RadioReceiver getReceiver(){return (main == null) ? null : main.radioReceiver;}
 
     public static void main(String[] args)
     {
@@ -85,7 +145,14 @@ private static SocketControl s;
             */
             System.exit(1);
         }
+        checkStreamingOptions();
+        if (offlineActions())
+        {
+            System.out.println("Application Shutdown");
+            System.exit(0);
+        }
 
+        gpio= GpioFactory.getInstance();
         s = new SocketControl(this.gpio);
 
         if (demo)demo();
@@ -101,6 +168,7 @@ private static SocketControl s;
         {
             //tried ,PinPullResistance.PULL_DOWN no difference
             radioReceiver = new RadioReceiver(gpio.provisionDigitalInputPin(RaspiPin.GPIO_25,"Receiver Pin",PinPullResistance.PULL_DOWN));
+            radioReceiver.getMetrics().register("RadioReceiver");
             Thread mainThread = new Thread(this);
             radioReceiver.enableReceive(25);
             System.out.println("Receiver started");
@@ -117,12 +185,15 @@ private static SocketControl s;
             System.out.println("Receiver stopped");
         }
         */
-        if (testRR)
+        if (testRR && !receiverPins.isEmpty())
+        {
+            receiveOnPins();
+        } else if (testRR)
         {
-            receiver = new Receiver(gpio.provisionDigitalInputPin(RaspiPin.GPIO_25,"Receiver Pin",PinPullResistance.PULL_DOWN));
+            receiver = new Receiver(gpio.provisionDigitalInputPin(RaspiPin.GPIO_25,"Receiver Pin",PinPullResistance.PULL_DOWN),
+                    frameMemoryKB * 1024L, overflowPolicy);
             receiver.getPulseWidthTolerance();
-            receiver.setPulseWidthTolerance(25);
-
+            configureReceiver(receiver, "Receiver", captureFile, learnedFile);
             receiver.enableReceive();
             System.out.println("Receiver started");
             try
@@ -134,26 +205,203 @@ private static SocketControl s;
             }
             System.out.println("Stopping receiver");
             receiver.disableReceive();
-            while (!receiver.isFinished())
-            {
-                try
-                {
-                    TimeUnit.SECONDS.sleep(1); // wait for run loop to close
-                } catch (InterruptedException e)
-                {
-                    e.printStackTrace();
-                }
-            }
+            waitForReceiver();
         }
         if (testRT)
         {
             this.radioTransmitter = new RadioTransmitter(gpio.provisionDigitalOutputPin(RaspiPin.GPIO_23,"Transmitter Pin"));
+            configureTransmitter(radioTransmitter);
+            radioTransmitter.getMetrics().register("Transmitter");
         }
         gpio.shutdown();
 
         System.out.println("Application Shutdown");
         System.exit(0);
     }
+    /**
+     * checkStreamingOptions    -   streaming decode drops frames that fail every protocol as they arrive, so the
+     *                              options that need those frames cannot be combined with it
+     * @throws ParameterException if --streamingDecode is given with --learn or --burstWindow
+     */
+    private void checkStreamingOptions() throws ParameterException
+    {
+        if (!streamingDecode) return;
+        if (learnedFile != null)
+        {
+            throw new ParameterException("--learn cannot be used with --streamingDecode, it keeps no failed frames to learn from,"
+                    + " use --protocols to decode the protocols already learned");
+        }
+        if (burstWindow > 0)
+        {
+            throw new ParameterException("--burstWindow cannot be used with --streamingDecode, it keeps no damaged repeats to vote");
+        }
+    }
+
+    /**
+     * configureTransmitter -   apply the transmit options
+     * @param transmitter   -   the transmitter
+     */
+    private void configureTransmitter(RadioTransmitter transmitter)
+    {
+        transmitter.setOnTimeRepeats(onTimeRepeats);
+        if (dutyCycle > 0) transmitter.setAirtimeBudget(new AirtimeBudget(dutyCycleWindow, dutyCycle));
+    }
+
+    /**
+     * offlineActions   -   actions that do not use the GPIO pins and can be run on any machine
+     * @return          -   true if an offline action was requested
+     */
+    private boolean offlineActions()
+    {
+        if (bulkDecodeDirectory != null)
+        {
+            try
+            {
+                ProtocolRegistry registry = loadProtocolRegistry();
+                if (learnedFile != null) registry.load(Paths.get(learnedFile));
+                new BulkDecoder(Runtime.getRuntime().availableProcessors(), 25, TimeUnit.MINUTES.toMillis(bucketMinutes),
+                        registry.toArray()).decode(bulkDecodeDirectory);
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            return true;
+        }
+        if (loadTest)
+        {
+            LoadTest lt = new LoadTest(simJitter, simGlitchRate, simDropRate, simFrameGap, streamingDecode);
+            lt.sweepReceiver();
+            lt.measureRadioReceiver();
+            return true;
+        }
+        if (soakCommands > 0)
+        {
+            new SoakTest(soakRealTime, streamingDecode).run(soakCommands);
+            return true;
+        }
+        if (replayFile == null) return false;
+        receiver = new Receiver(null, frameMemoryKB * 1024L, overflowPolicy);
+        configureReceiver(receiver, "Receiver", null, learnedFile);
+        try
+        {
+            new CaptureReplay(replayFile, !replayFast).replay(receiver);
+        } catch (IOException | InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+        receiver.disableReceive();
+        waitForReceiver();
+        return true;
+    }
+
+    /**
+     * loadProtocolRegistry -   the built in protocols and those in the protocol file
+     * @return              -   the registry
+     * @throws IOException if the protocol file cannot be read
+     */
+    private ProtocolRegistry loadProtocolRegistry() throws IOException
+    {
+        ProtocolRegistry registry = new ProtocolRegistry();
+        if (protocolFile != null) registry.load(Paths.get(protocolFile));
+        return registry;
+    }
+
+    private void setProtocols(Receiver receiver, String learned)
+    {
+        try
+        {
+            receiver.setProtocolRegistry(loadProtocolRegistry());
+            if (learned != null) receiver.setLearnedProtocolFile(learned);
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * configureReceiver    -   apply the receive options to a receiver that has not been enabled
+     * @param receiver  -   the receiver
+     * @param name      -   its name in JMX
+     * @param capture   -   the capture file to record to, or null
+     * @param learned   -   the learned protocol file, or null, each receiver saves its own so none overwrites another's
+     */
+    private void configureReceiver(Receiver receiver, String name, String capture, String learned)
+    {
+        receiver.setPulseWidthTolerance(25);
+        receiver.setStreamingDecode(streamingDecode);
+        receiver.setBurstWindow(burstWindow);
+        setProtocols(receiver, learned);
+        receiver.setGlitchThreshold(glitchThreshold);
+        receiver.getMetrics().register(name);
+        if (capture != null)
+        {
+            try
+            {
+                receiver.setCaptureFile(capture);
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * receiveOnPins    -   receive on every pin in receiverPins, decoded by a shared pool of decoder threads
+     */
+    private void receiveOnPins()
+    {
+        ReceiverManager manager = new ReceiverManager(decoderThreads, dedupeWindow);
+        for (int pin : receiverPins)
+        {
+            final String name = "Receiver " + pin;
+            Receiver r = manager.attach(name, gpio.provisionDigitalInputPin(RaspiPin.getPinByAddress(pin), name,
+                    PinPullResistance.PULL_DOWN), frameMemoryKB * 1024L, overflowPolicy);
+            configureReceiver(r, name, (captureFile == null) ? null : captureFile + "." + pin,
+                    (learnedFile == null) ? null : learnedFile + "." + pin);
+        }
+        manager.enableReceive();
+        System.out.println(receiverPins.size() + " receivers started, " + manager.getWorkerCount() + " decoder threads");
+        try
+        {
+            TimeUnit.SECONDS.sleep(40);
+        } catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+        System.out.println("Stopping receivers");
+        manager.disableReceive();
+        while (!manager.isFinished())
+        {
+            try
+            {
+                TimeUnit.SECONDS.sleep(1); // wait for the decoder threads to close
+            } catch (InterruptedException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        for (Receiver r : manager.getReceivers())
+        {
+            System.out.println(r.getName() + ": decoded " + r.getDecodedCount() + ", already heard by another receiver "
+                    + manager.getDuplicateCount(r.getName()));
+        }
+        System.out.println("Messages delivered: " + manager.getDeliveredCount());
+    }
+
+    private void waitForReceiver()
+    {
+        while (!receiver.isFinished())
+        {
+            try
+            {
+                TimeUnit.SECONDS.sleep(1); // wait for run loop to close
+            } catch (InterruptedException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
     void pause()
     {
         try
@@ -168,6 +416,8 @@ private static SocketControl s;
     void transmitTestPattern()
     {
         this.radioTransmitter = new RadioTransmitter(gpio.provisionDigitalOutputPin(RaspiPin.GPIO_13,"Transmitter Pin"));
+        configureTransmitter(radioTransmitter);
+        radioTransmitter.getMetrics().register("Test pattern transmitter");
         radioTransmitter.setProtocol(Protocol.protocol1);
         radioTransmitter.enableTransmit(13);
         SwitchControl sc = new SwitchControl();
@@ -203,7 +453,6 @@ private static SocketControl s;
                 radioReceiver.resetAvailable();
             }
             //else System.out.println("Not Available, " +radioReceiver.getInterruptCount()+" interrupts" );
-            radioReceiver.resetInterruptCount();
             try
             {
                 TimeUnit.MILLISECONDS.sleep(500);
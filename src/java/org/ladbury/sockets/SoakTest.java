@@ -0,0 +1,177 @@
+package org.ladbury.sockets;
+
+import org.ladbury.RCSwitch.LatencyHistogram;
+import org.ladbury.RCSwitch.LoopbackChannel;
+import org.ladbury.RCSwitch.Protocol;
+import org.ladbury.RCSwitch.RadioTransmitter;
+import org.ladbury.RCSwitch.SwitchControl;
+import org.ladbury.RCSwitch.TransmitEngine;
+import org.ladbury.RCSwitch.TransmitResult;
+import org.ladbury.RF433.DecodedMessage;
+import org.ladbury.RF433.Receiver;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SoakTest -   sends switch commands through a RadioTransmitter looped back into a Receiver, no radios are used.
+ *              Each command is sent with the next protocol in turn and is decoded successfully when a message with
+ *              its protocol and code is received. Reports the command throughput, the decode success rate and the
+ *              latency from the first edge reaching the receiver to the decoded message for each protocol. The time
+ *              from the command to its first edge, queueing and building the waveform, is reported separately.
+ */
+class SoakTest
+{
+    private static final long DECODE_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(100); // every frame has been sent when the wait starts
+    private static final long SEED = 433;
+
+    /**
+     * Decoded  -   a message and when it was delivered
+     */
+    private static class Decoded
+    {
+        final DecodedMessage msg;
+        final long nanos;
+
+        Decoded(DecodedMessage msg, long nanos)
+        {
+            this.msg = msg;
+            this.nanos = nanos;
+        }
+    }
+
+    private final boolean realTime;
+    private final boolean streamingDecode;
+    private final Random random;
+
+    /**
+     * SoakTest -   Constructor
+     * @param realTime          -   send the waveform at its real speed through a TransmitEngine rather than as fast as possible
+     * @param streamingDecode   -   decode as the edges arrive
+     */
+    SoakTest(boolean realTime, boolean streamingDecode)
+    {
+        this.realTime = realTime;
+        this.streamingDecode = streamingDecode;
+        this.random = new Random(SEED);
+    }
+
+    /**
+     * run  -   send the commands and print the results
+     * @param commands  -   number of commands to send
+     */
+    void run(int commands)
+    {
+        final ConcurrentLinkedQueue<Decoded> decoded = new ConcurrentLinkedQueue<>();
+        final Receiver receiver = new Receiver(null);
+        receiver.setPulseWidthTolerance(25);
+        receiver.setStreamingDecode(streamingDecode);
+        receiver.setPrintMessages(false);
+        receiver.setMessageListener(m -> decoded.add(new Decoded(m, System.nanoTime())));
+        final LoopbackChannel channel = new LoopbackChannel(receiver, realTime);
+        final RadioTransmitter transmitter = realTime ? new RadioTransmitter(new TransmitEngine(channel)) : new RadioTransmitter(channel);
+        final SwitchControl switchControl = new SwitchControl(transmitter);
+        receiver.getMetrics().register("Soak test receiver");
+        transmitter.getMetrics().register("Soak test transmitter");
+
+        final Protocol[] protocols = Protocol.values();
+        final int[] sent = new int[protocols.length];
+        final int[] received = new int[protocols.length];
+        final long[][] latencies = new long[protocols.length][commands / protocols.length + 1];
+        final LatencyHistogram toFirstEdge = new LatencyHistogram("Command to first edge");
+        final long started = System.nanoTime();
+        for (int c = 0; c < commands; c++)
+        {
+            final int p = c % protocols.length;
+            transmitter.setProtocol(protocols[p]);
+            decoded.clear();
+            channel.mark();
+            final long sendTime = System.nanoTime();
+            sendRandomCommand(switchControl).exceptionally(e -> null).join(); // an invalid command is counted as not decoded
+            final long firstEdge = channel.getFirstEdgeNanos();
+            channel.flush();
+            sent[p]++;
+            if (firstEdge == 0) continue; // nothing was sent
+            toFirstEdge.record(firstEdge - sendTime);
+            final long latency = awaitDecode(decoded, protocols[p], transmitter.getLastCode(), firstEdge);
+            if (latency >= 0) latencies[p][received[p]++] = latency;
+        }
+        final double seconds = (System.nanoTime() - started) / 1e9;
+        receiver.disableReceive();
+
+        System.out.printf("Soak test: %d commands in %.3f s (%.1f commands/s), %s%n", commands, seconds,
+                commands / seconds, realTime ? "real time" : "maximum speed");
+        System.out.println("Protocol, Sent, Decoded, Success %, First edge to decoded us p50, p90, p99, max");
+        for (int p = 0; p < protocols.length; p++)
+        {
+            final long[] l = Arrays.copyOf(latencies[p], received[p]);
+            Arrays.sort(l);
+            System.out.printf("%s, %d, %d, %.1f, %d, %d, %d, %d%n", protocols[p].name(), sent[p], received[p],
+                    (sent[p] == 0) ? 0.0 : 100.0 * received[p] / sent[p],
+                    percentile(l, 50), percentile(l, 90), percentile(l, 99), percentile(l, 100));
+        }
+        System.out.println(toFirstEdge);
+        System.out.println(transmitter.getSendLatency()); // the receiver prints its own as it stops
+        final TransmitEngine engine = transmitter.getEngine();
+        engine.shutdown();
+        if (engine.isTimingEdges())
+        {
+            System.out.printf("Transmit engine: %d frames, %d late, %d abandoned%n", engine.getFrames(), engine.getLateFrames(), engine.getAborts());
+            System.out.println(engine.getEdgeError());
+            System.out.println(engine.getFrameError());
+        }
+    }
+
+    /**
+     * awaitDecode  -   wait for the command to be decoded
+     * @return      -   microseconds from the first edge reaching the receiver to the first decoded repeat, -1 if not decoded
+     */
+    private long awaitDecode(ConcurrentLinkedQueue<Decoded> decoded, Protocol protocol, long code, long firstEdge)
+    {
+        final long deadline = System.nanoTime() + DECODE_TIMEOUT;
+        while (System.nanoTime() < deadline)
+        {
+            Decoded d;
+            while ((d = decoded.poll()) != null)
+            {
+                if (d.msg.getProtocolName().equals(protocol.name()) && d.msg.getCode() == code)
+                {
+                    return (d.nanos - firstEdge) / 1000;
+                }
+            }
+            Thread.yield();
+        }
+        return -1;
+    }
+
+    private CompletableFuture<TransmitResult> sendRandomCommand(SwitchControl sc)
+    {
+        final boolean on = random.nextBoolean();
+        switch (random.nextInt(4))
+        {
+            case 0:
+                final String group = String.format("%5s", Integer.toBinaryString(random.nextInt(32))).replace(' ', '0');
+                if (on) return sc.switchOn(group, 1 + random.nextInt(5));
+                return sc.switchOff(group, 1 + random.nextInt(5));
+            case 1:
+                if (on) return sc.switchOn(1 + random.nextInt(4), 1 + random.nextInt(4));
+                return sc.switchOff(1 + random.nextInt(4), 1 + random.nextInt(4));
+            case 2:
+                if (on) return sc.switchOn((char)('a' + random.nextInt(16)), 1 + random.nextInt(4), 1 + random.nextInt(4));
+                return sc.switchOff((char)('a' + random.nextInt(16)), 1 + random.nextInt(4), 1 + random.nextInt(4));
+            default:
+                if (on) return sc.switchOn((char)('A' + random.nextInt(4)), 1 + random.nextInt(3));
+                return sc.switchOff((char)('A' + random.nextInt(4)), 1 + random.nextInt(3));
+        }
+    }
+
+    private static long percentile(long[] sorted, int percent)
+    {
+        if (sorted.length == 0) return -1;
+        final int i = (int)Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,45 @@
+package org.ladbury.RCSwitch;
+
+/**
+ * BenchmarkFrames  -   a fixed set of synthetic frames of one kind for the benchmarks to cycle through.
+ *                      The kind is a Protocol name for valid frames of that protocol, "noise" for random edges,
+ *                      or "truncated" for frames of random protocols cut short
+ */
+public class BenchmarkFrames
+{
+    public static final int FRAMES = 64; // power of two so the next frame is found with a mask
+    public static final int BITS = 24;
+    public static final int JITTER = 10; // microseconds, within tolerance for every protocol
+
+    public final int[][] durations;
+    public final boolean[][] levels;
+    public final int[] sizes;
+
+    public BenchmarkFrames(String kind, long seed)
+    {
+        FrameGenerator generator = new FrameGenerator(seed);
+        generator.setJitter(JITTER);
+        final Protocol[] protocols = Protocol.values();
+        this.durations = new int[FRAMES][FrameGenerator.maxEdges(BITS)];
+        this.levels = new boolean[FRAMES][FrameGenerator.maxEdges(BITS)];
+        this.sizes = new int[FRAMES];
+        for (int f = 0; f < FRAMES; f++)
+        {
+            final long code = generator.getRandom().nextInt(1 << BITS);
+            switch (kind)
+            {
+                case "noise":
+                    sizes[f] = generator.noise(2 * BITS + 2, durations[f], levels[f]);
+                    break;
+                case "truncated":
+                    Protocol p = protocols[generator.getRandom().nextInt(protocols.length)];
+                    sizes[f] = generator.truncated(p, code, BITS, 8 + generator.getRandom().nextInt(BITS), durations[f], levels[f]);
+                    break;
+                default:
+                    sizes[f] = generator.frame(Protocol.valueOf(kind), code, BITS, durations[f], levels[f]);
+            }
+        }
+    }
+
+    public static int next(int frame){return (frame + 1) & (FRAMES - 1);}
+}
@@ -0,0 +1,34 @@
+package org.ladbury.RCSwitch;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CodeWordsBenchmark   -   cost of building each type of code word and encoding it into the bits that are sent
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodeWordsBenchmark
+{
+    private boolean on;
+
+    @Setup(Level.Iteration)
+    public void setup(){on = !on;}
+
+    @Benchmark
+    public long codeWordA(){return CodeWords.encodeTriState(CodeWords.getCodeWordA("11111", "00010", on));}
+
+    @Benchmark
+    public long codeWordB(){return CodeWords.encodeTriState(CodeWords.getCodeWordB(2, 3, on));}
+
+    @Benchmark
+    public long codeWordC(){return CodeWords.encodeTriState(CodeWords.getCodeWordC('b', 2, 3, on));}
+
+    @Benchmark
+    public long codeWordD(){return CodeWords.encodeTriState(CodeWords.getCodeWordD('B', 2, on));}
+}
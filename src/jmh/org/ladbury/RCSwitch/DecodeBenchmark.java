@@ -0,0 +1,50 @@
+package org.ladbury.RCSwitch;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DecodeBenchmark  -   cost of decoding one frame with the ProtocolMatcher and with the RadioReceiver
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark
+{
+    @Param({"protocol1", "protocol2", "protocol3", "protocol4", "protocol5", "protocol6", "protocol7", "noise", "truncated"})
+    public String frames;
+
+    private BenchmarkFrames set;
+    private ProtocolMatcher matcher;
+    private RadioReceiver radioReceiver;
+    private int frame;
+
+    @Setup
+    public void setup()
+    {
+        set = new BenchmarkFrames(frames, 42);
+        matcher = new ProtocolMatcher(258);
+        radioReceiver = new RadioReceiver(null);
+        radioReceiver.setPrintCodes(false);
+        frame = 0;
+    }
+
+    @Benchmark
+    public boolean protocolMatcher()
+    {
+        frame = BenchmarkFrames.next(frame);
+        return matcher.decode(set.durations[frame], 0, set.sizes[frame], 25, 6);
+    }
+
+    @Benchmark
+    public boolean radioReceiver()
+    {
+        frame = BenchmarkFrames.next(frame);
+        System.arraycopy(set.durations[frame], 0, radioReceiver.getReceivedRawData(), 0, set.sizes[frame]);
+        return radioReceiver.receiveProtocol(set.sizes[frame]);
+    }
+}
@@ -0,0 +1,62 @@
+package org.ladbury.RF433;
+
+import org.ladbury.RCSwitch.BenchmarkFrames;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReceiverBenchmark    -   cost of the Receiver decoding a captured frame into a DecodedMessage.
+ *                          The receiver has no pin and is never sent edges, so its decoder thread stays idle
+ *                          and the benchmark thread can call processMessage in its place
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiverBenchmark
+{
+    @Param({"protocol1", "protocol2", "protocol3", "protocol4", "protocol5", "protocol6", "protocol7", "noise", "truncated"})
+    public String frames;
+
+    private Receiver receiver;
+    private RawMessage[] messages;
+    private int frame;
+
+    @Setup
+    public void setup()
+    {
+        messages = toRawMessages(new BenchmarkFrames(frames, 42));
+        receiver = new Receiver(null);
+        receiver.setPulseWidthTolerance(25);
+        frame = 0;
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        receiver.disableReceive();
+    }
+
+    @Benchmark
+    public DecodedMessage processMessage()
+    {
+        frame = BenchmarkFrames.next(frame);
+        return receiver.processMessage(messages[frame]);
+    }
+
+    static RawMessage[] toRawMessages(BenchmarkFrames set)
+    {
+        RawMessage[] messages = new RawMessage[BenchmarkFrames.FRAMES];
+        EdgeBuffer edges = new EdgeBuffer(BenchmarkFrames.FRAMES, set.durations[0].length);
+        for (int f = 0; f < BenchmarkFrames.FRAMES; f++)
+        {
+            messages[f] = new RawMessage(edges, f);
+            messages[f].start(System.currentTimeMillis(), 0);
+            for (int i = 0; i < set.sizes[f]; i++) messages[f].add(set.durations[f][i], set.levels[f][i]);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,45 @@
+package org.ladbury.RF433;
+
+import org.ladbury.RCSwitch.BenchmarkFrames;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WaveformBenchmark    -   cost of rendering a frame for analysis of undecoded messages
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WaveformBenchmark
+{
+    @Param({"protocol1", "protocol3", "noise"})
+    public String frames;
+
+    private RawMessage[] messages;
+    private int frame;
+
+    @Setup
+    public void setup()
+    {
+        messages = ReceiverBenchmark.toRawMessages(new BenchmarkFrames(frames, 42));
+        frame = 0;
+    }
+
+    @Benchmark
+    public String waveform()
+    {
+        frame = BenchmarkFrames.next(frame);
+        return messages[frame].waveform();
+    }
+
+    @Benchmark
+    public String timingsToCSV()
+    {
+        frame = BenchmarkFrames.next(frame);
+        return messages[frame].timingsToCSV();
+    }
+}
@@ -0,0 +1,269 @@
+package org.ladbury.RCSwitch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * TransmitEngineTest   -   the radio thread sends what is submitted to it whole, in the order and with the
+ *                          timing it promises, against an output that records or ignores the edges
+ */
+public class TransmitEngineTest
+{
+    private static final Waveform WAVEFORM = new Waveform(Protocol.protocol1, 0x5A5A5A, 24); // 44.8 ms a repeat
+    private static final int LENIENT_PERCENT = 100000; // of the 350 us pulse, so a loaded test machine never sets an edge late
+
+    private final CountDownLatch sending = new CountDownLatch(1);
+    private final PulseOutput radio = (high, micros) -> sending.countDown(); // ignores the edges, notes the first
+    private TransmitEngine engine;
+
+    /**
+     * failure  -   wait for a transmission that should have failed
+     * @return  -   why it failed
+     */
+    private static Throwable failure(CompletableFuture<TransmitResult> future)
+    {
+        try
+        {
+            future.join();
+        } catch (CompletionException e)
+        {
+            return e.getCause();
+        }
+        fail("sent when it should have failed");
+        return null;
+    }
+
+    @After
+    public void shutdown()
+    {
+        if (engine != null) engine.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void aTimedTransmissionLastsAtLeastItsAirtime()
+    {
+        engine = new TransmitEngine((high, micros) -> {}, TransmitEngine.DEFAULT_SPIN_MICROS, LENIENT_PERCENT);
+        final TransmitResult result = engine.submit(WAVEFORM, 3, 0).join();
+        assertEquals(3, result.getRepeats());
+        assertTrue(result.getSendMicros() + " us to send " + result.getAirtimeMicros() + " us of airtime", result.getSendMicros() >= result.getAirtimeMicros());
+        assertEquals(3, engine.getFrames());
+        assertEquals(0, engine.getLateFrames());
+        assertEquals(3 * WAVEFORM.getPulseCount(), engine.getEdgeError().snapshot().getCount());
+    }
+
+    @Test(timeout = 10000)
+    public void repeatsStopOnceEnoughWereOnTime()
+    {
+        engine = new TransmitEngine((high, micros) -> {}, TransmitEngine.DEFAULT_SPIN_MICROS, LENIENT_PERCENT);
+        assertEquals(2, engine.send(WAVEFORM, 5, 2));
+        assertEquals(2, engine.getFrames());
+    }
+
+    @Test(timeout = 10000)
+    public void anUntimedOutputIsGivenEveryPulseOfEachRepeat()
+    {
+        final List<Integer> pulses = new ArrayList<>(); // only the radio thread adds, read once the future completes
+        engine = new TransmitEngine((high, micros) -> pulses.add(high ? -micros : micros), false);
+        assertEquals(4, engine.send(WAVEFORM, 4, 0));
+        assertEquals(4 * WAVEFORM.getPulseCount(), pulses.size());
+        for (int i = 0; i < pulses.size(); i++)
+        {
+            final int pulse = WAVEFORM.pulses()[i % WAVEFORM.getPulseCount()];
+            final int micros = Waveform.micros(pulse);
+            assertEquals("pulse " + i, Waveform.isHigh(pulse) ? -micros : micros, (int)pulses.get(i));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void aFullLaneRefusesRatherThanWaiting() throws InterruptedException
+    {
+        engine = new TransmitEngine(radio, true, TransmitEngine.DEFAULT_SPIN_MICROS, LENIENT_PERCENT, 1);
+        final CompletableFuture<TransmitResult> first = engine.submit(WAVEFORM, 5, 0);
+        sending.await();
+        final CompletableFuture<TransmitResult> second = engine.submit(WAVEFORM, 1, 0); // the only place in the lane
+        assertTrue(failure(engine.submit(WAVEFORM, 1, 0)) instanceof RejectedExecutionException);
+        assertEquals(1, engine.getRejected());
+        final CompletableFuture<TransmitResult> bulk = engine.submit(WAVEFORM, 1, 0, null, TransmitPriority.BULK); // a lane of its own
+        assertEquals(5, first.join().getRepeats());
+        assertEquals(1, second.join().getRepeats());
+        assertEquals(1, bulk.join().getRepeats());
+    }
+
+    @Test(timeout = 10000)
+    public void shutdownSendsWhatIsWaitingAndRefusesTheRest()
+    {
+        engine = new TransmitEngine(radio, true, TransmitEngine.DEFAULT_SPIN_MICROS, LENIENT_PERCENT, TransmitEngine.DEFAULT_QUEUE_CAPACITY);
+        final CompletableFuture<TransmitResult> first = engine.submit(WAVEFORM, 2, 0);
+        final CompletableFuture<TransmitResult> second = engine.submit(WAVEFORM, 2, 0);
+        engine.shutdown();
+        assertTrue(failure(engine.submit(WAVEFORM, 1, 0)) instanceof RejectedExecutionException);
+        assertEquals(2, first.join().getRepeats());
+        assertEquals(2, second.join().getRepeats());
+    }
+
+    @Test(timeout = 30000)
+    public void transmissionsFromDifferentThreadsNeverInterleave() throws InterruptedException
+    {
+        final int threads = 4;
+        final int each = 20;
+        final List<int[]> sent = new ArrayList<>(); // only the radio thread adds, read once every future completes
+        final int[] frame = new int[WAVEFORM.getPulseCount()];
+        final int[] edge = new int[1];
+        engine = new TransmitEngine((high, micros) -> {
+            frame[edge[0]++] = high ? -micros : micros;
+            if (edge[0] == frame.length)
+            {
+                sent.add(frame.clone());
+                edge[0] = 0;
+            }
+        }, false, 0, 0, threads * each);
+        final Waveform[] waveforms = new Waveform[threads];
+        final List<List<CompletableFuture<TransmitResult>>> futures = new ArrayList<>();
+        final Thread[] submitters = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+        {
+            waveforms[t] = new Waveform(Protocol.protocol1, 0x111111L * (t + 1), 24);
+            final Waveform waveform = waveforms[t];
+            final List<CompletableFuture<TransmitResult>> own = new ArrayList<>();
+            futures.add(own);
+            submitters[t] = new Thread(() -> {
+                for (int i = 0; i < each; i++) own.add(engine.submit(waveform, 2, 0, null, TransmitPriority.BULK));
+            });
+        }
+        for (Thread submitter : submitters) submitter.start();
+        for (Thread submitter : submitters) submitter.join();
+        for (List<CompletableFuture<TransmitResult>> own : futures) for (CompletableFuture<TransmitResult> f : own) f.join();
+        assertEquals(threads * each * 2, sent.size());
+        assertEquals("no frame was cut by another", 0, edge[0]);
+        final int[] counts = new int[threads];
+        for (int[] pulses : sent)
+        {
+            int t = 0;
+            while (t < threads && !Arrays.equals(expected(waveforms[t]), pulses)) t++;
+            assertTrue("a frame mixed from several transmissions", t < threads);
+            counts[t]++;
+        }
+        for (int count : counts) assertEquals(each * 2, count);
+    }
+
+    @Test(timeout = 10000)
+    public void anInteractiveTransmissionPausesABulkOneWhichThenFinishes() throws InterruptedException
+    {
+        engine = new TransmitEngine(radio, TransmitEngine.DEFAULT_SPIN_MICROS, LENIENT_PERCENT);
+        final CompletableFuture<TransmitResult> bulk = engine.submit(WAVEFORM, 10, 0, "heating", TransmitPriority.BULK);
+        sending.await();
+        final TransmitResult interactive = engine.submit(WAVEFORM, 1, 0, "light", TransmitPriority.INTERACTIVE).join();
+        final TransmitResult resumed = bulk.join();
+        assertEquals("every repeat is sent after the pause", 10, resumed.getRepeats());
+        assertEquals(1, resumed.getPreempted());
+        assertEquals(1, engine.getPreemptions());
+        assertTrue("the interactive transmission ends first", interactive.getCompletedNanos() < resumed.getCompletedNanos());
+        assertTrue("it does not wait for the bulk repeats", interactive.getCompletedNanos() - interactive.getSubmittedNanos() < resumed.getAirtimeMicros() * 1000 / 2);
+    }
+
+    @Test(timeout = 10000)
+    public void aWaitingTransmissionIsReplacedByALaterOneForItsTarget() throws InterruptedException
+    {
+        engine = new TransmitEngine(radio, TransmitEngine.DEFAULT_SPIN_MICROS, LENIENT_PERCENT);
+        final CompletableFuture<TransmitResult> busy = engine.submit(WAVEFORM, 3, 0);
+        sending.await();
+        final Waveform on = new Waveform(Protocol.protocol1, 0x15, 24);
+        final Waveform off = new Waveform(Protocol.protocol1, 0x14, 24);
+        final CompletableFuture<TransmitResult> first = engine.submit(on, 2, 0, "socket A", TransmitPriority.BULK);
+        final CompletableFuture<TransmitResult> other = engine.submit(on, 2, 0, "socket B", TransmitPriority.BULK);
+        final CompletableFuture<TransmitResult> latest = engine.submit(off, 2, 0, "socket A", TransmitPriority.BULK);
+        assertTrue("the replaced transmission never starts", first.isCancelled());
+        assertEquals(1, engine.getCoalesced());
+        assertSame(off, latest.join().getWaveform());
+        assertEquals(2, other.join().getRepeats());
+        assertEquals(3, busy.join().getRepeats());
+    }
+
+    @Test(timeout = 10000)
+    public void aTransmissionBeingSentStopsWhenALaterOneForItsTargetArrives() throws InterruptedException
+    {
+        engine = new TransmitEngine(radio, TransmitEngine.DEFAULT_SPIN_MICROS, LENIENT_PERCENT);
+        final CompletableFuture<TransmitResult> first = engine.submit(WAVEFORM, 10, 0, "socket A", TransmitPriority.BULK);
+        sending.await();
+        final CompletableFuture<TransmitResult> latest = engine.submit(WAVEFORM, 2, 0, "socket A", TransmitPriority.BULK);
+        final TransmitResult stopped = first.join();
+        assertTrue("stopped at the end of a frame: " + stopped.getRepeats(), stopped.getRepeats() >= 1 && stopped.getRepeats() < 10);
+        assertEquals(1, engine.getCoalesced());
+        assertEquals(2, latest.join().getRepeats());
+    }
+
+    @Test(timeout = 10000)
+    public void aBulkTransmissionThatWouldOverrunTheBudgetIsRefused()
+    {
+        engine = new TransmitEngine(radio, TransmitEngine.DEFAULT_SPIN_MICROS, LENIENT_PERCENT);
+        engine.setAirtimeBudget(new AirtimeBudget(1, 10)); // 100 ms a second, room for two repeats
+        assertTrue(failure(engine.submit(WAVEFORM, 3, 0, null, TransmitPriority.BULK)) instanceof RejectedExecutionException);
+        final CompletableFuture<TransmitResult> fits = engine.submit(WAVEFORM, 2, 0, null, TransmitPriority.BULK);
+        assertTrue("the airtime already promised counts", failure(engine.submit(WAVEFORM, 1, 0, "socket A", TransmitPriority.BULK)) instanceof RejectedExecutionException);
+        assertEquals(2, engine.getRejected());
+        assertEquals(2, fits.join().getRepeats());
+    }
+
+    @Test(timeout = 10000)
+    public void aFrameLongerThanTheWholeBudgetIsRefusedWhateverItsPriority()
+    {
+        engine = new TransmitEngine(radio, TransmitEngine.DEFAULT_SPIN_MICROS, LENIENT_PERCENT);
+        engine.setAirtimeBudget(new AirtimeBudget(1, 1)); // 10 ms a second
+        assertTrue(failure(engine.submit(WAVEFORM, 1, 0)) instanceof RejectedExecutionException);
+        assertEquals(1, engine.getRejected());
+    }
+
+    @Test(timeout = 10000)
+    public void anInteractiveTransmissionWaitsForTheBudgetRatherThanBeingRefused()
+    {
+        final AirtimeBudget budget = new AirtimeBudget(1, 10);
+        engine = new TransmitEngine(radio, TransmitEngine.DEFAULT_SPIN_MICROS, LENIENT_PERCENT);
+        engine.setAirtimeBudget(budget);
+        engine.submit(WAVEFORM, 2, 0, null, TransmitPriority.BULK).join();
+        final TransmitResult result = engine.submit(WAVEFORM, 1, 0).join();
+        assertEquals(1, result.getRepeats());
+        assertTrue("waited for earlier frames to leave the window", result.getDeferredMicros() > 0);
+        assertEquals(0, engine.getRejected());
+        assertTrue(budget.getUsedMicros() + " us used", budget.getUsedMicros() <= budget.getBudgetMicros());
+    }
+
+    @Test(timeout = 10000)
+    public void untargetedTransmissionsShareOneAccountAndCannotStarveADevice()
+    {
+        engine = new TransmitEngine(radio, TransmitEngine.DEFAULT_SPIN_MICROS, LENIENT_PERCENT);
+        engine.setAirtimeBudget(new AirtimeBudget(4, 50));
+        engine.submit(WAVEFORM, 2, 0, null, TransmitPriority.BULK).join();
+        final CompletableFuture<TransmitResult> busy = engine.submit(WAVEFORM, 2, 0, "socket H", TransmitPriority.BULK);
+        final CompletableFuture<TransmitResult> untargeted = engine.submit(WAVEFORM, 2, 0, null, TransmitPriority.BULK);
+        final CompletableFuture<TransmitResult> device = engine.submit(WAVEFORM, 2, 0, "socket Y", TransmitPriority.BULK);
+        assertTrue("the device that has used no airtime goes first", device.join().getCompletedNanos() < untargeted.join().getCompletedNanos());
+        assertEquals(2, busy.join().getRepeats());
+    }
+
+    /**
+     * expected -   the pulses an untimed output is given for one repeat, high ones negative
+     */
+    private static int[] expected(Waveform waveform)
+    {
+        final int[] pulses = new int[waveform.getPulseCount()];
+        for (int i = 0; i < pulses.length; i++)
+        {
+            final int pulse = waveform.pulses()[i];
+            pulses[i] = Waveform.isHigh(pulse) ? -Waveform.micros(pulse) : Waveform.micros(pulse);
+        }
+        return pulses;
+    }
+}
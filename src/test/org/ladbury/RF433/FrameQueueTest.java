@@ -0,0 +1,179 @@
+package org.ladbury.RF433;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FrameQueueTest   -   the frame queue hands every frame over whole and in order, and loses the frame its
+ *                      overflow policy says when the consumer falls behind
+ */
+public class FrameQueueTest
+{
+    private static final int FRAME_SIZE = 8;
+    private static final int EDGES = 5;
+
+    /**
+     * capture  -   producer side, record a frame whose edges all depend on its tag and publish it
+     */
+    private static void capture(FrameQueue queue, int tag)
+    {
+        final RawMessage frame = queue.writeFrame();
+        frame.start(0, tag);
+        for (int i = 0; i < EDGES; i++) frame.add(tag + i, (i & 1) == 0);
+        queue.publish();
+    }
+
+    /**
+     * tagOf    -   consumer side, the tag of a frame, checking none of its edges came from another frame
+     */
+    private static int tagOf(RawMessage frame)
+    {
+        assertEquals(EDGES, frame.size());
+        final int tag = (int)frame.getStartMicros();
+        for (int i = 0; i < EDGES; i++)
+        {
+            assertEquals("edge " + i + " of frame " + tag, tag + i, frame.duration(i));
+            assertEquals((i & 1) == 0, frame.level(i));
+        }
+        return tag;
+    }
+
+    @Test
+    public void framesArriveInOrderAsTheRingsWrap()
+    {
+        final FrameQueue queue = new FrameQueue(3, FRAME_SIZE, OverflowPolicy.DROP_NEWEST);
+        int published = 0;
+        int taken = 0;
+        for (int round = 0; round < 1000; round++) // many times round both rings
+        {
+            final int burst = 1 + round % queue.getCapacity();
+            for (int i = 0; i < burst; i++) capture(queue, ++published);
+            assertEquals(burst, queue.size());
+            for (int i = 0; i < burst; i++)
+            {
+                final RawMessage frame = queue.poll();
+                assertEquals(++taken, tagOf(frame));
+                assertSame("poll returns the same frame until it is released", frame, queue.poll());
+                queue.release();
+            }
+            assertNull(queue.poll());
+        }
+        assertEquals(0, queue.getDropped());
+        assertEquals(published, queue.getPublished());
+    }
+
+    @Test
+    public void dropNewestKeepsTheOldestFrames()
+    {
+        final FrameQueue queue = new FrameQueue(2, FRAME_SIZE, OverflowPolicy.DROP_NEWEST);
+        for (int tag = 1; tag <= 10; tag++) capture(queue, tag);
+        int expected = 1;
+        RawMessage frame;
+        while ((frame = queue.poll()) != null)
+        {
+            assertEquals(expected++, tagOf(frame));
+            queue.release();
+        }
+        final int kept = expected - 1;
+        assertTrue("at least the capacity is kept: " + kept, kept >= queue.getCapacity());
+        assertEquals(10 - kept, queue.getDropped());
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestFrames()
+    {
+        final FrameQueue queue = new FrameQueue(2, FRAME_SIZE, OverflowPolicy.DROP_OLDEST);
+        for (int tag = 1; tag <= 10; tag++) capture(queue, tag);
+        final int kept = queue.size();
+        assertTrue("at least the capacity is kept: " + kept, kept >= queue.getCapacity());
+        int expected = 10 - kept + 1;
+        RawMessage frame;
+        while ((frame = queue.poll()) != null)
+        {
+            assertEquals(expected++, tagOf(frame));
+            queue.release();
+        }
+        assertEquals(11, expected);
+        assertEquals(10 - kept, queue.getDropped());
+    }
+
+    @Test(timeout = 30000)
+    public void dropOldestNeverTearsOrReordersFramesUnderAConcurrentProducer() throws InterruptedException
+    {
+        final int frames = 200000;
+        final FrameQueue queue = new FrameQueue(2, FRAME_SIZE, OverflowPolicy.DROP_OLDEST);
+        final Thread producer = new Thread(() -> {
+            for (int tag = 1; tag <= frames; tag++) capture(queue, tag);
+        }, "Producer");
+        producer.start();
+        int taken = 0;
+        int last = 0;
+        while (true)
+        {
+            RawMessage frame = queue.take(1, TimeUnit.MILLISECONDS);
+            if (frame == null)
+            {
+                if (producer.isAlive()) continue;
+                frame = queue.poll(); // the producer may have published its last frame after take gave up
+                if (frame == null) break;
+            }
+            final int tag = tagOf(frame);
+            assertTrue("frame " + tag + " after frame " + last, tag > last);
+            last = tag;
+            taken++;
+            queue.release();
+        }
+        producer.join();
+        assertEquals("the newest frame is never dropped", frames, last);
+        assertEquals("every frame is either decoded or dropped", frames, taken + queue.getDropped());
+    }
+
+    @Test
+    public void theMinimumMemoryHoldsOneWaitingFrame()
+    {
+        final long minimum = FrameQueue.minimumMemory(FRAME_SIZE);
+        assertEquals(1, FrameQueue.capacityFor(minimum, FRAME_SIZE));
+        assertEquals(minimum, new FrameQueue(1, FRAME_SIZE, OverflowPolicy.DROP_NEWEST).getMemoryBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lessThanTheMinimumMemoryIsRefused()
+    {
+        FrameQueue.capacityFor(FrameQueue.minimumMemory(FRAME_SIZE) - 1, FRAME_SIZE);
+    }
+
+    @Test
+    public void capacityGrowsOnlyByWholeFrames()
+    {
+        final long minimum = FrameQueue.minimumMemory(FRAME_SIZE);
+        final long frame = EdgeBuffer.bytes(1, FRAME_SIZE);
+        assertEquals(1, FrameQueue.capacityFor(minimum + frame - 1, FRAME_SIZE));
+        assertEquals(2, FrameQueue.capacityFor(minimum + frame, FRAME_SIZE));
+        assertEquals(2, FrameQueue.capacityFor(minimum + 2 * frame - 1, FRAME_SIZE));
+    }
+
+    @Test
+    public void theStoreNeverUsesMoreThanTheMemoryGiven()
+    {
+        for (long memory = FrameQueue.minimumMemory(FRAME_SIZE); memory < 4096; memory += 7)
+        {
+            final int capacity = FrameQueue.capacityFor(memory, FRAME_SIZE);
+            final FrameQueue queue = new FrameQueue(capacity, FRAME_SIZE, OverflowPolicy.DROP_OLDEST);
+            assertEquals(capacity, queue.getCapacity());
+            assertTrue(queue.getMemoryBytes() + " bytes used of " + memory, queue.getMemoryBytes() <= memory);
+            assertTrue("a whole frame more would have fitted in " + memory, queue.getMemoryBytes() + EdgeBuffer.bytes(1, FRAME_SIZE) > memory);
+        }
+    }
+
+    @Test
+    public void aHugeMemoryDoesNotOverflowTheCapacity()
+    {
+        assertEquals(Integer.MAX_VALUE / 2, FrameQueue.capacityFor(Long.MAX_VALUE, FRAME_SIZE));
+    }
+}